@@ -20,15 +20,27 @@
  */
 package org.zoodb.internal.server.index;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
 import org.zoodb.internal.server.IOResourceProvider;
 import org.zoodb.internal.server.StorageChannelOutput;
+import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntryIterator;
 import org.zoodb.internal.server.index.btree.AscendingBTreeLeafEntryIterator;
+import org.zoodb.internal.server.index.btree.BTreeBufferPool;
+import org.zoodb.internal.server.index.btree.BTreeEvents;
+import org.zoodb.internal.server.index.btree.BTreeMetrics;
+import org.zoodb.internal.server.index.btree.BTreeMetrics.Operation;
+import org.zoodb.internal.server.index.btree.BTreeShape;
+import org.zoodb.internal.server.index.btree.BTreeSpliterator;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
 import org.zoodb.internal.server.index.btree.DescendingBTreeLeafEntryIterator;
+import org.zoodb.internal.server.index.btree.PageCodec;
 import org.zoodb.internal.server.index.btree.PagedBTree;
 
 
@@ -42,6 +54,8 @@ public abstract class BTreeIndex extends AbstractIndex {
 
     protected BTreeStorageBufferManager bufferManager;
     protected PAGE_TYPE dataType;
+    // see setMetrics(), null if disabled
+    private volatile BTreeMetrics metrics;
 
 	public BTreeIndex(PAGE_TYPE dataType, IOResourceProvider file, boolean isNew, boolean isUnique) {
 		super(file, isNew, isUnique);
@@ -51,11 +65,91 @@ public abstract class BTreeIndex extends AbstractIndex {
 	}
 
 	public void insertLong(long key, long value) {
+		long start = startTimer();
 		getTree().insert(key, value);
+		stopTimer(Operation.INSERT, start);
 	}
 
     public boolean insertLongIfNotSet(long key, long value) {
-        return getTree().insert(key, value, true);
+		long start = startTimer();
+        boolean inserted = getTree().insert(key, value, true);
+		stopTimer(Operation.INSERT, start);
+		return inserted;
+    }
+
+    /**
+     * Removes all entries with keys between min and max (inclusive).
+     */
+    public void removeRange(long min, long max) {
+		long start = startTimer();
+    	getTree().removeRange(min, max);
+		stopTimer(Operation.DELETE, start);
+    }
+
+    /**
+     * Looks up a batch of keys with a single descent of the tree, see
+     * {@link PagedBTree#searchSorted(long[], long[], int, long)}.
+     * 
+     * For non-unique indices this returns only the first value per key, 
+     * i.e. the smallest value stored with it. The other values of a key are
+     * not reported, use {@link BTreeIndexNonUnique#valueCursor(long)} or 
+     * {@link #iterator(long, long)} with min == max == key to read all of 
+     * them.
+     *
+     * @param keys          The keys, in any order
+     * @param values        Receives the value, or for non-unique indices 
+     *                      the first value, of each key or failValue
+     * @param failValue     The value for keys that are not found
+     */
+    public void findValues(long[] keys, long[] values, long failValue) {
+    	long start = startTimer();
+    	searchValues(keys, values, failValue);
+    	stopTimer(Operation.LOOKUP, start);
+    }
+
+    private void searchValues(long[] keys, long[] values, long failValue) {
+    	int n = keys.length;
+    	if (values.length < n) {
+    		throw new IllegalArgumentException("Too few values: " + values.length 
+    				+ " for " + n + " keys");
+    	}
+    	if (isSorted(keys)) {
+    		getTree().searchSorted(keys, values, n, failValue);
+    		return;
+    	}
+    	long[] sortedKeys = keys.clone();
+    	Arrays.sort(sortedKeys);
+    	long[] sortedValues = new long[n];
+    	getTree().searchSorted(sortedKeys, sortedValues, n, failValue);
+    	for (int i = 0; i < n; i++) {
+    		values[i] = sortedValues[Arrays.binarySearch(sortedKeys, keys[i])];
+    	}
+    }
+
+    private static boolean isSorted(long[] keys) {
+    	for (int i = 1; i < keys.length; i++) {
+    		if (keys[i - 1] > keys[i]) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    /**
+     * Returns the keys between min and max (inclusive) in ascending order.
+     * The stream can be made parallel, see {@link BTreeSpliterator}.
+     */
+    public LongStream keyStream(long min, long max) {
+    	return StreamSupport.longStream(new BTreeSpliterator.OfKeys(getTree(), min, max), false);
+    }
+
+    /**
+     * Returns the entries with keys between min and max (inclusive), ordered
+     * by key and value. The stream can be made parallel, see 
+     * {@link BTreeSpliterator}.
+     */
+    public Stream<LLEntry> entryStream(long min, long max) {
+    	return StreamSupport.stream(new BTreeSpliterator.OfEntries(getTree(), min, max), false);
     }
 
 	public void print() {
@@ -70,12 +164,23 @@ public abstract class BTreeIndex extends AbstractIndex {
 		return getTree().statsGetInnerN();
 	}
 
+	/**
+	 * Reports the fill, key sizes and page locality of each level of the 
+	 * tree, see {@link BTreeShape}. All nodes are read.
+	 */
+	public BTreeShape analyzeShape() {
+		return BTreeShape.analyze(getTree());
+	}
+
 	public LLEntryIterator iterator() {
 		return new AscendingBTreeLeafEntryIterator(getTree());
 	}
 
 	public LLEntryIterator iterator(long min, long max) {
-        return new AscendingBTreeLeafEntryIterator(getTree(), min, max);
+		long start = startTimer();
+		LLEntryIterator it = new AscendingBTreeLeafEntryIterator(getTree(), min, max);
+		stopTimer(Operation.SCAN, start);
+		return it;
 	}
 
 	public LLEntryIterator descendingIterator() {
@@ -83,7 +188,10 @@ public abstract class BTreeIndex extends AbstractIndex {
 	}
 
 	public LLEntryIterator descendingIterator(long max, long min) {
-        return new DescendingBTreeLeafEntryIterator(getTree(), min, max);
+		long start = startTimer();
+		LLEntryIterator it = new DescendingBTreeLeafEntryIterator(getTree(), min, max);
+		stopTimer(Operation.SCAN, start);
+		return it;
 	}
 
 	public long getMinKey() {
@@ -95,7 +203,13 @@ public abstract class BTreeIndex extends AbstractIndex {
 	}
 
 	public int write(StorageChannelOutput out) {
-		return bufferManager.write(getTree().getRoot(), out);
+		BTreeMetrics m = metrics;
+		long bytes = bufferManager.getStatNWrittenBytes();
+		int pageId = bufferManager.write(getTree().getRoot(), out);
+		if (m != null) {
+			m.recordCommit(bufferManager.getStatNWrittenBytes() - bytes);
+		}
+		return pageId;
 	}
 
 	public long size() {
@@ -124,4 +238,75 @@ public abstract class BTreeIndex extends AbstractIndex {
     	bufferManager.setNodeValueElementSize(sizeInByte);
 
     }
+
+    public void setLeafValuePrefixSharing(boolean enabled) {
+    	bufferManager.setLeafValuePrefixSharing(enabled);
+    }
+
+    /**
+     * Stores runs of consecutive keys dense, see 
+     * {@link BTreeStorageBufferManager#setLeafDenseKeys(boolean)}.
+     */
+    public void setLeafDenseKeys(boolean enabled) {
+    	bufferManager.setLeafDenseKeys(enabled);
+    }
+
+    /**
+     * Compresses the leaf pages of the index, see 
+     * {@link BTreeStorageBufferManager#setLeafPageCodec(PageCodec)}.
+     */
+    public void setLeafPageCodec(PageCodec codec) {
+    	bufferManager.setLeafPageCodec(codec);
+    }
+
+    /**
+     * Shares the memory budget of the index with other indexes, see
+     * {@link BTreeBufferPool}.
+     */
+    public void setBufferPool(BTreeBufferPool bufferPool) {
+    	bufferManager.setBufferPool(bufferPool);
+    }
+
+    /**
+     * Counts cache hits and misses, structural changes, written bytes and 
+     * the latencies of the operations of this index, see {@link BTreeMetrics}.
+     * Several indexes may share one instance. The latency of a scan is the 
+     * time to position its iterator.
+     * 
+     * @param metrics   The metrics, or null to disable them
+     */
+    public void setMetrics(BTreeMetrics metrics) {
+    	this.metrics = metrics;
+    	bufferManager.setMetrics(metrics);
+    	getTree().setMetrics(metrics);
+    }
+
+    public BTreeMetrics getMetrics() {
+    	return metrics;
+    }
+
+    protected long startTimer() {
+    	if (metrics == null && !BTreeEvents.isSlowOperationEnabled()) {
+    		return 0;
+    	}
+    	return System.nanoTime();
+    }
+
+    /**
+     * Records the latency in the metrics, and emits a slow operation event 
+     * for look-ups and scans, see {@link BTreeEvents}.
+     */
+    protected void stopTimer(Operation op, long start) {
+    	if (start == 0) {
+    		return;
+    	}
+    	long nanos = System.nanoTime() - start;
+    	BTreeMetrics m = metrics;
+    	if (m != null) {
+    		m.recordLatency(op, nanos);
+    	}
+    	if (op == Operation.LOOKUP || op == Operation.SCAN) {
+    		BTreeEvents.slowOperation(dataType.name(), op.name(), nanos);
+    	}
+    }
 }
@@ -22,7 +22,12 @@ package org.zoodb.internal.server.index;
 
 import org.zoodb.internal.server.DiskIO;
 import org.zoodb.internal.server.IOResourceProvider;
+import org.zoodb.internal.server.index.btree.BTreeMetrics.Operation;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
+import org.zoodb.internal.server.index.btree.IntersectionCursor;
+import org.zoodb.internal.server.index.btree.SingleKeyValueCursor;
+import org.zoodb.internal.server.index.btree.UnionCursor;
+import org.zoodb.internal.server.index.btree.ValueCursor;
 import org.zoodb.internal.server.index.btree.nonunique.NonUniquePagedBTree;
 import org.zoodb.internal.server.index.btree.nonunique.NonUniquePagedBTreeNode;
 
@@ -53,13 +58,38 @@ public class BTreeIndexNonUnique extends BTreeIndex implements LongLongIndex {
     
     @Override
 	public long removeLong(long key, long value) {
-		return tree.delete(key, value);
+		long start = startTimer();
+		long ret = tree.delete(key, value);
+		stopTimer(Operation.DELETE, start);
+		return ret;
 	}
 
     @Override
     public void clear() {
     	bufferManager.clear(tree.getRoot());
 		tree = new NonUniquePagedBTree(tree.getPageSize(), bufferManager);
+		tree.setMetrics(getMetrics());
+    }
+
+    /**
+     * Enable or disable posting lists for leaves, see 
+     * {@link BTreeStorageBufferManager#setLeafPostingLists(boolean)}.
+     */
+    public void setLeafPostingLists(boolean enabled) {
+    	bufferManager.setLeafPostingLists(enabled);
+    	if (tree.isEmpty()) {
+    		//recreate the root with the new setting
+    		clear();
+    	}
+    }
+
+    /**
+     * Returns a cursor over the values of key in ascending order. Cursors of
+     * several keys or indexes can be combined with {@link IntersectionCursor}
+     * and {@link UnionCursor}.
+     */
+    public ValueCursor valueCursor(long key) {
+    	return new SingleKeyValueCursor(tree, key);
     }
 
 	@Override
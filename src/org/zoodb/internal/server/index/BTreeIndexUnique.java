@@ -20,14 +20,20 @@
  */
 package org.zoodb.internal.server.index;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
 import org.zoodb.internal.server.DiskIO;
 import org.zoodb.internal.server.IOResourceProvider;
 import org.zoodb.internal.server.index.LongLongIndex.LongLongUIndex;
+import org.zoodb.internal.server.index.btree.BTree.RangeEmptyCheck;
+import org.zoodb.internal.server.index.btree.BTreeMetrics.Operation;
+import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
+import org.zoodb.internal.server.index.btree.MappedBTree;
+import org.zoodb.internal.server.index.btree.PagedBTreeNode;
 import org.zoodb.internal.server.index.btree.unique.UniquePagedBTree;
 import org.zoodb.internal.server.index.btree.unique.UniquePagedBTreeNode;
 
-import java.util.NoSuchElementException;
-
 /**
  * Index backed by a B+ tree that does not allow duplicate keys.
  *
@@ -61,8 +67,35 @@ public class BTreeIndexUnique extends BTreeIndex implements LongLongUIndex  {
     	loadTree(rootPageId);
     }
 	
+	/**
+	 * Constructor for the sized index factories. Keys and values are stored
+	 * with the smallest supported size that can hold keySize and valSize bytes.
+	 * The sizes are recorded in the pages of the index.
+	 */
+	public BTreeIndexUnique(DiskIO.PAGE_TYPE dataType, IOResourceProvider file, int keySize, int valSize) {
+		super(dataType, file, true, true);
+		bufferManager.setElementSizes(
+				BTreeStorageBufferManager.toSupportedKeyElementSize(keySize),
+				BTreeStorageBufferManager.toSupportedValueElementSize(valSize));
+		initTree();
+	}
+
+	/**
+	 * Constructor for the sized index factories. The index is read with the 
+	 * sizes that are recorded in its pages, keySize and valSize are ignored. 
+	 * Indexes whose pages do not record them, including all indexes that 
+	 * were created before the sizes were honored, use 8 byte keys and values.
+	 */
+	public BTreeIndexUnique(DiskIO.PAGE_TYPE dataType, IOResourceProvider file, int rootPageId, 
+			int keySize, int valSize) {
+		super(dataType, file, true, true);
+		bufferManager.loadElementSizes(rootPageId);
+		loadTree(rootPageId);
+	}
+	
 	public void initTree() {
 		tree = new UniquePagedBTree(bufferManager.getPageSize(), bufferManager);
+		tree.setMetrics(getMetrics());
 	}
 	
 	public void loadTree(int rootPageId) {
@@ -73,33 +106,78 @@ public class BTreeIndexUnique extends BTreeIndex implements LongLongUIndex  {
 
     @Override
 	public LLEntry findValue(long key) {
-		Long value = tree.search(key);
-		if (value != null) { 
-            return new LLEntry(key, value);
-		} else { 
-			return null;
+		long start = startTimer();
+		long value = tree.search(key, Long.MIN_VALUE);
+		// only a stored MIN_VALUE requires a second look-up
+		boolean found = value != Long.MIN_VALUE || tree.containsKey(key);
+		stopTimer(Operation.LOOKUP, start);
+		return found ? new LLEntry(key, value) : null;
+	}
+
+	/**
+	 * Allocation free variant of findValue().
+	 * 
+	 * @param key
+	 * @param failValue    The value to return if the key is not found
+	 * @return the value of the key or failValue if the key is not found
+	 */
+	public long findValueNoFail(long key, long failValue) {
+		long start = startTimer();
+		long value = tree.search(key, failValue);
+		stopTimer(Operation.LOOKUP, start);
+		return value;
+	}
+
+	/**
+	 * Creates a read-only view of the index as it is stored in the database 
+	 * file, see {@link MappedBTree}. Changes of the index after this call 
+	 * are not visible in the view.
+	 * 
+	 * @param file     The database file
+	 * @return the view
+	 * @throws IOException if the file can not be mapped
+	 * @throws UnsupportedOperationException if leaf pages are compressed or 
+	 *         have dense keys, the view can not read them
+	 */
+	public MappedBTree mapReadOnly(FileChannel file) throws IOException {
+		if (bufferManager.isLeafPageCompression() || bufferManager.isLeafDenseKeys()) {
+			throw new UnsupportedOperationException(
+					"Compressed leaves and dense keys can not be mapped.");
+		}
+		PagedBTreeNode root = tree.getRoot();
+		if (root.isDirty()) {
+			throw new IllegalStateException("The index has not been written.");
 		}
+		return MappedBTree.map(file, bufferManager.getPageSize(), root.getPageId(),
+				bufferManager.getNodeKeyElementSize(), bufferManager.getNodeValueElementSize());
 	}
 
 	@Override
 	public long removeLong(long key) {
-		return tree.delete(key);
+		long start = startTimer();
+		long value = tree.delete(key);
+		stopTimer(Operation.DELETE, start);
+		return value;
 	}
 	
 	@Override
     public long removeLong(long key, long value) {
-		return getTree().delete(key);
+		return removeLong(key);
 	}
 
     @Override
 	public boolean insertLongIfNotSet(long key, long value) {
-        return tree.insert(key, value, true);
+		long start = startTimer();
+        boolean inserted = tree.insert(key, value, true);
+		stopTimer(Operation.INSERT, start);
+		return inserted;
 	}
     
     @Override
 	public void clear() {
     	bufferManager.clear(tree.getRoot());
 		tree = new UniquePagedBTree(tree.getPageSize(), bufferManager);
+		tree.setMetrics(getMetrics());
 	}
 
 	@Override
@@ -109,18 +187,19 @@ public class BTreeIndexUnique extends BTreeIndex implements LongLongUIndex  {
 
 	@Override
 	public long removeLongNoFail(long key, long failValue) {
-		try {
-			return removeLong(key);
-		} catch (NoSuchElementException e) {
-			return failValue;
-		}
+		long start = startTimer();
+		long value = tree.deleteNoFail(key, failValue);
+		stopTimer(Operation.DELETE, start);
+		return value;
 	}
 
 	@Override
 	public long deleteAndCheckRangeEmpty(long pos, long min, long max) {
-		long ret = removeLong(pos);
-		LongLongIterator<LLEntry> it = iterator(min, max);
-		if(!it.hasNext()) {
+		RangeEmptyCheck check = new RangeEmptyCheck(min, max);
+		long start = startTimer();
+		long ret = tree.delete(pos, check);
+		stopTimer(Operation.DELETE, start);
+		if (check.isRangeEmpty()) {
 			file.reportFreePage(BitTools.getPage(pos));
 		}
 
@@ -63,6 +63,52 @@ public class AscendingBTreeLeafEntryIterator extends BTreeLeafEntryIterator {
         }
     }
 
+    @Override
+    public void seek(long key) {
+        seekCeiling(key, Long.MIN_VALUE);
+    }
+
+    /**
+     * Move the iterator forward to the first entry that is not smaller than
+     * key/value. The value is ignored for unique trees.
+     *
+     * Only the current leaf is searched if it contains the target, otherwise
+     * the ancestors are climbed only as far as needed.
+     *
+     * @param key
+     * @param value
+     */
+    public void seekCeiling(long key, long value) {
+        checkValidity();
+        if (curLeaf == null || compareEntry(curLeaf, curPos, key, value) >= 0) {
+            return;
+        }
+        if (compareEntry(curLeaf, curLeaf.getNumKeys() - 1, key, value) < 0) {
+            seekLeaf(key, value, true);
+            curPos = 0;
+        }
+        int low = curPos;
+        int high = curLeaf.getNumKeys();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareEntry(curLeaf, mid, key, value) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == curLeaf.getNumKeys()) {
+            // the target is between this and the next leaf
+            curPos = low - 1;
+            updatePosition();
+        } else {
+            curPos = low;
+            if (curLeaf.getKey(curPos) > max) {
+                curLeaf = null;
+            }
+        }
+    }
+
     void setFirstLeaf() {
         if (tree.isEmpty()) {
             return;
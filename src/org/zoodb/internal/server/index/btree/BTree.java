@@ -44,6 +44,9 @@ public abstract class BTree {
     private final boolean isUnique;
     
     private int modcount = 0; // number of modifications of the tree
+    private long deletedValue; // value removed by the last delete descent
+    // counts splits, merges and redistributions, null if disabled
+    private BTreeMetrics metrics;
     
     public BTree(int pageSize, BTreeNodeFactory nodeFactory, boolean isUnique) {
     	this(null, pageSize, nodeFactory, isUnique);
@@ -141,6 +144,7 @@ public abstract class BTree {
         BTreeNode right;
         BTreeNode left = root;
         swapRoot(newRoot);
+        recordStructureChange(BTreeEvents.ROOT_SPLIT, left);
         if (left.isLeaf()) {
             right = split(left);
             root.put(right.getSmallestKey(), right.getSmallestValue(), left, right);
@@ -151,6 +155,7 @@ public abstract class BTree {
     }
 
     private void handleInsertOverflow(BTreeNode child, BTreeNode parent, int childIndex) {
+        recordStructureChange(BTreeEvents.SPLIT, child);
         if (child.isLeaf()) {
             putLeafInParent(child, parent, childIndex);
         } else {
@@ -243,47 +248,227 @@ public abstract class BTree {
      * @return
      */
 	protected long deleteEntry(long key, long value) {
-		if (root.getNumKeys() == 0) {
-			throw new NoSuchElementException();
+		return deleteEntry(key, value, null);
+	}
+
+    /**
+     * Deletes a key/value pair from a tree and then
+     * performs a re-balance operation.
+     *
+     * If rangeCheck is not null, it is evaluated during the same descent,
+     * see {@link RangeEmptyCheck}.
+     *
+     * @param key
+     * @param value
+     * @param rangeCheck        The range check or null
+     * @return
+     */
+	protected long deleteEntry(long key, long value, RangeEmptyCheck rangeCheck) {
+		if (root.getNumKeys() == 0 || !delete(root, key, value, rangeCheck)) {
+			throw new NoSuchElementException("key not found: " + key + " / " + value);
 		}
+		afterDelete(key);
+		return deletedValue;
+	}
 
+    /**
+     * Deletes a key/value pair from a tree, if it exists, and then
+     * performs a re-balance operation. The tree is not modified if the
+     * pair does not exist.
+     *
+     * @param key
+     * @param value
+     * @param failValue         The value to return if the pair is not found
+     * @return                  The value associated with the key or failValue
+     */
+	protected long deleteEntryNoFail(long key, long value, long failValue) {
+		if (root.getNumKeys() == 0 || !delete(root, key, value, null)) {
+			return failValue;
+		}
+		afterDelete(key);
+		return deletedValue;
+	}
+
+	private void afterDelete(long key) {
         increaseModcount();
-        long oldValue = delete(root, key, value);
         if (root.overflows()) {
             handleRootOverflow();
         }
         recomputeMinAndMax(key);
-        return oldValue;
+	}
+
+    /**
+     * Removes all entries with keys between min and max (inclusive).
+     *
+     * Sub-trees that are fully covered by the range are detached in one step
+     * and their pages are freed without reading their leaves. Only the nodes on
+     * the paths to the two boundary leaves are modified and re-balanced.
+     *
+     * @param min               The smallest key to remove
+     * @param max               The largest key to remove
+     */
+    public void removeRange(long min, long max) {
+        if (min > max || root.getNumKeys() == 0) {
+            return;
+        }
+
+        increaseModcount();
+        int height = height();
+        if (removeRange(root, min, max, height) && !root.isLeaf()) {
+            //nothing is left, replace the root by an empty leaf
+            root.closeChildSubtree(0, height - 1);
+            BTreeNode oldRoot = root;
+            swapRoot(nodeFactory.newNode(isUnique(), getPageSize(), true, true));
+            oldRoot.close();
+            root.recomputeSize();
+        }
+        if (root.overflows()) {
+            handleRootOverflow();
+        }
+        while (!root.isLeaf() && root.getNumKeys() == 0) {
+            BTreeNode oldRoot = root;
+            swapRoot(root.getChild(0));
+            oldRoot.close();
+            recordStructureChange(BTreeEvents.ROOT_MERGE, root);
+        }
+        if (min <= minKey && minKey <= max) {
+            minKey = computeMinKey();
+        }
+        if (min <= maxKey && maxKey <= max) {
+            maxKey = computeMaxKey();
+        }
+    }
+
+    /**
+     * Removes the range from the sub-tree rooted at node.
+     *
+     * @param height            The height of the node, 0 for leaves
+     * @return                  true if the sub-tree is empty afterwards
+     */
+    private boolean removeRange(BTreeNode node, long min, long max, int height) {
+        node.markChanged();
+        if (node.isLeaf()) {
+            node.deleteRange(min, max);
+            return node.getNumKeys() == 0;
+        }
+
+        int lo = node.findKeyValuePos(min, Long.MIN_VALUE);
+        int hi = node.findKeyValuePos(max, Long.MAX_VALUE);
+        if (hi - lo > 1) {
+            //detach the children between the boundary children, the key left
+            //of them still separates the boundary children
+            for (int i = lo + 1; i < hi; i++) {
+                node.closeChildSubtree(i, height - 1);
+            }
+            node.shiftRecordsLeftWithIndex(lo + 1, hi - lo - 1);
+            node.decreaseNumKeys(hi - lo - 1);
+            hi = lo + 1;
+        }
+
+        boolean rightEmpty = hi > lo && removeRange(node.getChild(hi), min, max, height - 1);
+        boolean leftEmpty = removeRange(node.getChild(lo), min, max, height - 1);
+        if (rightEmpty) {
+            removeChild(node, hi, height - 1);
+        }
+        if (leftEmpty) {
+            if (node.getNumKeys() == 0) {
+                return true;
+            }
+            removeChild(node, lo, height - 1);
+        }
+
+        //re-balance the boundary children, the right one first because
+        //merges move the children to the left
+        boolean wasRoot = node.isRoot();
+        for (int i = Math.min(lo + 1, node.getNumKeys()); i >= lo; i--) {
+            if (i > node.getNumKeys()) {
+                continue;
+            }
+            BTreeNode child = node.getChild(i);
+            node.setChildSize(child.getCurrentSize(), i);
+            if (child.isUnderFull()) {
+                rebalance(node, child, i);
+                if (wasRoot && !node.isRoot()) {
+                    //the root has been merged into its child
+                    return false;
+                }
+            }
+        }
+        //merges with an empty inner node may overflow
+        for (int i = Math.min(lo + 1, node.getNumKeys()); i >= Math.max(lo - 1, 0); i--) {
+            BTreeNode child = node.getChild(i);
+            if (child.overflows()) {
+                handleInsertOverflow(child, node, i);
+            }
+            node.setChildSize(child.getCurrentSize(), i);
+        }
+        node.recomputeSize();
+        return false;
+    }
+
+    private void removeChild(BTreeNode node, int childIndex, int childHeight) {
+        node.closeChildSubtree(childIndex, childHeight);
+        if (childIndex < node.getNumKeys()) {
+            //removes the child together with the key right of it
+            node.shiftRecordsLeftWithIndex(childIndex, 1);
+        }
+        node.decreaseNumKeys(1);
+        node.recomputeSize();
+    }
+
+    private int height() {
+        int height = 0;
+        BTreeNode node = root;
+        while (!node.isLeaf()) {
+            node = node.getChild(0);
+            height++;
+        }
+        return height;
     }
 
     /**
      * Delete a key/value pair the sub-tree rooted at node.
      *
+     * The nodes are only marked as changed if the pair is found, the
+     * deleted value is then available in deletedValue.
      *
      * @param node
      * @param key
      * @param value
-     * @return                  The value associated with the key.
+     * @param rangeCheck        The range check or null
+     * @return                  true if the pair was found and deleted
      */
-    private long delete(BTreeNode node, long key, long value) {
-        node.markChanged();
-        long oldValue;
+    private boolean delete(BTreeNode node, long key, long value, RangeEmptyCheck rangeCheck) {
         if (node.isLeaf()) {
-            oldValue = deleteFromLeaf(node, key, value);
-        } else {
-            int childIndex = node.findKeyValuePos(key, value);
-            BTreeNode child = node.getChild(childIndex);
-            oldValue = delete(child, key, value);
-            node.setChildSize(child.getCurrentSize(), childIndex);
-
-            if (child.isUnderFull()) {
-                rebalance(node, child, childIndex);
+            if (node.binarySearch(key, value) < 0) {
+                return false;
             }
-            if (child.overflows()) {
-                handleInsertOverflow(child, node, childIndex);
+            if (rangeCheck != null) {
+                // inspect the leaf before it is re-balanced
+                rangeCheck.inspectLeaf(node, key, value);
             }
+            node.markChanged();
+            deletedValue = deleteFromLeaf(node, key, value);
+            return true;
         }
-        return oldValue;
+        int childIndex = node.findKeyValuePos(key, value);
+        if (rangeCheck != null) {
+            rangeCheck.descend(node, childIndex);
+        }
+        BTreeNode child = node.getChild(childIndex);
+        if (!delete(child, key, value, rangeCheck)) {
+            return false;
+        }
+        node.markChanged();
+        node.setChildSize(child.getCurrentSize(), childIndex);
+
+        if (child.isUnderFull()) {
+            rebalance(node, child, childIndex);
+        }
+        if (child.overflows()) {
+            handleInsertOverflow(child, node, childIndex);
+        }
+        return true;
     }
 
     /**
@@ -310,6 +495,9 @@ public abstract class BTree {
              mergeWithRight(this, child, rightSibling, node, childIndex);
          } else {
              boolean splitIntoLeftAndRight = splitIntoLeftAndRight(child, leftSibling, rightSibling, node, childIndex);
+             if (splitIntoLeftAndRight) {
+                 recordStructureChange(BTreeEvents.REDISTRIBUTION, child);
+             }
              if (!splitIntoLeftAndRight) {
                  if (leftSibling != null && leftSibling.hasExtraKeys()) {
                      redistributeKeysFromLeft(child, leftSibling, node, childIndex - 1);
@@ -381,6 +569,94 @@ public abstract class BTree {
         }
     }
 
+    /**
+     * Looks up a batch of keys in a single descent.
+     *
+     * The keys are distributed over the children of each inner node, so every
+     * node on the paths to the involved leaves is visited once and all keys
+     * that fall into the same leaf are resolved together.
+     *
+     * In a non-unique tree only the first value per key is returned, the 
+     * other values of the key are skipped. Callers that need all values 
+     * have to iterate over the key range [key, key].
+     *
+     * @param keys              The keys, sorted ascending
+     * @param values            Receives, for each key, the first (smallest) 
+     *                          value stored with it or failValue
+     * @param n                 The number of keys
+     * @param failValue         The value for keys that are not found
+     */
+    public void searchSorted(long[] keys, long[] values, int n, long failValue) {
+        if (n < 0 || n > keys.length || n > values.length) {
+            throw new IllegalArgumentException("Invalid number of keys: " + n + " for " 
+                    + keys.length + " keys and " + values.length + " values");
+        }
+        int resolved = searchSorted(root, keys, values, 0, n, failValue);
+        for (int i = resolved; i < n; i++) {
+            values[i] = failValue;
+        }
+    }
+
+    /**
+     * @return          The index of the first key that is larger than all
+     *                  entries of the sub-tree. The entries for these keys
+     *                  can only be in the following sub-trees.
+     */
+    private int searchSorted(BTreeNode node, long[] keys, long[] values, int from, int to,
+            long failValue) {
+        if (node.isLeaf()) {
+            int pos = 0;
+            for (int i = from; i < to; i++) {
+                // the keys are sorted, continue from the previous position
+                pos = lowerBound(node, keys[i], pos);
+                if (pos == node.getNumKeys()) {
+                    // unique keys can not be in the next leaf
+                    if (!isUnique) {
+                        return i;
+                    }
+                    values[i] = failValue;
+                } else {
+                    values[i] = node.getKey(pos) == keys[i] ? node.getValue(pos) : failValue;
+                }
+            }
+            return to;
+        }
+        if (from >= to) {
+            return to;
+        }
+        int i = from;
+        int childIndex = node.findKeyValuePos(keys[i], Long.MIN_VALUE);
+        while (i < to) {
+            int end = i + 1;
+            while (end < to && node.findKeyValuePos(keys[end], Long.MIN_VALUE) <= childIndex) {
+                end++;
+            }
+            i = searchSorted(node.getChild(childIndex), keys, values, i, end, failValue);
+            if (i < to) {
+                if (childIndex == node.getNumKeys()) {
+                    return i;
+                }
+                childIndex = i < end ? childIndex + 1 : node.findKeyValuePos(keys[i], Long.MIN_VALUE);
+            }
+        }
+        return to;
+    }
+
+    // position of the first entry with a key not smaller than key
+    private static int lowerBound(BTreeNode leaf, long key, int from) {
+        int low = from;
+        int high = leaf.getNumKeys();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (leaf.getKey(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
     public BTreeNodeFactory getNodeFactory() {
         return nodeFactory;
     }
@@ -420,7 +696,9 @@ public abstract class BTree {
         //check if parent needs merging -> tree gets smaller
         if (parent.isRoot() && parent.getNumKeys() == 1) {
             parent = rootMergeWithRight(tree, current, right, parent);
+            recordStructureChange(BTreeEvents.ROOT_MERGE, parent);
         } else {
+            recordStructureChange(BTreeEvents.MERGE, current);
             if (right.isLeaf()) {
                 leafMergeWithRight(current, right, parent, keyIndex);
             } else {
@@ -453,7 +731,9 @@ public abstract class BTree {
         //check if we need to merge with parent
         if (parent.getNumKeys() == 1 && parent.isRoot()) {
             parent = rootMergeWithLeft(tree, current, left, parent);
+            recordStructureChange(BTreeEvents.ROOT_MERGE, parent);
         } else {
+            recordStructureChange(BTreeEvents.MERGE, current);
             if (current.isLeaf()) {
                 leafMergeWithLeft(current, left, parent, keyIndex);
             } else {
@@ -490,6 +770,7 @@ public abstract class BTree {
         }
         parent.setChildSize(current.getCurrentSize(), parentKeyIndex);
         parent.setChildSize(right.getCurrentSize(), parentKeyIndex + 1);
+        recordStructureChange(BTreeEvents.REDISTRIBUTION, current);
         return keysToMove;
     }
 
@@ -519,6 +800,7 @@ public abstract class BTree {
         }
         parent.setChildSize(left.getCurrentSize(), parentKeyIndex);
         parent.setChildSize(current.getCurrentSize(), parentKeyIndex + 1);
+        recordStructureChange(BTreeEvents.REDISTRIBUTION, current);
     }
 
     private int computeKeysToMoveFromLeft(BTreeNode current, BTreeNode left) {
@@ -913,6 +1195,42 @@ public abstract class BTree {
         return pageSize;
     }
 
+    /**
+     * @param metrics   Counts splits, merges and redistributions, or null
+     */
+    public void setMetrics(BTreeMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public BTreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    // updates the metrics and emits a flight recorder event, see BTreeEvents
+    private void recordStructureChange(String operation, BTreeNode node) {
+        BTreeEvents.structure(operation, node);
+        if (metrics == null) {
+            return;
+        }
+        switch (operation) {
+        case BTreeEvents.ROOT_SPLIT:
+            metrics.recordRootSplit();
+            metrics.recordSplit();
+            break;
+        case BTreeEvents.SPLIT:
+            metrics.recordSplit();
+            break;
+        case BTreeEvents.ROOT_MERGE:
+            metrics.recordRootMerge();
+            break;
+        case BTreeEvents.MERGE:
+            metrics.recordMerge();
+            break;
+        default:
+            metrics.recordRedistribution();
+        }
+    }
+
     private void recomputeMinAndMaxAfterInsert(long newKey) {
         minKey = Math.min(newKey, minKey);
         maxKey = Math.max(newKey, maxKey);
@@ -926,4 +1244,93 @@ public abstract class BTree {
             maxKey = computeMaxKey();
         }
     }
+
+    /**
+     * Checks whether a tree contains any other key in [min, max] than the
+     * one being deleted.
+     *
+     * The check is done on the path of the deletion, before the leaf is
+     * modified. Only the leaf and, if the deleted key is at a border of the
+     * leaf, the neighbouring leaf are inspected. The neighbour is not read at
+     * all if the separator key in the common ancestor already excludes it
+     * from the range.
+     *
+     * The deleted key must be in [min, max]: only the keys next to it are
+     * inspected, keys further away are assumed to be outside the range.
+     */
+    public static final class RangeEmptyCheck {
+
+        private final long min;
+        private final long max;
+        // deepest ancestor with a child left/right of the path, and that child's index
+        private BTreeNode leftParent;
+        private int leftIndex;
+        private BTreeNode rightParent;
+        private int rightIndex;
+        private boolean isEmpty;
+
+        public RangeEmptyCheck(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * @return true if the tree contained no other key in [min, max] than
+         *         the deleted one
+         */
+        public boolean isRangeEmpty() {
+            return isEmpty;
+        }
+
+        void descend(BTreeNode node, int childIndex) {
+            if (childIndex > 0) {
+                leftParent = node;
+                leftIndex = childIndex - 1;
+            }
+            if (childIndex < node.getNumKeys()) {
+                rightParent = node;
+                rightIndex = childIndex + 1;
+            }
+        }
+
+        void inspectLeaf(BTreeNode leaf, long key, long value) {
+            assert min <= key && key <= max : key + " is not in [" + min + ", " + max + "]";
+            int pos = leaf.binarySearch(key, value);
+            if (pos < 0) {
+                // the deletion fails anyway
+                return;
+            }
+            boolean hasLeft = pos > 0
+                    ? leaf.getKey(pos - 1) >= min
+                    : leftNeighbourHasKeyAtLeast();
+            boolean hasRight = !hasLeft && (pos < leaf.getNumKeys() - 1
+                    ? leaf.getKey(pos + 1) <= max
+                    : rightNeighbourHasKeyAtMost());
+            isEmpty = !hasLeft && !hasRight;
+        }
+
+        private boolean leftNeighbourHasKeyAtLeast() {
+            // the keys left of a separator are not larger than the separator
+            if (leftParent == null || leftParent.getKey(leftIndex) < min) {
+                return false;
+            }
+            BTreeNode node = leftParent.getChild(leftIndex);
+            while (!node.isLeaf()) {
+                node = node.getChild(node.getNumKeys());
+            }
+            return node.getNumKeys() > 0 && node.getKey(node.getNumKeys() - 1) >= min;
+        }
+
+        private boolean rightNeighbourHasKeyAtMost() {
+            // the keys right of a separator are not smaller than the separator
+            if (rightParent == null || rightParent.getKey(rightIndex - 1) > max) {
+                return false;
+            }
+            BTreeNode node = rightParent.getChild(rightIndex);
+            while (!node.isLeaf()) {
+                node = node.getChild(0);
+            }
+            return node.getNumKeys() > 0 && node.getKey(0) <= max;
+        }
+    }
 }
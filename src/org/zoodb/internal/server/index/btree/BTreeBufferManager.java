@@ -33,6 +33,18 @@ public interface BTreeBufferManager {
 	 */
 	public PagedBTreeNode read(int pageId);
 
+	/**
+	 * returns the child at index of parent, the buffer manager may use this 
+	 * to read ahead the following children
+	 */
+	public PagedBTreeNode readChild(PagedBTreeNode parent, int index);
+
+	/**
+	 * called when a node accesses a child that it references directly,
+	 * without asking the buffer manager
+	 */
+	public void touch(PagedBTreeNode child);
+
 	/**
 	 * saves the node in the buffer manager
 	 */
@@ -42,6 +54,12 @@ public interface BTreeBufferManager {
 	 * deletes a node from the buffer manager
 	 */
 	public void remove(PagedBTreeNode node);
+
+    /**
+	 * deletes the sub-tree with the given height (0 for a leaf) rooted at 
+	 * pageId from the buffer manager
+	 */
+	public void removeSubtree(int pageId, int height);
 	
     /**
 	 * writes the node to the storage channel
@@ -73,6 +91,37 @@ public interface BTreeBufferManager {
      */
 	public int getNodeValueElementSize();
 
+    /**
+     * returns the size in bytes of a nodes key element, 4 or 8
+     */
+	public int getNodeKeyElementSize();
+
+    /**
+     * returns true if the values of leaf nodes may be stored prefix-shared
+     */
+	public boolean isLeafValuePrefixSharing();
+
+    /**
+     * returns true if the entries of non-unique leaf nodes may be stored as posting lists
+     */
+	public boolean isLeafPostingLists();
+
+    /**
+     * returns true if runs of consecutive keys in leaf nodes may be stored dense
+     */
+	public boolean isLeafDenseKeys();
+
+    /**
+     * returns true if leaf pages are compressed
+     */
+	public boolean isLeafPageCompression();
+
+    /**
+     * returns the size of the leaf in storage with its page compressed (including 
+     * all metadata), or -1 if leaf pages are not compressed
+     */
+	public int getCompressedLeafSizeInStorage(PagedBTreeNode node);
+
     /**
 	 * writes the node to the storage channel
 	 */
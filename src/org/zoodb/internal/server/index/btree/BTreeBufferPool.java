@@ -0,0 +1,162 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A memory budget for the clean nodes of several trees, usually all indexes
+ * of a database.
+ *
+ * Every buffer manager that is registered with the pool still keeps its own
+ * clean buffer, but the total number of clean nodes of all buffer managers
+ * is limited to maxCleanNodes. When a buffer manager needs room for another
+ * node and the budget is used up, a batch of nodes of the coldest buffer
+ * manager is evicted. The temperature of a buffer manager is the number of
+ * nodes that it has read, which is halved after every eviction, so that
+ * recently used indexes keep their nodes.
+ *
+ * Nodes are only evicted on the threads of their buffer manager. If the
+ * coldest buffer manager is another one, it is asked to evict the batch the
+ * next time it uses a node. Until then, the budget may be exceeded by one
+ * batch per buffer manager.
+ *
+ * Pinned and dirty nodes are not part of the budget.
+ */
+public class BTreeBufferPool {
+
+	private final int maxCleanNodes;
+	private final int evictionBatchSize;
+	// updated by the page tables of the buffer managers
+	private final AtomicInteger numCleanNodes = new AtomicInteger();
+	// the pool must not keep indexes alive that are not used anymore
+	private final List<WeakReference<BTreeStorageBufferManager>> bufferManagers =
+			new ArrayList<>();
+	private int statNEvictions = 0;
+
+	public BTreeBufferPool(int maxCleanNodes) {
+		if (maxCleanNodes <= 0) {
+			throw new IllegalArgumentException("Invalid budget: " + maxCleanNodes);
+		}
+		this.maxCleanNodes = maxCleanNodes;
+		this.evictionBatchSize = Math.max(1, maxCleanNodes / 16);
+	}
+
+	synchronized void register(BTreeStorageBufferManager bufferManager) {
+		bufferManagers.add(new WeakReference<>(bufferManager));
+	}
+
+	synchronized void unregister(BTreeStorageBufferManager bufferManager) {
+		Iterator<WeakReference<BTreeStorageBufferManager>> it = bufferManagers.iterator();
+		while (it.hasNext()) {
+			BTreeStorageBufferManager bm = it.next().get();
+			if (bm == null || bm == bufferManager) {
+				it.remove();
+			}
+		}
+	}
+
+	AtomicInteger getCleanNodeCounter() {
+		return numCleanNodes;
+	}
+
+	/**
+	 * Makes room for one more clean node of a buffer manager. The requester
+	 * evicts its own nodes if it is the coldest buffer manager, other
+	 * buffer managers are asked to evict theirs.
+	 *
+	 * @param requester    The buffer manager that adds the node
+	 */
+	void reserve(BTreeStorageBufferManager requester) {
+		if (numCleanNodes.get() < maxCleanNodes) {
+			return;
+		}
+		synchronized (this) {
+			while (numCleanNodes.get() >= maxCleanNodes) {
+				BTreeStorageBufferManager victim = null;
+				long victimUses = 0;
+				Iterator<WeakReference<BTreeStorageBufferManager>> it = bufferManagers.iterator();
+				while (it.hasNext()) {
+					BTreeStorageBufferManager bm = it.next().get();
+					if (bm == null) {
+						it.remove();
+						continue;
+					}
+					// skip buffer managers that have not evicted their last batch yet
+					if (bm.getCleanBuffer().isEmpty() || bm.hasRequestedEviction()) {
+						continue;
+					}
+					long uses = bm.getPoolUses();
+					// on a tie, evict the nodes of the other buffer manager
+					if (victim == null || uses < victimUses
+							|| (uses == victimUses && victim == requester)) {
+						victim = bm;
+						victimUses = uses;
+					}
+				}
+				if (victim == null) {
+					return;
+				}
+				if (victim == requester) {
+					requester.evictCleanNodes(evictionBatchSize);
+				} else {
+					victim.requestEviction(evictionBatchSize);
+				}
+				statNEvictions++;
+				for (WeakReference<BTreeStorageBufferManager> ref : bufferManagers) {
+					BTreeStorageBufferManager bm = ref.get();
+					if (bm != null) {
+						bm.agePoolUses();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of clean nodes of all registered buffer managers
+	 */
+	public int getNumCleanNodes() {
+		return numCleanNodes.get();
+	}
+
+	public int getMaxCleanNodes() {
+		return maxCleanNodes;
+	}
+
+	/**
+	 * @return The number of nodes that are evicted at once
+	 */
+	public int getEvictionBatchSize() {
+		return evictionBatchSize;
+	}
+
+	/**
+	 * @return The number of evicted batches
+	 */
+	public synchronized int getStatNEvictions() {
+		return statNEvictions;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the B-tree indexes.
+ *
+ * All events are disabled by default and have to be enabled in the 
+ * recording settings, e.g. with 
+ * <pre>
+ * org.zoodb.btree.PageRead#enabled=true
+ * </pre>
+ * An event object that is not committed is removed by the JIT, so that 
+ * disabled events cost a check of a flag.
+ */
+public final class BTreeEvents {
+
+	public static final String SPLIT = "split";
+	public static final String ROOT_SPLIT = "rootSplit";
+	public static final String MERGE = "merge";
+	public static final String ROOT_MERGE = "rootMerge";
+	public static final String REDISTRIBUTION = "redistribution";
+
+	private static volatile long slowOperationThresholdNanos = 10_000_000L;
+
+	private BTreeEvents() {
+		// static methods only
+	}
+
+	@Name("org.zoodb.btree.Structure")
+	@Label("B-Tree Structural Change")
+	@Description("A split, merge or redistribution of nodes, or a change of the tree height")
+	@Category({ "ZooDB", "B-Tree" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class StructureEvent extends Event {
+		@Label("Operation")
+		String operation;
+		@Label("Leaf")
+		boolean leaf;
+		@Label("Keys")
+		int numKeys;
+	}
+
+	@Name("org.zoodb.btree.PageRead")
+	@Label("B-Tree Page Read")
+	@Description("A node is read from storage and decoded")
+	@Category({ "ZooDB", "B-Tree" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class PageReadEvent extends Event {
+		@Label("Page Id")
+		int pageId;
+		@Label("Leaf")
+		boolean leaf;
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+	}
+
+	@Name("org.zoodb.btree.PageWrite")
+	@Label("B-Tree Page Write")
+	@Description("A node is encoded and written to storage")
+	@Category({ "ZooDB", "B-Tree" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class PageWriteEvent extends Event {
+		@Label("Page Id")
+		int pageId;
+		@Label("Leaf")
+		boolean leaf;
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+	}
+
+	@Name("org.zoodb.btree.PageEvict")
+	@Label("B-Tree Page Eviction")
+	@Description("A clean node is evicted from the buffer")
+	@Category({ "ZooDB", "B-Tree" })
+	@Enabled(false)
+	@StackTrace(false)
+	static class PageEvictEvent extends Event {
+		@Label("Page Id")
+		int pageId;
+		@Label("Leaf")
+		boolean leaf;
+	}
+
+	@Name("org.zoodb.btree.SlowOperation")
+	@Label("B-Tree Slow Operation")
+	@Description("A look-up or scan that took longer than the threshold")
+	@Category({ "ZooDB", "B-Tree" })
+	@Enabled(false)
+	public static class SlowOperationEvent extends Event {
+		@Label("Index")
+		String index;
+		@Label("Operation")
+		String operation;
+		@Label("Elapsed")
+		@Timespan
+		long elapsed;
+	}
+
+	/**
+	 * @param operation   One of SPLIT, ROOT_SPLIT, MERGE, ROOT_MERGE or 
+	 *                    REDISTRIBUTION
+	 * @param node        The node that is split or merged
+	 */
+	static void structure(String operation, BTreeNode node) {
+		StructureEvent event = new StructureEvent();
+		if (event.isEnabled()) {
+			event.operation = operation;
+			event.leaf = node.isLeaf();
+			event.numKeys = node.getNumKeys();
+			event.commit();
+		}
+	}
+
+	static void pageEvicted(PagedBTreeNode node) {
+		PageEvictEvent event = new PageEvictEvent();
+		if (event.isEnabled()) {
+			event.pageId = node.getPageId();
+			event.leaf = node.isLeaf();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Slow operation events are only recorded for operations that take 
+	 * longer than the threshold, 10 ms by default.
+	 */
+	public static void setSlowOperationThreshold(long nanos) {
+		if (nanos < 0) {
+			throw new IllegalArgumentException("Invalid threshold: " + nanos);
+		}
+		slowOperationThresholdNanos = nanos;
+	}
+
+	public static long getSlowOperationThreshold() {
+		return slowOperationThresholdNanos;
+	}
+
+	public static boolean isSlowOperationEnabled() {
+		return new SlowOperationEvent().isEnabled();
+	}
+
+	public static void slowOperation(String index, String operation, long nanos) {
+		if (nanos < slowOperationThresholdNanos) {
+			return;
+		}
+		SlowOperationEvent event = new SlowOperationEvent();
+		if (event.isEnabled()) {
+			event.index = index;
+			event.operation = operation;
+			event.elapsed = nanos;
+			event.commit();
+		}
+	}
+}
@@ -94,6 +94,16 @@ public abstract class BTreeLeafEntryIterator implements
      */
     abstract void setFirstLeaf();
 
+    /**
+     * Move the iterator forward, in iteration order, to the first entry whose
+     * key is not before key. That is the first entry with a key {@code >= key}
+     * for ascending iterators and the last entry with a key {@code <= key}
+     * for descending iterators. Seeking backwards does not move the iterator.
+     *
+     * @param key
+     */
+    public abstract void seek(long key);
+
 	public BTreeLeafEntryIterator(BTree tree) {
 		this(tree, Long.MIN_VALUE, Long.MAX_VALUE);
 	}
@@ -158,7 +168,40 @@ public abstract class BTreeLeafEntryIterator implements
 
 	@Override
 	public long nextKey() {
-		return this.next().getKey();
+		long key = peekKey();
+		updatePosition();
+		return key;
+	}
+
+	/**
+	 * @return the key of the next entry, without moving the iterator.
+	 */
+	public long peekKey() {
+		checkValidity();
+		if (curLeaf == null) {
+			throw new NoSuchElementException();
+		}
+		return curLeaf.getKey(curPos);
+	}
+
+	/**
+	 * @return the value of the next entry, without moving the iterator.
+	 */
+	public long peekValue() {
+		checkValidity();
+		if (curLeaf == null) {
+			throw new NoSuchElementException();
+		}
+		return curLeaf.getValue(curPos);
+	}
+
+	/**
+	 * @return the value of the next entry, without creating an LLEntry.
+	 */
+	public long nextValue() {
+		long value = peekValue();
+		updatePosition();
+		return value;
 	}
 
     /**
@@ -221,6 +264,60 @@ public abstract class BTreeLeafEntryIterator implements
 		return ((PagedBTree)tree).getBufferManager().getTxId();
 	}
 
+    /**
+     * Move curLeaf to the leaf to which key/value is routed, using the
+     * ancestor stack. Only the ancestors whose sub-trees may not contain
+     * key/value are left.
+     *
+     * @param key
+     * @param value
+     * @param ascending     true if key/value is after the current entry,
+     *                      false if it is before the current entry
+     */
+    protected void seekLeaf(long key, long value, boolean ascending) {
+        if (ancestors.size() == 0) {
+            // the root is a leaf
+            return;
+        }
+        BTreeNode node = ancestors.pop();
+        positions.pop();
+        // the separators of a node only bound its sub-tree if the target is
+        // not routed to its last (first) child, the root bounds everything
+        while (ancestors.size() > 0 && !isRoutedInto(node, key, value, ascending)) {
+            node = ancestors.pop();
+            positions.pop();
+        }
+        while (!node.isLeaf()) {
+            int position = node.findKeyValuePos(key, value);
+            ancestors.push(node);
+            positions.push(position);
+            node = node.getChild(position);
+        }
+        curLeaf = node;
+    }
+
+    // true if key/value does not route beyond the last (first) child of node
+    private static boolean isRoutedInto(BTreeNode node, long key, long value, boolean ascending) {
+        int position = node.findKeyValuePos(key, value);
+        return ascending ? position < node.getNumKeys() : position > 0;
+    }
+
+    /**
+     * Compare the entry at pos of the leaf with key/value. Values are only
+     * compared for non-unique trees.
+     */
+    protected int compareEntry(BTreeNode leaf, int pos, long key, long value) {
+        long entryKey = leaf.getKey(pos);
+        if (entryKey != key) {
+            return entryKey < key ? -1 : 1;
+        }
+        if (tree.isUnique()) {
+            return 0;
+        }
+        long entryValue = leaf.getValue(pos);
+        return entryValue < value ? -1 : (entryValue == value ? 0 : 1);
+    }
+
 	protected void populateAncestorStack(long key, long value) {
         BTreeNode current = tree.getRoot();
         int position;
@@ -49,6 +49,16 @@ public class BTreeMemoryBufferManager implements BTreeBufferManager {
 		return map.get(pageId);
 	}
 
+	@Override
+	public PagedBTreeNode readChild(PagedBTreeNode parent, int index) {
+		return read(parent.getChildrenPageIds()[index]);
+	}
+
+	@Override
+	public void touch(PagedBTreeNode child) {
+		// nothing to do
+	}
+
 	@Override
 	public int write(PagedBTreeNode node, StorageChannelOutput out) {
 		pageId++;
@@ -69,6 +79,17 @@ public class BTreeMemoryBufferManager implements BTreeBufferManager {
 		return; 
 	}
 
+	@Override
+	public void removeSubtree(int pageId, int height) {
+		PagedBTreeNode node = map.get(pageId);
+		if (height > 0) {
+			for (int i = 0; i <= node.getNumKeys(); i++) {
+				removeSubtree(node.getChildrenPageIds()[i], height - 1);
+			}
+		}
+		map.remove(pageId);
+	}
+
 	@Override
 	public void clear(PagedBTreeNode node) {
 		pageId = 0;
@@ -99,6 +120,36 @@ public class BTreeMemoryBufferManager implements BTreeBufferManager {
 		return 8;
 	}
 
+	@Override
+	public int getNodeKeyElementSize() {
+		return 8;
+	}
+
+	@Override
+	public boolean isLeafValuePrefixSharing() {
+		return false;
+	}
+
+	@Override
+	public boolean isLeafPostingLists() {
+		return false;
+	}
+
+	@Override
+	public boolean isLeafDenseKeys() {
+		return false;
+	}
+
+	@Override
+	public boolean isLeafPageCompression() {
+		return false;
+	}
+
+	@Override
+	public int getCompressedLeafSizeInStorage(PagedBTreeNode node) {
+		return -1;
+	}
+
 	@Override
 	public void updatePageStatus(PagedBTreeNode node) {
 		// do nothing
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of one or several indexes, see 
+ * {@link org.zoodb.internal.server.index.BTreeIndex#setMetrics(BTreeMetrics)}.
+ *
+ * All counters are LongAdders, so that concurrent readers of an index do 
+ * not contend on them. Indexes without metrics only pay for a null check.
+ * The metrics can be published with {@link #register(String)}.
+ *
+ * Hits and misses are counted separately for leaves and inner nodes. A hit
+ * is a node that is found in memory, a miss a node that has to be decoded.
+ * Latencies are kept in histograms with power of two buckets, so the 
+ * percentiles are upper bounds that are off by up to a factor of two.
+ */
+public class BTreeMetrics implements BTreeMetricsMXBean {
+
+	public enum Operation {
+		INSERT, LOOKUP, DELETE, SCAN
+	}
+
+	private final LongAdder leafHits = new LongAdder();
+	private final LongAdder leafMisses = new LongAdder();
+	private final LongAdder innerHits = new LongAdder();
+	private final LongAdder innerMisses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	private final LongAdder decodedPages = new LongAdder();
+	private final LongAdder decodeNanos = new LongAdder();
+	private final LongAdder encodedPages = new LongAdder();
+	private final LongAdder encodeNanos = new LongAdder();
+
+	private final LongAdder splits = new LongAdder();
+	private final LongAdder rootSplits = new LongAdder();
+	private final LongAdder merges = new LongAdder();
+	private final LongAdder rootMerges = new LongAdder();
+	private final LongAdder redistributions = new LongAdder();
+
+	private final LongAdder commits = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private volatile long lastCommitBytes;
+
+	private final LatencyHistogram[] latencies = 
+			new LatencyHistogram[Operation.values().length];
+	private ObjectName objectName;
+
+	public BTreeMetrics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Publishes the metrics as MXBean org.zoodb:type=BTreeMetrics,name=name.
+	 */
+	public synchronized void register(String name) {
+		if (objectName != null) {
+			throw new IllegalStateException("Already registered as " + objectName);
+		}
+		try {
+			ObjectName on = new ObjectName("org.zoodb:type=BTreeMetrics,name=" 
+					+ ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			objectName = on;
+		} catch (JMException e) {
+			throw new IllegalStateException("Cannot register metrics " + name, e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(objectName);
+		} catch (JMException e) {
+			throw new IllegalStateException("Cannot unregister metrics " + objectName, e);
+		}
+		objectName = null;
+	}
+
+	public synchronized ObjectName getObjectName() {
+		return objectName;
+	}
+
+	void recordHit(boolean isLeaf) {
+		(isLeaf ? leafHits : innerHits).increment();
+	}
+
+	void recordMiss(boolean isLeaf) {
+		(isLeaf ? leafMisses : innerMisses).increment();
+	}
+
+	void recordEviction() {
+		evictions.increment();
+	}
+
+	void recordDecode(long nanos) {
+		decodedPages.increment();
+		decodeNanos.add(nanos);
+	}
+
+	void recordEncode(long nanos) {
+		encodedPages.increment();
+		encodeNanos.add(nanos);
+	}
+
+	void recordSplit() {
+		splits.increment();
+	}
+
+	void recordRootSplit() {
+		rootSplits.increment();
+	}
+
+	void recordMerge() {
+		merges.increment();
+	}
+
+	void recordRootMerge() {
+		rootMerges.increment();
+	}
+
+	void recordRedistribution() {
+		redistributions.increment();
+	}
+
+	public void recordCommit(long bytes) {
+		commits.increment();
+		bytesWritten.add(bytes);
+		lastCommitBytes = bytes;
+	}
+
+	public void recordLatency(Operation op, long nanos) {
+		latencies[op.ordinal()].record(nanos);
+	}
+
+	public LatencyHistogram getLatencies(Operation op) {
+		return latencies[op.ordinal()];
+	}
+
+	@Override
+	public long getLeafHits() {
+		return leafHits.sum();
+	}
+
+	@Override
+	public long getLeafMisses() {
+		return leafMisses.sum();
+	}
+
+	@Override
+	public long getInnerHits() {
+		return innerHits.sum();
+	}
+
+	@Override
+	public long getInnerMisses() {
+		return innerMisses.sum();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public long getDecodedPages() {
+		return decodedPages.sum();
+	}
+
+	@Override
+	public long getDecodeNanos() {
+		return decodeNanos.sum();
+	}
+
+	@Override
+	public long getEncodedPages() {
+		return encodedPages.sum();
+	}
+
+	@Override
+	public long getEncodeNanos() {
+		return encodeNanos.sum();
+	}
+
+	@Override
+	public long getSplits() {
+		return splits.sum();
+	}
+
+	@Override
+	public long getRootSplits() {
+		return rootSplits.sum();
+	}
+
+	@Override
+	public long getMerges() {
+		return merges.sum();
+	}
+
+	@Override
+	public long getRootMerges() {
+		return rootMerges.sum();
+	}
+
+	@Override
+	public long getRedistributions() {
+		return redistributions.sum();
+	}
+
+	@Override
+	public long getCommits() {
+		return commits.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getLastCommitBytes() {
+		return lastCommitBytes;
+	}
+
+	@Override
+	public long getInsertCount() {
+		return getLatencies(Operation.INSERT).getCount();
+	}
+
+	@Override
+	public long getInsertP50Nanos() {
+		return getLatencies(Operation.INSERT).getPercentile(0.5);
+	}
+
+	@Override
+	public long getInsertP99Nanos() {
+		return getLatencies(Operation.INSERT).getPercentile(0.99);
+	}
+
+	@Override
+	public long getLookupCount() {
+		return getLatencies(Operation.LOOKUP).getCount();
+	}
+
+	@Override
+	public long getLookupP50Nanos() {
+		return getLatencies(Operation.LOOKUP).getPercentile(0.5);
+	}
+
+	@Override
+	public long getLookupP99Nanos() {
+		return getLatencies(Operation.LOOKUP).getPercentile(0.99);
+	}
+
+	@Override
+	public long getDeleteCount() {
+		return getLatencies(Operation.DELETE).getCount();
+	}
+
+	@Override
+	public long getDeleteP50Nanos() {
+		return getLatencies(Operation.DELETE).getPercentile(0.5);
+	}
+
+	@Override
+	public long getDeleteP99Nanos() {
+		return getLatencies(Operation.DELETE).getPercentile(0.99);
+	}
+
+	@Override
+	public long getScanCount() {
+		return getLatencies(Operation.SCAN).getCount();
+	}
+
+	@Override
+	public long getScanP50Nanos() {
+		return getLatencies(Operation.SCAN).getPercentile(0.5);
+	}
+
+	@Override
+	public long getScanP99Nanos() {
+		return getLatencies(Operation.SCAN).getPercentile(0.99);
+	}
+
+	/**
+	 * Resets all counters. Updates that happen concurrently may be lost.
+	 */
+	@Override
+	public void reset() {
+		for (LongAdder a : new LongAdder[] { leafHits, leafMisses, innerHits, innerMisses, 
+				evictions, decodedPages, decodeNanos, encodedPages, encodeNanos, splits, 
+				rootSplits, merges, rootMerges, redistributions, commits, bytesWritten }) {
+			a.reset();
+		}
+		lastCommitBytes = 0;
+		for (LatencyHistogram h : latencies) {
+			h.reset();
+		}
+	}
+
+	/**
+	 * Histogram of latencies in nanoseconds. Bucket i counts the latencies 
+	 * below 2^i and at least 2^(i-1).
+	 */
+	public static class LatencyHistogram {
+
+		private final LongAdder[] buckets = new LongAdder[64];
+
+		LatencyHistogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			int bucket = nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+			buckets[Math.min(bucket, buckets.length - 1)].increment();
+		}
+
+		public long getCount() {
+			long n = 0;
+			for (LongAdder b : buckets) {
+				n += b.sum();
+			}
+			return n;
+		}
+
+		public long[] getBuckets() {
+			long[] counts = new long[buckets.length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets[i].sum();
+			}
+			return counts;
+		}
+
+		/**
+		 * @param fraction  The fraction of latencies, e.g. 0.99
+		 * @return the upper bound of the bucket that contains the percentile, 
+		 *         or 0 if there are no latencies
+		 */
+		public long getPercentile(double fraction) {
+			long[] counts = getBuckets();
+			long total = 0;
+			for (long c : counts) {
+				total += c;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(fraction * total);
+			long n = 0;
+			for (int i = 0; i < counts.length; i++) {
+				n += counts[i];
+				if (n >= rank && n > 0) {
+					return i == 63 ? Long.MAX_VALUE : 1L << i;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+
+		void reset() {
+			for (LongAdder b : buckets) {
+				b.reset();
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+/**
+ * JMX view of {@link BTreeMetrics}.
+ */
+public interface BTreeMetricsMXBean {
+
+	long getLeafHits();
+	long getLeafMisses();
+	long getInnerHits();
+	long getInnerMisses();
+	long getEvictions();
+
+	long getDecodedPages();
+	long getDecodeNanos();
+	long getEncodedPages();
+	long getEncodeNanos();
+
+	long getSplits();
+	long getRootSplits();
+	long getMerges();
+	long getRootMerges();
+	long getRedistributions();
+
+	long getCommits();
+	long getBytesWritten();
+	long getLastCommitBytes();
+
+	long getInsertCount();
+	long getInsertP50Nanos();
+	long getInsertP99Nanos();
+	long getLookupCount();
+	long getLookupP50Nanos();
+	long getLookupP99Nanos();
+	long getDeleteCount();
+	long getDeleteP50Nanos();
+	long getDeleteP99Nanos();
+	long getScanCount();
+	long getScanP50Nanos();
+	long getScanP99Nanos();
+
+	void reset();
+
+}
@@ -20,6 +20,7 @@
  */
 package org.zoodb.internal.server.index.btree;
 
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
@@ -43,6 +44,8 @@ public abstract class BTreeNode {
     protected long prefix;
 
 	protected int numKeys;
+	// the key and value arrays grow on demand up to maxNumKeys entries
+	private int maxNumKeys;
 	private long[] keys;
 
 	private long[] values;
@@ -50,12 +53,43 @@ public abstract class BTreeNode {
 
 	protected int valueElementSize;
 
+	// if true, the values of a leaf may be stored prefix-shared instead of fixed-width
+	protected final boolean valuePrefixSharing;
+	protected long valuePrefix;
+	// if true, the entries of a non-unique leaf may be stored as posting lists
+	protected final boolean leafPostingLists;
+	// if true, leaf pages are compressed and leaves may hold more entries
+	protected final boolean leafPageCompression;
+	// if true, runs of consecutive keys of a leaf may be stored dense
+	protected final boolean leafDenseKeys;
+
 	public BTreeNode(int pageSize, boolean isLeaf, boolean isRoot, int valueElementSize) {
+		this(pageSize, isLeaf, isRoot, valueElementSize, false, false);
+	}
+
+	public BTreeNode(int pageSize, boolean isLeaf, boolean isRoot, int valueElementSize,
+			boolean valuePrefixSharing) {
+		this(pageSize, isLeaf, isRoot, valueElementSize, valuePrefixSharing, false);
+	}
+
+	public BTreeNode(int pageSize, boolean isLeaf, boolean isRoot, int valueElementSize,
+			boolean valuePrefixSharing, boolean leafPostingLists) {
+		this(pageSize, isLeaf, isRoot, valueElementSize, valuePrefixSharing, leafPostingLists, 
+				false, false);
+	}
+
+	public BTreeNode(int pageSize, boolean isLeaf, boolean isRoot, int valueElementSize,
+			boolean valuePrefixSharing, boolean leafPostingLists, boolean leafPageCompression,
+			boolean leafDenseKeys) {
 		this.isLeaf = isLeaf;
 		this.isRoot = isRoot;
         this.pageSize = pageSize;
         this.pageSizeThreshold = (int) (pageSize * 0.75);
         this.valueElementSize = valueElementSize;
+        this.valuePrefixSharing = valuePrefixSharing;
+        this.leafPostingLists = leafPostingLists;
+        this.leafPageCompression = leafPageCompression;
+        this.leafDenseKeys = leafDenseKeys;
 
         initializeEntries();
 	}
@@ -77,6 +111,8 @@ public abstract class BTreeNode {
     public abstract void markChanged();
     // closes (destroys) node
     public abstract void close();
+    // closes the sub-tree of the child at index, the child stays referenced by this node
+    public abstract void closeChildSubtree(int index, int childHeight);
     /*
         Node modification operations
      */
@@ -111,6 +147,7 @@ public abstract class BTreeNode {
         int pos;
         if (getNumKeys() == 0) {
         	pos = 0;
+        	beforeInsertEntry(pos, key, value);
             increaseNumKeys(1);
         } else {
         	pos = binarySearch(key, value);
@@ -124,6 +161,7 @@ public abstract class BTreeNode {
 	            if (!smallerThanKeyValue(pos, key, value)) {
 	            	pos++;
 	            }
+	            beforeInsertEntry(pos, key, value);
 	            shiftRecords(pos, pos + 1, getNumKeys() - pos);
 	            increaseNumKeys(1);
 	        }
@@ -137,6 +175,20 @@ public abstract class BTreeNode {
         return true;
     }
 
+    /**
+     * Called by put() before a new entry is inserted into a leaf at pos.
+     */
+    protected void beforeInsertEntry(int pos, long key, long value) {
+        //nothing to do
+    }
+
+    /**
+     * Called by delete() before the entry at pos is removed from a leaf.
+     */
+    protected void beforeRemoveEntry(int pos) {
+        //nothing to do
+    }
+
     public BTreeNode findChild(long key, long value) {
         return getChild(findKeyValuePos(key, value));
     }
@@ -246,18 +298,49 @@ public abstract class BTreeNode {
         if (!isLeaf()) {
             throw new IllegalStateException("Should be a leaf node");
         }
-        final int keyPos = findKeyValuePos(key, value);
-        if (keyPos == 0) {
+        // an exact match is required, findKeyValuePos() would point to the
+        // predecessor of a missing key
+        final int keyPos = binarySearch(key, value) + 1;
+        if (keyPos <= 0) {
             throw new NoSuchElementException("key not found: " + key + " / " + value);
         }
         int recordsToMove = getNumKeys() - keyPos;
         long oldValue = getValue(keyPos - 1);
+        beforeRemoveEntry(keyPos - 1);
         shiftRecords(keyPos, keyPos - 1, recordsToMove);
         decreaseNumKeys(1);
 
         return oldValue;
     }
 
+    /**
+     * Delete all entries with keys between min and max (inclusive) from the node.
+     *
+     * @param min
+     * @param max
+     * @return          The number of deleted entries
+     */
+    public int deleteRange(long min, long max) {
+        if (!isLeaf()) {
+            throw new IllegalStateException("Should be a leaf node");
+        }
+        int start = 0;
+        while (start < getNumKeys() && getKey(start) < min) {
+            start++;
+        }
+        int end = start;
+        while (end < getNumKeys() && getKey(end) <= max) {
+            end++;
+        }
+        int deleted = end - start;
+        if (deleted > 0) {
+            shiftRecordsLeftWithIndex(start, deleted);
+            decreaseNumKeys(deleted);
+            recomputeSize();
+        }
+        return deleted;
+    }
+
     public int computeIndexForSplit(boolean isUnique) {
         int weightKey = (this.isLeaf() || (isUnique)) ? this.getValueElementSize() : 0;
         int weightChild = (isLeaf() ? 0 : 4);
@@ -275,11 +358,13 @@ public abstract class BTreeNode {
 
     public void shiftKeys(int startIndex, int endIndex, int amount) {
         markChanged();
+        ensureCapacity(endIndex + amount);
         System.arraycopy(getKeys(), startIndex, getKeys(), endIndex, amount);
     }
 
     protected void shiftValues(int startIndex, int endIndex, int amount) {
         markChanged();
+        ensureCapacity(endIndex + amount);
         System.arraycopy(getValues(), startIndex, getValues(), endIndex, amount);
     }
 
@@ -319,6 +404,7 @@ public abstract class BTreeNode {
     }
 
     public void setKey(int index, long key) {
+        ensureCapacity(index + 1);
         getKeys()[index] = key;
 
         //signal change
@@ -326,6 +412,7 @@ public abstract class BTreeNode {
     }
 
     public void setValue(int index, long value) {
+        ensureCapacity(index + 1);
         getValues()[index] = value;
 
         //signal change
@@ -363,7 +450,17 @@ public abstract class BTreeNode {
     }
 
     public boolean overflows() {
-        return getCurrentSize() > pageSize;
+        if (getCurrentSize() > pageSize) {
+            return true;
+        }
+        //leaves with smaller encodings of their entries may reach the
+        //maximum number of entries before the page is full
+        return hasVariableEntrySize() && getNumKeys() >= getMaxNumKeys();
+    }
+
+    private boolean hasVariableEntrySize() {
+        return isLeaf() && (valuePrefixSharing || leafPostingLists 
+                || leafPageCompression || leafDenseKeys);
     }
 
     public void increaseNumKeys(int amount) {
@@ -377,12 +474,45 @@ public abstract class BTreeNode {
     }
 
     protected void initKeys(int size) {
-        setKeys(new long[size]);
+        maxNumKeys = size;
+        setKeys(new long[initialCapacity(size)]);
         setNumKeys(0);
     }
 
     protected void initValues(int size) {
-        setValues(new long[size]);
+        setValues(new long[initialCapacity(size)]);
+    }
+
+    /**
+     * Returns the initial length of the key and value arrays, enough for a
+     * page of uncompressed entries.
+     */
+    private int initialCapacity(int size) {
+        return Math.min(size, (pageSize >>> 3) + 1);
+    }
+
+    /**
+     * Grows the key and value arrays to hold at least numEntries entries.
+     */
+    public void ensureCapacity(int numEntries) {
+        if (numEntries <= keys.length && (values == null || numEntries <= values.length)) {
+            return;
+        }
+        int newLength = Math.max(numEntries, 
+                Math.min(keys.length + (keys.length >>> 1), maxNumKeys));
+        if (keys.length < newLength) {
+            keys = Arrays.copyOf(keys, newLength);
+        }
+        if (values != null && values.length < newLength) {
+            values = Arrays.copyOf(values, newLength);
+        }
+    }
+
+    /**
+     * @return the maximum number of entries, see overflows()
+     */
+    public int getMaxNumKeys() {
+        return maxNumKeys;
     }
 
     public long getValue(int index) {
@@ -434,9 +564,10 @@ public abstract class BTreeNode {
     }
 
     public void setNumKeys(int newNumKeys) {
-        if (newNumKeys < 0 || newNumKeys > getKeys().length) {
+        if (newNumKeys < 0 || newNumKeys > maxNumKeys) {
         	throw new IllegalStateException();
         }
+        ensureCapacity(newNumKeys);
         markChanged();
         this.numKeys = newNumKeys;
     }
@@ -444,6 +575,8 @@ public abstract class BTreeNode {
     public void setKeys(long[] keys) {
         markChanged();
         this.keys = keys;
+        //decoded pages may hold more entries than the computed maximum
+        this.maxNumKeys = Math.max(maxNumKeys, keys.length);
     }
 
     public void setValues(long[] values) {
@@ -575,11 +708,63 @@ public abstract class BTreeNode {
 
     public void recomputePrefix() {
         this.prefix = (getNumKeys() == 0) ? 0 : PrefixSharingHelper.computePrefix(getSmallestKey(), getLargestKey());
+        if (isLeaf() && valuePrefixSharing) {
+            this.valuePrefix = PrefixSharingHelper.computePrefixUnsorted(getValues(), getNumKeys());
+        }
     }
 
 	public long getPrefix() {
 		return prefix;
 	}
+
+	public long getValuePrefix() {
+		return valuePrefix;
+	}
+
+    /**
+     * Compute the storage size of the values of a leaf.
+     *
+     * If value prefix sharing is enabled, the values are stored prefix-shared
+     * whenever this is smaller than storing them with a fixed width.
+     *
+     * @param numKeys           The number of values
+     * @param valuePrefix       The bit prefix shared by all values
+     * @return                  The size of the value array in bytes
+     */
+    public long getLeafValueArraySizeInBytes(int numKeys, long valuePrefix) {
+        long fixedSize = (long) numKeys * getValueElementSize();
+        if (!valuePrefixSharing || numKeys == 0) {
+            return fixedSize;
+        }
+        return Math.min(fixedSize, PrefixSharingHelper.encodedArraySize(numKeys, valuePrefix));
+    }
+
+    /**
+     * @return true if the values of this leaf are stored prefix-shared.
+     */
+    public boolean hasPrefixSharedValues() {
+        if (!isLeaf() || !valuePrefixSharing || getNumKeys() == 0) {
+            return false;
+        }
+        return PrefixSharingHelper.encodedArraySize(getNumKeys(), valuePrefix)
+                < (long) getNumKeys() * getValueElementSize();
+    }
+
+    public boolean isValuePrefixSharing() {
+        return valuePrefixSharing;
+    }
+
+    public boolean isLeafPostingLists() {
+        return leafPostingLists;
+    }
+
+    public boolean isLeafPageCompression() {
+        return leafPageCompression;
+    }
+
+    public boolean isLeafDenseKeys() {
+        return leafDenseKeys;
+    }
 	
     public int getValueElementSize() {
     	return this.valueElementSize;
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zoodb.internal.util.PrimLongMapZ;
+
+/**
+ * The nodes of a buffer manager by page id, together with the state of
+ * every node.
+ *
+ * The table is divided into stripes by page id and every stripe is guarded
+ * by its own lock, so that threads that access different pages do not block
+ * each other. A node has exactly one state and changing the state is atomic,
+ * a concurrent reader never misses a node that is moved between states.
+ *
+ * Every stripe is a single open addressing hash table with linear probing.
+ * The state of a node is stored in its slot, so that a look-up is a single
+ * probe sequence and a change of the state does not move the node. Dirty
+ * nodes are additionally linked in a list, so that they can be found
+ * without scanning the table.
+ */
+public class BTreePageTable {
+
+	public enum PageState {
+		// modified, not written yet
+		DIRTY,
+		// clean, exempt from flushing
+		PINNED,
+		// clean, may be flushed
+		CLEAN
+	}
+
+	private static final PageState[] STATES = PageState.values();
+	private static final int CLEAN = PageState.CLEAN.ordinal();
+	private static final int DEFAULT_STRIPES = 16;
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int NO_SLOT = -1;
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	// number of nodes per state, updated while holding the lock of a stripe
+	private final AtomicInteger[] sizes;
+	// number of clean nodes of several tables, see setSharedCleanSize()
+	private volatile AtomicInteger sharedCleanSize;
+	// the stripe where removeSome() starts
+	private final AtomicInteger nextRemoveStripe = new AtomicInteger();
+
+	public BTreePageTable() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param nStripes  The number of stripes, a power of two
+	 */
+	public BTreePageTable(int nStripes) {
+		if (nStripes <= 0 || Integer.bitCount(nStripes) != 1) {
+			throw new IllegalArgumentException("Invalid number of stripes: " + nStripes);
+		}
+		stripes = new Stripe[nStripes];
+		for (int i = 0; i < nStripes; i++) {
+			stripes[i] = new Stripe(INITIAL_CAPACITY);
+		}
+		stripeMask = nStripes - 1;
+		sizes = new AtomicInteger[STATES.length];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = new AtomicInteger();
+		}
+	}
+
+	private Stripe stripe(int pageId) {
+		// temporary page ids are negative
+		return stripes[pageId & stripeMask];
+	}
+
+	/**
+	 * @return the node of the page in any state, or null
+	 */
+	public PagedBTreeNode get(int pageId) {
+		Stripe stripe = stripe(pageId);
+		synchronized (stripe) {
+			int slot = stripe.find(pageId);
+			return slot == NO_SLOT ? null : stripe.nodes[slot];
+		}
+	}
+
+	public PagedBTreeNode get(int pageId, PageState state) {
+		Stripe stripe = stripe(pageId);
+		synchronized (stripe) {
+			int slot = stripe.find(pageId);
+			return slot == NO_SLOT || stripe.states[slot] != state.ordinal()
+					? null : stripe.nodes[slot];
+		}
+	}
+
+	public boolean contains(int pageId, PageState state) {
+		return get(pageId, state) != null;
+	}
+
+	/**
+	 * Adds a node or changes its state.
+	 */
+	public void put(int pageId, PagedBTreeNode node, PageState state) {
+		Stripe stripe = stripe(pageId);
+		synchronized (stripe) {
+			int slot = stripe.find(pageId);
+			if (slot == NO_SLOT) {
+				stripe.insert(pageId, node, state.ordinal());
+			} else {
+				addSize(stripe.states[slot], -1);
+				stripe.nodes[slot] = node;
+				stripe.setState(slot, state.ordinal());
+			}
+			addSize(state.ordinal(), 1);
+		}
+	}
+
+	/**
+	 * Adds a node unless the page already has a node in any state.
+	 *
+	 * @return the node of the page after the call
+	 */
+	public PagedBTreeNode putIfAbsent(int pageId, PagedBTreeNode node, PageState state) {
+		Stripe stripe = stripe(pageId);
+		synchronized (stripe) {
+			int slot = stripe.find(pageId);
+			if (slot != NO_SLOT) {
+				return stripe.nodes[slot];
+			}
+			stripe.insert(pageId, node, state.ordinal());
+			addSize(state.ordinal(), 1);
+			return node;
+		}
+	}
+
+	/**
+	 * Removes the node of a page in any state.
+	 *
+	 * @return the removed node or null
+	 */
+	public PagedBTreeNode remove(int pageId) {
+		Stripe stripe = stripe(pageId);
+		synchronized (stripe) {
+			int slot = stripe.find(pageId);
+			if (slot == NO_SLOT) {
+				return null;
+			}
+			addSize(stripe.states[slot], -1);
+			return stripe.removeAt(slot);
+		}
+	}
+
+	public PagedBTreeNode remove(int pageId, PageState state) {
+		Stripe stripe = stripe(pageId);
+		synchronized (stripe) {
+			int slot = stripe.find(pageId);
+			if (slot == NO_SLOT || stripe.states[slot] != state.ordinal()) {
+				return null;
+			}
+			addSize(state.ordinal(), -1);
+			return stripe.removeAt(slot);
+		}
+	}
+
+	public int size(PageState state) {
+		return sizes[state.ordinal()].get();
+	}
+
+	// the caller must hold the lock of a stripe
+	private void addSize(int state, int delta) {
+		sizes[state].addAndGet(delta);
+		AtomicInteger shared = sharedCleanSize;
+		if (state == CLEAN && shared != null) {
+			shared.addAndGet(delta);
+		}
+	}
+
+	/**
+	 * Keeps the number of clean nodes of this table in a counter that is 
+	 * shared with other tables. The clean nodes are moved from the previous 
+	 * counter to the new one.
+	 *
+	 * @param counter   The counter, or null
+	 */
+	public void setSharedCleanSize(AtomicInteger counter) {
+		withAllStripes(0, () -> {
+			AtomicInteger old = sharedCleanSize;
+			if (old != null) {
+				old.addAndGet(-size(PageState.CLEAN));
+			}
+			if (counter != null) {
+				counter.addAndGet(size(PageState.CLEAN));
+			}
+			sharedCleanSize = counter;
+		});
+	}
+
+	// no size changes while r runs
+	private void withAllStripes(int i, Runnable r) {
+		if (i == stripes.length) {
+			r.run();
+			return;
+		}
+		synchronized (stripes[i]) {
+			withAllStripes(i + 1, r);
+		}
+	}
+
+	public boolean isEmpty(PageState state) {
+		return size(state) == 0;
+	}
+
+	/**
+	 * @return a copy of the nodes in a state
+	 */
+	public List<PagedBTreeNode> values(PageState state) {
+		List<PagedBTreeNode> ret = new ArrayList<>(size(state));
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.collect(state.ordinal(), ret);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes all nodes in a state.
+	 *
+	 * @return the removed nodes
+	 */
+	public List<PagedBTreeNode> removeAll(PageState state) {
+		List<PagedBTreeNode> ret = new ArrayList<>(size(state));
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				int n = ret.size();
+				stripe.collect(state.ordinal(), ret);
+				if (ret.size() > n) {
+					stripe.rebuild(stripe.nodes.length, state.ordinal());
+					addSize(state.ordinal(), n - ret.size());
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Removes up to max nodes in a state. Every call starts with another 
+	 * stripe, so that the nodes are taken evenly from all stripes.
+	 *
+	 * @return the removed nodes
+	 */
+	public List<PagedBTreeNode> removeSome(PageState state, int max) {
+		List<PagedBTreeNode> ret = new ArrayList<>(Math.min(max, size(state)));
+		int first = nextRemoveStripe.getAndIncrement();
+		for (int i = 0; i < stripes.length && ret.size() < max; i++) {
+			Stripe stripe = stripes[(first + i) & stripeMask];
+			synchronized (stripe) {
+				int n = ret.size();
+				stripe.removeSome(state.ordinal(), max - n, ret);
+				addSize(state.ordinal(), n - ret.size());
+			}
+		}
+		return ret;
+	}
+
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (int slot = 0; slot < stripe.nodes.length; slot++) {
+					if (stripe.nodes[slot] != null) {
+						addSize(stripe.states[slot], -1);
+					}
+				}
+				stripe.reset(INITIAL_CAPACITY);
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of all nodes by page id
+	 */
+	public PrimLongMapZ<PagedBTreeNode> toMap() {
+		PrimLongMapZ<PagedBTreeNode> ret = new PrimLongMapZ<>();
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				for (int slot = 0; slot < stripe.nodes.length; slot++) {
+					if (stripe.nodes[slot] != null) {
+						ret.put(stripe.pageIds[slot], stripe.nodes[slot]);
+					}
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @return a view of the nodes in a state
+	 */
+	public View view(PageState state) {
+		return new View(state);
+	}
+
+	/**
+	 * The nodes of a table in one state.
+	 */
+	public final class View {
+
+		private final PageState state;
+
+		private View(PageState state) {
+			this.state = state;
+		}
+
+		public PagedBTreeNode get(long pageId) {
+			return BTreePageTable.this.get((int) pageId, state);
+		}
+
+		public boolean containsKey(long pageId) {
+			return contains((int) pageId, state);
+		}
+
+		public int size() {
+			return BTreePageTable.this.size(state);
+		}
+
+		public boolean isEmpty() {
+			return BTreePageTable.this.isEmpty(state);
+		}
+
+		public List<PagedBTreeNode> values() {
+			return BTreePageTable.this.values(state);
+		}
+
+		public void clear() {
+			removeAll(state);
+		}
+	}
+
+	/**
+	 * One stripe of the table. An empty slot has no node. All methods
+	 * require the lock of the stripe.
+	 */
+	private static final class Stripe {
+
+		private static final byte DIRTY = (byte) PageState.DIRTY.ordinal();
+
+		private int[] pageIds;
+		private PagedBTreeNode[] nodes;
+		private byte[] states;
+		// doubly linked list of the slots of dirty nodes
+		private int[] dirtyNext;
+		private int[] dirtyPrev;
+		private int dirtyHead;
+		private int size;
+		private int shift;
+
+		Stripe(int capacity) {
+			reset(capacity);
+		}
+
+		void reset(int capacity) {
+			pageIds = new int[capacity];
+			nodes = new PagedBTreeNode[capacity];
+			states = new byte[capacity];
+			dirtyNext = new int[capacity];
+			dirtyPrev = new int[capacity];
+			dirtyHead = NO_SLOT;
+			size = 0;
+			shift = 32 - Integer.numberOfTrailingZeros(capacity);
+		}
+
+		private int home(int pageId) {
+			// Fibonacci hashing, the upper bits do not depend on the stripe
+			return (pageId * 0x9E3779B9) >>> shift;
+		}
+
+		int find(int pageId) {
+			int mask = nodes.length - 1;
+			for (int slot = home(pageId); nodes[slot] != null; slot = (slot + 1) & mask) {
+				if (pageIds[slot] == pageId) {
+					return slot;
+				}
+			}
+			return NO_SLOT;
+		}
+
+		void insert(int pageId, PagedBTreeNode node, int state) {
+			// load factor 0.75
+			if ((size + 1) * 4 > nodes.length * 3) {
+				rebuild(nodes.length * 2, NO_SLOT);
+			}
+			int mask = nodes.length - 1;
+			int slot = home(pageId);
+			while (nodes[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			pageIds[slot] = pageId;
+			nodes[slot] = node;
+			states[slot] = (byte) state;
+			if (state == DIRTY) {
+				link(slot);
+			}
+			size++;
+		}
+
+		void setState(int slot, int state) {
+			if (states[slot] == DIRTY && state != DIRTY) {
+				unlink(slot);
+			} else if (states[slot] != DIRTY && state == DIRTY) {
+				link(slot);
+			}
+			states[slot] = (byte) state;
+		}
+
+		PagedBTreeNode removeAt(int slot) {
+			PagedBTreeNode node = nodes[slot];
+			if (states[slot] == DIRTY) {
+				unlink(slot);
+			}
+			nodes[slot] = null;
+			size--;
+			// move following nodes back, so that probe sequences have no gaps
+			int mask = nodes.length - 1;
+			int free = slot;
+			for (int i = (free + 1) & mask; nodes[i] != null; i = (i + 1) & mask) {
+				int home = home(pageIds[i]);
+				boolean reachable = free <= i ? (free < home && home <= i) : (free < home || home <= i);
+				if (!reachable) {
+					move(i, free);
+					free = i;
+				}
+			}
+			return node;
+		}
+
+		private void move(int from, int to) {
+			pageIds[to] = pageIds[from];
+			nodes[to] = nodes[from];
+			states[to] = states[from];
+			nodes[from] = null;
+			if (states[to] == DIRTY) {
+				int prev = dirtyPrev[from];
+				int next = dirtyNext[from];
+				dirtyPrev[to] = prev;
+				dirtyNext[to] = next;
+				if (prev == NO_SLOT) {
+					dirtyHead = to;
+				} else {
+					dirtyNext[prev] = to;
+				}
+				if (next != NO_SLOT) {
+					dirtyPrev[next] = to;
+				}
+			}
+		}
+
+		private void link(int slot) {
+			dirtyPrev[slot] = NO_SLOT;
+			dirtyNext[slot] = dirtyHead;
+			if (dirtyHead != NO_SLOT) {
+				dirtyPrev[dirtyHead] = slot;
+			}
+			dirtyHead = slot;
+		}
+
+		private void unlink(int slot) {
+			int prev = dirtyPrev[slot];
+			int next = dirtyNext[slot];
+			if (prev == NO_SLOT) {
+				dirtyHead = next;
+			} else {
+				dirtyNext[prev] = next;
+			}
+			if (next != NO_SLOT) {
+				dirtyPrev[next] = prev;
+			}
+		}
+
+		void removeSome(int state, int max, List<PagedBTreeNode> ret) {
+			int slot = 0;
+			while (slot < nodes.length && max > 0) {
+				if (nodes[slot] != null && states[slot] == state) {
+					// removeAt() may move another node into the slot
+					ret.add(removeAt(slot));
+					max--;
+				} else {
+					slot++;
+				}
+			}
+		}
+
+		void collect(int state, List<PagedBTreeNode> ret) {
+			if (state == DIRTY) {
+				for (int slot = dirtyHead; slot != NO_SLOT; slot = dirtyNext[slot]) {
+					ret.add(nodes[slot]);
+				}
+				return;
+			}
+			for (int slot = 0; slot < nodes.length; slot++) {
+				if (nodes[slot] != null && states[slot] == state) {
+					ret.add(nodes[slot]);
+				}
+			}
+		}
+
+		/**
+		 * Re-inserts all nodes into a table of the given capacity.
+		 *
+		 * @param capacity      A power of two
+		 * @param dropState     The state of the nodes to drop or NO_SLOT
+		 */
+		void rebuild(int capacity, int dropState) {
+			int[] oldPageIds = pageIds;
+			PagedBTreeNode[] oldNodes = nodes;
+			byte[] oldStates = states;
+			reset(capacity);
+			for (int slot = 0; slot < oldNodes.length; slot++) {
+				if (oldNodes[slot] != null && oldStates[slot] != dropState) {
+					insert(oldPageIds[slot], oldNodes[slot], oldStates[slot]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shape and space efficiency of a tree, per level. Level 0 is the root, 
+ * the last level are the leaves. This helps to decide when an index should
+ * be rebuilt, and which page size and value width suit its data.
+ * 
+ * The analysis visits every node, nodes that are not in memory are read 
+ * from storage.
+ */
+public class BTreeShape {
+
+	public static final int FILL_BUCKETS = 10;
+
+	private final int pageSize;
+	private final Level[] levels;
+
+	private BTreeShape(int pageSize, Level[] levels) {
+		this.pageSize = pageSize;
+		this.levels = levels;
+	}
+
+	public static BTreeShape analyze(PagedBTree tree) {
+		int height = 1;
+		BTreeNode node = tree.getRoot();
+		while (!node.isLeaf()) {
+			node = node.getChild(0);
+			height++;
+		}
+		Level[] levels = new Level[height];
+		for (int i = 0; i < height; i++) {
+			levels[i] = new Level(i, i == height - 1, tree.getPageSize());
+		}
+		// depth-first, so that the nodes of each level are visited in key order
+		visit(tree.getRoot(), 0, levels);
+		return new BTreeShape(tree.getPageSize(), levels);
+	}
+
+	private static void visit(BTreeNode node, int depth, Level[] levels) {
+		levels[depth].add((PagedBTreeNode) node);
+		if (node.isLeaf()) {
+			return;
+		}
+		for (int i = 0; i <= node.getNumKeys(); i++) {
+			visit(node.getChild(i), depth + 1, levels);
+		}
+	}
+
+	public int getHeight() {
+		return levels.length;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public List<Level> getLevels() {
+		return Arrays.asList(levels);
+	}
+
+	public Level getLeafLevel() {
+		return levels[levels.length - 1];
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Height: ").append(getHeight()).append(", page size: ").append(pageSize);
+		for (Level level : levels) {
+			sb.append('\n').append(level);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Statistics of the nodes of one level.
+	 */
+	public static class Level {
+
+		private final int depth;
+		private final boolean isLeafLevel;
+		private final int pageSize;
+
+		private int numNodes;
+		private long numKeys;
+		private long totalSize;
+		private long keyArrayBytes;
+		private int numUnderfull;
+		private final int[] fillHistogram = new int[FILL_BUCKETS];
+		private final int[] prefixHistogram = new int[Long.SIZE + 1];
+
+		// page ids of neighbouring nodes, only of nodes that have been written
+		private int lastPageId;
+		private int numNeighbours;
+		private int numSequentialNeighbours;
+		private long totalPageDistance;
+
+		Level(int depth, boolean isLeafLevel, int pageSize) {
+			this.depth = depth;
+			this.isLeafLevel = isLeafLevel;
+			this.pageSize = pageSize;
+		}
+
+		void add(PagedBTreeNode node) {
+			numNodes++;
+			numKeys += node.getNumKeys();
+			int size = node.getCurrentSize();
+			totalSize += size;
+			fillHistogram[Math.min(FILL_BUCKETS - 1, (int) ((long) size * FILL_BUCKETS / pageSize))]++;
+			if (node.getNumKeys() > 0) {
+				prefixHistogram[(int) node.getPrefix()]++;
+			}
+			keyArrayBytes += node.getKeyArraySizeInBytes();
+			if (node.isUnderFull()) {
+				numUnderfull++;
+			}
+			int pageId = node.getPageId();
+			if (pageId > 0 && lastPageId > 0) {
+				numNeighbours++;
+				if (pageId == lastPageId + 1) {
+					numSequentialNeighbours++;
+				}
+				totalPageDistance += Math.abs((long) pageId - lastPageId);
+			}
+			lastPageId = pageId;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public boolean isLeafLevel() {
+			return isLeafLevel;
+		}
+
+		public int getNumNodes() {
+			return numNodes;
+		}
+
+		public long getNumKeys() {
+			return numKeys;
+		}
+
+		/**
+		 * @return the average size of the nodes relative to the page size
+		 */
+		public double getAverageFill() {
+			return numNodes == 0 ? 0 : (double) totalSize / ((long) numNodes * pageSize);
+		}
+
+		/**
+		 * @return the number of nodes per fill factor, bucket i counts the 
+		 *         nodes that fill i/FILL_BUCKETS or more of their page. 
+		 *         Nodes that overflow are counted in the last bucket.
+		 */
+		public int[] getFillHistogram() {
+			return fillHistogram.clone();
+		}
+
+		/**
+		 * @return the number of nodes per length of the bit prefix shared by 
+		 *         their keys, from 0 to 64 bits. Empty nodes are not counted.
+		 */
+		public int[] getPrefixHistogram() {
+			return prefixHistogram.clone();
+		}
+
+		/**
+		 * @return the average number of bits per key in the stored key arrays
+		 */
+		public double getAverageBitsPerKey() {
+			return numKeys == 0 ? 0 : keyArrayBytes * 8.0 / numKeys;
+		}
+
+		/**
+		 * @return the fraction of the nodes that are under-full
+		 */
+		public double getUnderfullFraction() {
+			return numNodes == 0 ? 0 : (double) numUnderfull / numNodes;
+		}
+
+		/**
+		 * @return the number of pairs of neighbouring nodes that have both 
+		 *         been written
+		 */
+		public int getNumNeighbours() {
+			return numNeighbours;
+		}
+
+		/**
+		 * @return the fraction of neighbouring nodes that are stored on 
+		 *         consecutive pages
+		 */
+		public double getSequentialFraction() {
+			return numNeighbours == 0 ? 0 : (double) numSequentialNeighbours / numNeighbours;
+		}
+
+		/**
+		 * @return the average distance of the pages of neighbouring nodes
+		 */
+		public double getAveragePageDistance() {
+			return numNeighbours == 0 ? 0 : (double) totalPageDistance / numNeighbours;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(isLeafLevel ? "Leaves" : "Level " + depth);
+			sb.append(": nodes=").append(numNodes);
+			sb.append(", keys=").append(numKeys);
+			sb.append(String.format(", fill=%.2f", getAverageFill()));
+			sb.append(String.format(", underfull=%.2f", getUnderfullFraction()));
+			sb.append(String.format(", bits/key=%.1f", getAverageBitsPerKey()));
+			sb.append(String.format(", sequential=%.2f", getSequentialFraction()));
+			sb.append(String.format(", page distance=%.1f", getAveragePageDistance()));
+			sb.append(", fill histogram=").append(Arrays.toString(fillHistogram));
+			sb.append(", prefix lengths={");
+			String sep = "";
+			for (int i = 0; i < prefixHistogram.length; i++) {
+				if (prefixHistogram[i] > 0) {
+					sb.append(sep).append(i).append('=').append(prefixHistogram[i]);
+					sep = ", ";
+				}
+			}
+			return sb.append('}').toString();
+		}
+	}
+}
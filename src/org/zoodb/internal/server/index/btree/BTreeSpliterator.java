@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.Comparator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
+
+/**
+ * Spliterator over the entries of a key range of a B+ tree.
+ *
+ * The range is split at the separator keys of the inner nodes, starting at
+ * the root and descending to the child that covers the whole remaining range
+ * if there is no separator inside of it. A spliterator can only be split
+ * before its traversal has started.
+ *
+ * Nodes are loaded by the buffer manager when splitting, when starting
+ * the traversal and when moving from one leaf to the next. The spliterators
+ * of a tree do not synchronize with each other, they rely on the buffer
+ * manager supporting concurrent readers, see
+ * {@link BTreeStorageBufferManager}.
+ *
+ * Like the leaf iterators, the traversal throws a
+ * ConcurrentModificationException if the tree is modified, and fails if the
+ * transaction is committed or rolled back.
+ *
+ * The number of entries of a range is not known, so the spliterators are
+ * not SIZED.
+ */
+public abstract class BTreeSpliterator {
+
+    private final BTree tree;
+    protected long min;
+    protected final long max;
+    // the node whose separators are used for splitting
+    private BTreeNode splitNode;
+    private long estimate;
+    private AscendingBTreeLeafEntryIterator iterator;
+
+    BTreeSpliterator(BTree tree, long min, long max, BTreeNode splitNode, long estimate) {
+        this.tree = tree;
+        this.min = min;
+        this.max = max;
+        this.splitNode = splitNode;
+        this.estimate = estimate;
+    }
+
+    /**
+     * Split off the lower part of the range.
+     *
+     * @return  The first key of the upper part, which stays with this
+     *          spliterator, or min if the range can not be split.
+     */
+    protected long splitRange() {
+        if (iterator != null || min >= max) {
+            return min;
+        }
+        BTreeNode node = splitNode;
+        while (!node.isLeaf()) {
+            // the children lo to hi overlap with the range
+            int lo = node.findKeyValuePos(min, Long.MIN_VALUE);
+            int hi = node.findKeyValuePos(max, Long.MAX_VALUE);
+            if (lo < hi) {
+                splitNode = node;
+                // the separators lo to hi-1 are inside the range, prefer the middle one
+                int mid = (lo + hi - 1) >>> 1;
+                for (int i = mid; i < hi; i++) {
+                    if (node.getKey(i) > min) {
+                        return splitAt(node.getKey(i));
+                    }
+                }
+                // in non-unique trees, separators may have the key min
+                node = node.getChild(hi);
+            } else {
+                node = node.getChild(lo);
+            }
+        }
+        splitNode = node;
+        return min;
+    }
+
+    private long splitAt(long key) {
+        estimate >>>= 1;
+        min = key;
+        return key;
+    }
+
+    BTreeNode getSplitNode() {
+        return splitNode;
+    }
+
+    /**
+     * Pass the next key to the action.
+     *
+     * @return false if the range has been traversed.
+     */
+    protected boolean advanceKey(LongConsumer action) {
+        if (!hasCurrent()) {
+            return false;
+        }
+        action.accept(iterator.nextKey());
+        return true;
+    }
+
+    protected boolean advanceEntry(Consumer<? super LLEntry> action) {
+        if (!hasCurrent()) {
+            return false;
+        }
+        action.accept(iterator.next());
+        return true;
+    }
+
+    private boolean hasCurrent() {
+        if (iterator == null) {
+            iterator = new AscendingBTreeLeafEntryIterator(tree, min, max);
+        }
+        return iterator.hasNext();
+    }
+
+    public long estimateSize() {
+        return estimate;
+    }
+
+    protected int baseCharacteristics() {
+        return Spliterator.ORDERED | Spliterator.SORTED | Spliterator.NONNULL;
+    }
+
+    BTree getTree() {
+        return tree;
+    }
+
+    /**
+     * The keys of a range, distinct for unique trees.
+     */
+    public static class OfKeys extends BTreeSpliterator implements Spliterator.OfLong {
+
+        public OfKeys(BTree tree, long min, long max) {
+            this(tree, min, max, tree.getRoot(), Long.MAX_VALUE);
+        }
+
+        private OfKeys(BTree tree, long min, long max, BTreeNode splitNode, long estimate) {
+            super(tree, min, max, splitNode, estimate);
+        }
+
+        @Override
+        public OfKeys trySplit() {
+            long lowerMin = min;
+            long split = splitRange();
+            if (split == lowerMin) {
+                return null;
+            }
+            return new OfKeys(getTree(), lowerMin, split - 1, getSplitNode(), estimateSize());
+        }
+
+        @Override
+        public boolean tryAdvance(LongConsumer action) {
+            return advanceKey(action);
+        }
+
+        @Override
+        public int characteristics() {
+            return baseCharacteristics() | (getTree().isUnique() ? Spliterator.DISTINCT : 0);
+        }
+
+        @Override
+        public Comparator<? super Long> getComparator() {
+            return null;
+        }
+    }
+
+    /**
+     * The key/value pairs of a range, ordered by key and then value.
+     */
+    public static class OfEntries extends BTreeSpliterator implements Spliterator<LLEntry> {
+
+        private static final Comparator<LLEntry> ENTRY_ORDER = (e1, e2) -> {
+            int c = Long.compare(e1.getKey(), e2.getKey());
+            return c != 0 ? c : Long.compare(e1.getValue(), e2.getValue());
+        };
+
+        public OfEntries(BTree tree, long min, long max) {
+            this(tree, min, max, tree.getRoot(), Long.MAX_VALUE);
+        }
+
+        private OfEntries(BTree tree, long min, long max, BTreeNode splitNode, long estimate) {
+            super(tree, min, max, splitNode, estimate);
+        }
+
+        @Override
+        public OfEntries trySplit() {
+            long lowerMin = min;
+            long split = splitRange();
+            if (split == lowerMin) {
+                return null;
+            }
+            return new OfEntries(getTree(), lowerMin, split - 1, getSplitNode(), estimateSize());
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super LLEntry> action) {
+            return advanceEntry(action);
+        }
+
+        @Override
+        public int characteristics() {
+            return baseCharacteristics() | Spliterator.DISTINCT;
+        }
+
+        @Override
+        public Comparator<? super LLEntry> getComparator() {
+            return ENTRY_ORDER;
+        }
+    }
+}
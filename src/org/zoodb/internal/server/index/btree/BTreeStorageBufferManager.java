@@ -20,8 +20,20 @@
  */
 package org.zoodb.internal.server.index.btree;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +42,9 @@ import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
 import org.zoodb.internal.server.IOResourceProvider;
 import org.zoodb.internal.server.StorageChannelInput;
 import org.zoodb.internal.server.StorageChannelOutput;
+import org.zoodb.internal.server.index.btree.BTreePageTable.PageState;
+import org.zoodb.internal.server.index.btree.prefix.DenseKeyHelper;
+import org.zoodb.internal.server.index.btree.prefix.PostingListHelper;
 import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
 import org.zoodb.internal.util.PrimLongMapZ;
 
@@ -41,6 +56,13 @@ import org.zoodb.internal.util.PrimLongMapZ;
  * - Supports caching through the dirty and clean buffers.
  * - Performs encoding of the key array before page write
  * - Performs decoding of the key array after page read
+ * - Optionally performs prefix sharing of leaf values
+ * - Optionally stores non-unique leaves as posting lists
+ * - Optionally reads ahead the following siblings during scans
+ *
+ * Several threads may read nodes concurrently, the nodes are kept in a 
+ * lock-striped {@link BTreePageTable}. Modifying a tree still requires 
+ * that no other thread uses it.
  *
  * @author Jonas Nick
  * @author Bogdan Vancea
@@ -49,33 +71,90 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(BTreeStorageBufferManager.class);
 
+	// first byte of every page: node type and encoding of leaf values
+	private static final byte PAGE_LEAF = -1;
+	private static final byte PAGE_LEAF_PREFIX_SHARED_VALUES = -2;
+	private static final byte PAGE_LEAF_POSTING_LIST = -3;
+	private static final byte PAGE_LEAF_COMPRESSED = -4;
+	private static final byte PAGE_LEAF_DENSE_KEYS = -5;
+	private static final byte PAGE_LEAF_DENSE_KEYS_PREFIX_SHARED_VALUES = -6;
+	private static final byte PAGE_INNER = 1;
+	// pages of trees with smaller keys or values, see setElementSizes()
+	private static final byte PAGE_LEAF_ELEMENT_SIZES = -7;
+	private static final byte PAGE_INNER_ELEMENT_SIZES = 2;
+	// type byte, codec id, length of the encoded and of the compressed leaf
+	private static final int COMPRESSED_LEAF_HEADER_SIZE = 10;
+	// type byte, size of a key, size of a value
+	private static final int ELEMENT_SIZES_HEADER_SIZE = 3;
+
     private int pageSize;
     
-    // stores dirty nodes
-	private final PrimLongMapZ<PagedBTreeNode> dirtyBuffer;
-	// stores clean nodes
-	private final PrimLongMapZ<PagedBTreeNode> cleanBuffer;
-	private int maxCleanBufferElements = -1;
+    // stores dirty, pinned and clean nodes
+	private final BTreePageTable pageTable;
+	private volatile int maxCleanBufferElements = -1;
+	// clean inner nodes that are never evicted, see setMaxPinnedInnerNodes()
+	private volatile int maxPinnedInnerNodes = 0;
+	// shared budget of clean nodes, see setBufferPool()
+	private volatile BTreeBufferPool bufferPool;
+	// uses of nodes, updated by concurrent readers
+	private final LongAdder poolUses = new LongAdder();
+	// clean nodes that the pool asked this buffer manager to evict
+	private final AtomicInteger requestedEvictions = new AtomicInteger();
 
 	// counter to give nodes that are not written yet
 	// a unique but non-existent "pageId". The counter
 	// only decreases to distinguish proper pageIds from
 	// these negative ids.
-	private int pageIdCounter = 0;
+	private final AtomicInteger pageIdCounter = new AtomicInteger();
 	private final boolean isUnique;
 
 	private final IOResourceProvider storageFile;
 	private PAGE_TYPE dataType = PAGE_TYPE.GENERIC_INDEX;
 	
-	private int statNWrittenPages = 0;
-	private int statNReadPages = 0;
+	private final AtomicInteger statNWrittenPages = new AtomicInteger();
+	private final AtomicInteger statNReadPages = new AtomicInteger();
+	private final AtomicInteger statNPrefetchedPages = new AtomicInteger();
+	private final AtomicInteger statNPageImageReads = new AtomicInteger();
+	private final AtomicInteger statNCompressedPageReads = new AtomicInteger();
+	private final AtomicLong statNWrittenBytes = new AtomicLong();
+	// see setMetrics(), null if disabled
+	private volatile BTreeMetrics metrics;
 
 	// size of a leafs value in byte
 	private int nodeValueElementSize = 8;
+	// size of a key in byte, 32 bit keys are stored without their upper word
+	private int nodeKeyElementSize = 8;
+	// whether the pages record the element sizes, see setElementSizes()
+	private boolean recordElementSizes = false;
+	// store leaf values prefix-shared where this is smaller than fixed-width
+	private boolean leafValuePrefixSharing = false;
+	private boolean leafPostingLists = false;
+	private boolean leafDenseKeys = false;
+	// compression of leaf pages, see setLeafPageCodec()
+	private volatile PageCodec leafPageCodec;
+
+	// read-ahead of siblings, see setPrefetchDepth()
+	private int prefetchDepth = 0;
+	// also guards the state of the scan detection
+	private final PrimLongMapZ<Future<PagedBTreeNode>> prefetched = new PrimLongMapZ<>();
+	private long prefetchTxId;
+	private int lastParentPageId;
+	private int lastChildIndex = -1;
+	// see setPrefetchExecutor(), guarded by prefetched
+	private ExecutorService prefetchExecutor;
+	private boolean isDefaultPrefetchExecutor;
+	// reader of the read-ahead, the pooled input channels are used by the 
+	// session, guarded by prefetchReaderLock
+	private StorageChannelInput prefetchIn;
+	private final Object prefetchReaderLock = new Object();
+
+	// off-heap images of pages read from storage, see setPageImageArenaSize()
+	private volatile PageImageArena pageImages;
+	// encoded pages of evicted nodes, see setCompressedPageCacheSize()
+	private volatile CompressedPageCache compressedPages;
 
 	public BTreeStorageBufferManager(IOResourceProvider storage, boolean isUnique) {
-		this.dirtyBuffer = new PrimLongMapZ<>();
-		this.cleanBuffer = new PrimLongMapZ<>();
+		this.pageTable = new BTreePageTable();
 		this.isUnique = isUnique;
 		this.storageFile = storage;
     	this.pageSize = this.storageFile.getPageSize();
@@ -97,48 +176,391 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	 */
 	@Override
 	public PagedBTreeNode read(int pageId) {
+		poolUses.increment();
+		evictRequested();
 		// search node in memory
 		PagedBTreeNode node = readNodeFromMemory(pageId);
 		if (node != null) {
+			BTreeMetrics m = metrics;
+			if (m != null) {
+				m.recordHit(node.isLeaf());
+			}
 			return node;
 		}
 
+		if (prefetchDepth > 0) {
+			node = takePrefetched(pageId);
+			if (node != null) {
+				return node;
+			}
+		}
+
 		// search node in storage
 		return readNodeFromStorage(pageId);
 	}
 
-	public PagedBTreeNode readNodeFromMemory(int pageId) {
-		PagedBTreeNode node = dirtyBuffer.get(pageId);
-		if(node != null) {
-			return node;
+	@Override
+	public PagedBTreeNode readChild(PagedBTreeNode parent, int index) {
+		if (prefetchDepth > 0) {
+			synchronized (prefetched) {
+				detectScan(parent, index);
+			}
+		}
+		return read(parent.getChildrenPageIds()[index]);
+	}
+
+	@Override
+	public void touch(PagedBTreeNode child) {
+		poolUses.increment();
+		evictRequested();
+		BTreeMetrics m = metrics;
+		if (m != null) {
+			m.recordHit(child.isLeaf());
+		}
+	}
+
+	/**
+	 * Enables read-ahead during scans. When the children of a node are read
+	 * in sequence, the next depth siblings are read and decoded on a 
+	 * background thread, and added to the clean buffer when they are needed.
+	 * 
+	 * The pages are read on the read-ahead thread of the buffer manager, see 
+	 * {@link #setPrefetchExecutor(ExecutorService)}, with a reader of their 
+	 * own, so that the pooled input channels of the storage are not shared 
+	 * between threads. The reader is released by close().
+	 * 
+	 * @param depth     The number of siblings to read ahead, 0 disables the 
+	 *                  read-ahead
+	 */
+	public void setPrefetchDepth(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("Invalid prefetch depth: " + depth);
+		}
+		this.prefetchDepth = depth;
+		if (depth == 0) {
+			synchronized (prefetched) {
+				cancelPrefetches();
+			}
+		}
+	}
+
+	public int getPrefetchDepth() {
+		return prefetchDepth;
+	}
+
+	/**
+	 * Sets the executor that reads ahead, e.g. to share one executor between 
+	 * the indexes of a database. By default, every buffer manager uses its 
+	 * own thread, which ends when it is idle, so that a slow index does not 
+	 * delay the read-ahead of other indexes.
+	 * 
+	 * @param executor  The executor, or null for the default
+	 */
+	public void setPrefetchExecutor(ExecutorService executor) {
+		synchronized (prefetched) {
+			cancelPrefetches();
+			shutdownDefaultPrefetchExecutor();
+			prefetchExecutor = executor;
+		}
+		closePrefetchReader();
+	}
+
+	/**
+	 * Stops the read-ahead and releases its reader. The buffer manager can 
+	 * still be used afterwards, the read-ahead is started again if needed.
+	 */
+	public void close() {
+		synchronized (prefetched) {
+			cancelPrefetches();
+			shutdownDefaultPrefetchExecutor();
+		}
+		closePrefetchReader();
+	}
+
+	// the caller must hold the lock of prefetched
+	private void shutdownDefaultPrefetchExecutor() {
+		if (isDefaultPrefetchExecutor) {
+			prefetchExecutor.shutdown();
+			prefetchExecutor = null;
+			isDefaultPrefetchExecutor = false;
+		}
+	}
+
+	private void closePrefetchReader() {
+		// waits for a page that is being read ahead
+		synchronized (prefetchReaderLock) {
+			prefetchIn = null;
+		}
+	}
+
+	private void detectScan(PagedBTreeNode parent, int index) {
+		int parentPageId = parent.getPageId();
+		if (parentPageId == lastParentPageId) {
+			if (index == lastChildIndex + 1) {
+				prefetchChildren(parent, index + 1, 
+						Math.min(index + prefetchDepth, parent.getNumKeys()));
+			} else if (index == lastChildIndex - 1) {
+				prefetchChildren(parent, Math.max(index - prefetchDepth, 0), index - 1);
+			}
+		}
+		lastParentPageId = parentPageId;
+		lastChildIndex = index;
+	}
+
+	private void prefetchChildren(PagedBTreeNode parent, int from, int to) {
+		if (prefetchTxId != getTxId()) {
+			// pages may have been re-used by another transaction
+			cancelPrefetches();
+			prefetchTxId = getTxId();
+		}
+		int[] childrenPageIds = parent.getChildrenPageIds();
+		for (int i = from; i <= to; i++) {
+			int pageId = childrenPageIds[i];
+			if (pageId < 0 || readNodeFromMemory(pageId) != null || prefetched.get(pageId) != null) {
+				continue;
+			}
+			prefetched.put(pageId, getPrefetchExecutor().submit(() -> decodePrefetched(pageId)));
+		}
+	}
+
+	private PagedBTreeNode decodePrefetched(int pageId) {
+		// a shared executor may read several pages of this tree at once
+		synchronized (prefetchReaderLock) {
+			if (prefetchIn == null) {
+				prefetchIn = storageFile.createReader(false);
+			}
+			return readNodeData(pageId, prefetchIn);
+		}
+	}
+
+	private PagedBTreeNode takePrefetched(int pageId) {
+		Future<PagedBTreeNode> future;
+		synchronized (prefetched) {
+			future = prefetched.remove(pageId);
+			if (future == null) {
+				return null;
+			}
+			if (prefetchTxId != getTxId()) {
+				cancelPrefetches();
+				return null;
+			}
+		}
+		PagedBTreeNode node;
+		try {
+			node = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			LOGGER.warn("Read-ahead of page {} failed: {}", pageId, e.getCause());
+			return null;
+		}
+		statNReadPages.incrementAndGet();
+		statNPrefetchedPages.incrementAndGet();
+		return addReadNode(node);
+	}
+
+	// the caller must hold the lock of prefetched
+	private void cancelPrefetches() {
+		if (prefetched.isEmpty()) {
+			return;
+		}
+		for (Future<PagedBTreeNode> future : prefetched.values()) {
+			future.cancel(false);
 		}
+		prefetched.clear();
+	}
 
-		return cleanBuffer.get(pageId);
+	// the caller must hold the lock of prefetched
+	private ExecutorService getPrefetchExecutor() {
+		if (prefetchExecutor == null) {
+			// at most one thread, which ends after a second without work
+			prefetchExecutor = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<>(), r -> {
+						Thread t = new Thread(r, "ZooDB-BTree-prefetch");
+						t.setDaemon(true);
+						return t;
+					});
+			isDefaultPrefetchExecutor = true;
+		}
+		return prefetchExecutor;
+	}
+
+	public PagedBTreeNode readNodeFromMemory(int pageId) {
+		return pageTable.get(pageId);
 	}
 
 	public PagedBTreeNode readNodeFromStorage(int pageId) {
+		PageImageArena arena = pageImages;
+		if (arena != null) {
+			int slot = arena.pin(pageId);
+			if (slot >= 0) {
+				PagedBTreeNode node;
+				try {
+					node = decodeNode(pageId, arena.image(slot));
+				} finally {
+					arena.unpin(slot);
+				}
+				statNPageImageReads.incrementAndGet();
+				return addReadNode(node);
+			}
+		}
+		CompressedPageCache cache = compressedPages;
+		if (cache != null) {
+			byte[] page = cache.get(pageId);
+			if (page != null) {
+				statNCompressedPageReads.incrementAndGet();
+				return addReadNode(decodeNode(pageId, ByteBuffer.wrap(page)));
+			}
+		}
+
 		StorageChannelInput storageIn = storageFile.getInputChannel();
+		PagedBTreeNode node = readNodeData(pageId, storageIn);
+		storageFile.returnInputChannel(storageIn);
+		
+		statNReadPages.incrementAndGet();
+
+		return addReadNode(node);
+	}
+
+	/**
+	 * Adds a node that has been decoded from storage. If another thread has 
+	 * read the same page in the meantime, its node is returned instead, so 
+	 * that there is only one node per page.
+	 */
+	private PagedBTreeNode addReadNode(PagedBTreeNode node) {
+		BTreeMetrics m = metrics;
+		if (m != null) {
+			m.recordMiss(node.isLeaf());
+		}
+		// node in memory == node in storage
+		node.markDecoded();
+		return putInCleanBuffer(node.getPageId(), node, true);
+	}
+
+	// reads and decodes a node without touching the buffers
+	private PagedBTreeNode readNodeData(int pageId, StorageChannelInput storageIn) {
+		BTreeEvents.PageReadEvent event = new BTreeEvents.PageReadEvent();
+		event.begin();
         storageIn.seekPageForRead(dataType, pageId);
+        byte[] image = new byte[pageImageSize()];
+        storageIn.noCheckRead(image);
+        ByteBuffer page = ByteBuffer.wrap(image);
+        PagedBTreeNode node = decodeNode(pageId, page);
+        PageImageArena arena = pageImages;
+        if (arena != null) {
+        	// decoding stops at the end of the encoded page
+        	arena.put(pageId, image, page.position());
+        }
+        if (event.shouldCommit()) {
+        	event.pageId = pageId;
+        	event.leaf = node.isLeaf();
+        	event.bytes = DiskIO.PAGE_HEADER_SIZE + image.length;
+        	event.commit();
+        }
+        return node;
+	}
 
-		PagedBTreeNode node;
+	/**
+	 * Decodes a node from the image of its page, the image starts after the
+	 * page header.
+	 */
+	private PagedBTreeNode decodeNode(int pageId, ByteBuffer page) {
+		BTreeMetrics m = metrics;
+		if (m == null) {
+			return decodePage(pageId, page);
+		}
+		long start = System.nanoTime();
+		PagedBTreeNode node = decodePage(pageId, page);
+		m.recordDecode(System.nanoTime() - start);
+		return node;
+	}
 
-		boolean isLeaf = storageIn.readByte() < 0 ? true : false;
+	private PagedBTreeNode decodePage(int pageId, ByteBuffer page) {
+		// pages without element sizes use the sizes of the tree
+		return decodePage(pageId, page, nodeKeyElementSize, nodeValueElementSize);
+	}
+
+	private PagedBTreeNode decodePage(int pageId, ByteBuffer page, int keySize, int valueSize) {
+		byte nodeType = page.get();
+		boolean isLeaf = nodeType < 0 ? true : false;
 		
-		/* Deal with prefix-sharing encoded keys */
-		byte[] metadata = new byte[5];
-		storageIn.noCheckRead(metadata);
+		if (nodeType == PAGE_LEAF_ELEMENT_SIZES || nodeType == PAGE_INNER_ELEMENT_SIZES) {
+			keySize = page.get();
+			valueSize = page.get();
+			return decodePage(pageId, page, keySize, valueSize);
+		} else if (nodeType == PAGE_LEAF_COMPRESSED) {
+			return readCompressedLeaf(pageId, page, keySize, valueSize);
+		} else if (nodeType == PAGE_LEAF_POSTING_LIST) {
+			return readPostingListLeaf(pageId, page, keySize);
+		} else {
+			return readPrefixSharedNode(pageId, isLeaf, nodeType, page, keySize, valueSize);
+		}
+	}
+
+	private PagedBTreeNode readCompressedLeaf(int pageId, ByteBuffer page, 
+			int keySize, int valueSize) {
+		byte codecId = page.get();
+		PageCodec codec = leafPageCodec;
+		if (codec == null || codec.getId() != codecId) {
+			codec = PageCodec.forId(codecId);
+			if (codec == null) {
+				throw new IllegalStateException("Page " + pageId 
+						+ " is compressed with the unknown codec " + codecId);
+			}
+		}
+		byte[] encodedLeaf = new byte[page.getInt()];
+		byte[] compressedLeaf = new byte[page.getInt()];
+		page.get(compressedLeaf);
+		codec.decompress(compressedLeaf, 0, compressedLeaf.length, encodedLeaf, 0);
+		return decodePage(pageId, ByteBuffer.wrap(encodedLeaf), keySize, valueSize);
+	}
+
+	private PagedBTreeNode readPrefixSharedNode(int pageId, boolean isLeaf, byte nodeType, 
+			ByteBuffer page, int keySize, int valueSize) {
+		PagedBTreeNode node;
+		boolean denseKeys = nodeType == PAGE_LEAF_DENSE_KEYS 
+				|| nodeType == PAGE_LEAF_DENSE_KEYS_PREFIX_SHARED_VALUES;
+		/* Deal with prefix-sharing or dense encoded keys */
+		byte[] metadata = new byte[denseKeys ? DenseKeyHelper.DENSE_KEYS_METADATA_SIZE : 5];
+		page.get(metadata);
 		int numKeys = PrefixSharingHelper.byteArrayToInt(metadata, 0);
 		byte prefixLength = metadata[4];
-		int encodedArraySize = PrefixSharingHelper.encodedArraySizeWithoutMetadata(numKeys, prefixLength);
+		int encodedArraySize = denseKeys 
+				? PrefixSharingHelper.byteArrayToInt(metadata, 4)
+				: PrefixSharingHelper.encodedArraySizeWithoutMetadata(numKeys, prefixLength);
 		byte[] encodedArrayWithoutMetadata = new byte[encodedArraySize];
-		storageIn.noCheckRead(encodedArrayWithoutMetadata);
-        int maxNumKeys = PagedBTreeNode.computeMaxPossibleEntries(isUnique, isLeaf, getPageSize(), nodeValueElementSize);
+		page.get(encodedArrayWithoutMetadata);
+        int maxNumKeys = PagedBTreeNode.computeMaxPossibleEntries(isUnique, isLeaf, getPageSize(), 
+        		valueSize, leafValuePrefixSharing, leafPostingLists, 
+        		isLeafPageCompression(), leafDenseKeys);
+        // the page may have been written with a different value encoding
+        maxNumKeys = Math.max(maxNumKeys, numKeys + 1);
+        // the key and value arrays grow on demand, see BTreeNode.ensureCapacity()
+        int arrayLength = numKeys + 1;
 
-		long[] keys = PrefixSharingHelper.decodeArray(encodedArrayWithoutMetadata, numKeys, maxNumKeys, prefixLength);
+		long[] keys;
+		if (denseKeys) {
+			keys = new long[arrayLength];
+			DenseKeyHelper.decode(encodedArrayWithoutMetadata, numKeys, keys);
+		} else {
+			keys = PrefixSharingHelper.decodeArray(encodedArrayWithoutMetadata, numKeys, arrayLength, prefixLength);
+		}
+		if (keySize == 4) {
+			for (int i = 0; i < numKeys; i++) {
+				keys[i] = PrefixSharingHelper.decodeIntKey(keys[i]);
+			}
+		}
 
 		if (isLeaf) {
-			long[] values = new long[maxNumKeys];
-			readValues(values, numKeys, storageIn);
+			long[] values;
+			if (nodeType == PAGE_LEAF_PREFIX_SHARED_VALUES 
+					|| nodeType == PAGE_LEAF_DENSE_KEYS_PREFIX_SHARED_VALUES) {
+				values = readPrefixSharedValues(numKeys, arrayLength, page);
+			} else {
+				values = new long[arrayLength];
+				readValues(values, numKeys, page, valueSize);
+			}
 			node = PagedBTreeNodeFactory.constructLeaf(this, isUnique, false,
 								pageSize, pageId, numKeys,
 								keys, values);
@@ -147,39 +569,73 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 
             long[] values = null;
             if (!isUnique) {
-                values = new long[maxNumKeys];
-                readValues(values, numKeys, storageIn);
+                values = new long[arrayLength];
+                readValues(values, numKeys, page, valueSize);
             }
-			storageIn.noCheckRead(childrenPageIds, numKeys+1);
+			page.asIntBuffer().get(childrenPageIds, 0, numKeys+1);
+			page.position(page.position() + 4 * (numKeys+1));
 			node = PagedBTreeNodeFactory.constructInnerNode(this, isUnique, false,
 								pageSize, pageId, numKeys, keys, values,
 								childrenPageIds);
 		}
+		return node;
+	}
 
-		// node in memory == node in storage
-		node.markClean();
-		putInCleanBuffer(node.getPageId(), node);
-		
-		statNReadPages++;
+	private PagedBTreeNode readPostingListLeaf(int pageId, ByteBuffer page, int keySize) {
+		byte[] intBuffer = new byte[4];
+		page.get(intBuffer);
+		int numKeys = PrefixSharingHelper.byteArrayToInt(intBuffer, 0);
 
-		storageFile.returnInputChannel(storageIn);
-		
-		return node;
+		byte[] metadata = new byte[PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE];
+		page.get(metadata);
+		int numDistinct = PrefixSharingHelper.byteArrayToInt(metadata, 0);
+		byte prefixLength = metadata[4];
+		byte[] encodedKeys = new byte[
+		        PrefixSharingHelper.encodedArraySizeWithoutMetadata(numDistinct, prefixLength)];
+		page.get(encodedKeys);
+		long[] distinctKeys = PrefixSharingHelper.decodeArray(encodedKeys, numDistinct, prefixLength);
+
+		page.get(intBuffer);
+		byte[] runs = new byte[PrefixSharingHelper.byteArrayToInt(intBuffer, 0)];
+		page.get(runs);
+
+		// the key and value arrays grow on demand, see BTreeNode.ensureCapacity()
+		long[] keys = new long[numKeys + 1];
+		long[] values = new long[numKeys + 1];
+		PostingListHelper.decodeRuns(runs, distinctKeys, numDistinct, keys, values);
+		if (keySize == 4) {
+			for (int i = 0; i < numKeys; i++) {
+				keys[i] = PrefixSharingHelper.decodeIntKey(keys[i]);
+			}
+		}
+		return PagedBTreeNodeFactory.constructLeaf(this, isUnique, false,
+				pageSize, pageId, numKeys, keys, values);
 	}
 	
-	private void readValues(long[] values, int numValues, StorageChannelInput storageIn) {
-		if(nodeValueElementSize == 8) {
-			storageIn.noCheckRead(values, numValues);
+	private long[] readPrefixSharedValues(int numValues, int maxNumValues, ByteBuffer page) {
+		byte[] metadata = new byte[PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE];
+		page.get(metadata);
+		byte prefixLength = metadata[4];
+		int encodedArraySize = PrefixSharingHelper.encodedArraySizeWithoutMetadata(numValues, prefixLength);
+		byte[] encodedArrayWithoutMetadata = new byte[encodedArraySize];
+		page.get(encodedArrayWithoutMetadata);
+		return PrefixSharingHelper.decodeArray(encodedArrayWithoutMetadata, numValues, maxNumValues, prefixLength);
+	}
+
+	private void readValues(long[] values, int numValues, ByteBuffer page, int valueSize) {
+		if(valueSize == 8) {
+			page.asLongBuffer().get(values, 0, numValues);
+			page.position(page.position() + 8 * numValues);
 		} else {
 			for(int i = 0; i < numValues; i++) {
-				if(nodeValueElementSize == 1) {
-					values[i] = storageIn.readByte();
+				if(valueSize == 1) {
+					values[i] = page.get();
 				}
-				else if(nodeValueElementSize == 2) {
-					values[i] = storageIn.readShort();
+				else if(valueSize == 2) {
+					values[i] = page.getShort();
 				}
-				else if(nodeValueElementSize == 4) {
-					values[i] = storageIn.readInt();
+				else if(valueSize == 4) {
+					values[i] = page.getInt();
 				} else {
 					throw new UnsupportedOperationException();
 				}
@@ -199,6 +655,10 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		if (!node.isDirty()) {
 			return node.getPageId();
 		}
+		// written pages are freed and may be re-used
+		synchronized (prefetched) {
+			cancelPrefetches();
+		}
 		if (!node.isLeaf()) /* is inner node */{
 			// write children
 			int childIndex = 0;
@@ -215,15 +675,18 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		}
 		// write data to storage and obtain new pageId
 		int newPageId = writeNodeDataToStorage(node, out);
+		// the previous page is freed, the new page may have been re-used
+		invalidatePage(node.getPageId());
+		invalidatePage(newPageId);
 
 		// update pageId in memory
-		dirtyBuffer.remove(node.getPageId());
-		putInCleanBuffer(newPageId, node);
+		pageTable.remove(node.getPageId(), PageState.DIRTY);
+		putInCleanBuffer(newPageId, node, false);
 
 		node.setPageId(newPageId);
 		node.markClean();
 		
-		statNWrittenPages++;
+		statNWrittenPages.incrementAndGet();
 
 		return newPageId;
 	}
@@ -235,15 +698,114 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	 * 
 	 * @param pageId
 	 * @param node
+	 * @param ifAbsent	Whether to keep a node that is already in memory
+	 * @return the node of the page
 	 */
-	private void putInCleanBuffer(int pageId, PagedBTreeNode node) {
-		if(maxCleanBufferElements < 0 || cleanBuffer.size() < maxCleanBufferElements) {
-			cleanBuffer.put(pageId, node);
+	private PagedBTreeNode putInCleanBuffer(int pageId, PagedBTreeNode node, boolean ifAbsent) {
+		PageState state = PageState.CLEAN;
+		// with concurrent readers, the limits may be exceeded by a few nodes
+		if (!node.isLeaf() && (pageTable.size(PageState.PINNED) < maxPinnedInnerNodes
+				|| pageTable.contains(pageId, PageState.PINNED))) {
+			state = PageState.PINNED;
 		} else {
-			LOGGER.warn("Flushing whole buffer.");
-			//TODO TZ We should only flush old and rarely used elements. 
-			cleanBuffer.clear();
+			BTreeBufferPool pool = bufferPool;
+			if (pool != null && !pageTable.contains(pageId, PageState.CLEAN)) {
+				pool.reserve(this);
+			}
+			int max = maxCleanBufferElements;
+			if (max >= 0 && pageTable.size(PageState.CLEAN) >= max) {
+				LOGGER.warn("Flushing whole buffer.");
+				//TODO TZ We should only flush old and rarely used elements. 
+				flushCleanBuffer();
+			}
+		}
+		if (ifAbsent) {
+			return pageTable.putIfAbsent(pageId, node, state);
 		}
+		pageTable.put(pageId, node, state);
+		return node;
+	}
+
+	/**
+	 * Evicts all nodes of the clean buffer. Their encoded pages are kept in 
+	 * the compressed page cache, if there is one.
+	 */
+	void flushCleanBuffer() {
+		evict(pageTable.removeAll(PageState.CLEAN));
+	}
+
+	/**
+	 * Evicts up to n nodes of the clean buffer, see flushCleanBuffer().
+	 */
+	void evictCleanNodes(int n) {
+		evict(pageTable.removeSome(PageState.CLEAN, n));
+	}
+
+	private void evict(List<PagedBTreeNode> nodes) {
+		CompressedPageCache cache = compressedPages;
+		BTreeMetrics m = metrics;
+		for (PagedBTreeNode evicted : nodes) {
+			if (m != null) {
+				m.recordEviction();
+			}
+			BTreeEvents.pageEvicted(evicted);
+			evicted.unswizzle();
+			int pageId = evicted.getPageId();
+			if (cache != null && pageId > 0 && !cache.contains(pageId)) {
+				cache.put(pageId, encodeNode(evicted));
+			}
+		}
+	}
+
+	/**
+	 * Limits the clean nodes of this buffer manager together with the clean 
+	 * nodes of all other buffer managers that use the same pool, see 
+	 * {@link BTreeBufferPool}.
+	 * 
+	 * @param bufferPool    The pool, or null to leave the current pool
+	 */
+	public void setBufferPool(BTreeBufferPool bufferPool) {
+		if (this.bufferPool != null) {
+			this.bufferPool.unregister(this);
+		}
+		this.bufferPool = bufferPool;
+		requestedEvictions.set(0);
+		pageTable.setSharedCleanSize(bufferPool == null ? null : bufferPool.getCleanNodeCounter());
+		if (bufferPool != null) {
+			bufferPool.register(this);
+		}
+	}
+
+	public BTreeBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Asks the buffer manager to evict n clean nodes on its own thread, the
+	 * next time it uses a node.
+	 */
+	void requestEviction(int n) {
+		requestedEvictions.accumulateAndGet(n, Math::max);
+	}
+
+	boolean hasRequestedEviction() {
+		return requestedEvictions.get() > 0;
+	}
+
+	private void evictRequested() {
+		if (requestedEvictions.get() > 0) {
+			evictCleanNodes(requestedEvictions.getAndSet(0));
+		}
+	}
+
+	long getPoolUses() {
+		return poolUses.sum();
+	}
+
+	void agePoolUses() {
+		// uses that are counted concurrently are kept
+		long uses = poolUses.sum();
+		poolUses.add(-(uses - (uses >>> 1)));
 	}
 
 	/**
@@ -255,52 +817,183 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	 * prefixShareEncoding(keys) 
 	 * size(value) bytes * numKeys for values
 	 * 
+	 * Leaf node page with prefix shared values: 
+	 * 1 byte -2 
+	 * prefixShareEncoding(keys) 
+	 * prefixShareEncoding(values)
+	 * 
+	 * Non-unique leaf node page stored as posting lists: 
+	 * 1 byte -3 
+	 * postingListEncoding(keys, values), see {@link PostingListHelper}
+	 * 
+	 * Compressed leaf node page, see compressLeaf(): 
+	 * 1 byte -4 
+	 * 
+	 * Leaf node page with dense keys: 
+	 * 1 byte -5, or -6 with prefix shared values 
+	 * denseEncoding(keys), see {@link DenseKeyHelper} 
+	 * values as above 
+	 * 
 	 * Inner node page: 
 	 * 1 byte 0 
 	 * prefixShareEncoding(keys) 
 	 * size(value) bytes * numKeys for values (if NonUniqueNode
 	 * 4 byte * (numKeys + 1) for childrenPageIds 
+	 * 
+	 * Pages of trees with smaller keys or values, see setElementSizes(): 
+	 * 1 byte -7 for leaves, 2 for inner nodes 
+	 * 1 byte size(key) 
+	 * 1 byte size(value) 
+	 * the page as above, which is decoded with these sizes 
 	 */
 	private int writeNodeDataToStorage(PagedBTreeNode node, StorageChannelOutput storageOut) {
 
 		int previousPageId = node.getPageId() < 0 ? 0 : node.getPageId();
 		// if node was not written before (negative "page id") use 0
 		// as previous page id
+		BTreeEvents.PageWriteEvent event = new BTreeEvents.PageWriteEvent();
+		event.begin();
+
+		// encode first, a node that does not fit must not allocate a page
+		BTreeMetrics m = metrics;
+		long start = m == null ? 0 : System.nanoTime();
+		byte[] page = encodeNode(node);
+		if (m != null) {
+			m.recordEncode(System.nanoTime() - start);
+		}
 		int pageId = storageOut.allocateAndSeek(dataType, previousPageId);
+		storageOut.noCheckWrite(page);
+		statNWrittenBytes.addAndGet(DiskIO.PAGE_HEADER_SIZE + page.length);
+
+		storageOut.flush();
+		if (event.shouldCommit()) {
+			event.pageId = pageId;
+			event.leaf = node.isLeaf();
+			event.bytes = DiskIO.PAGE_HEADER_SIZE + page.length;
+			event.commit();
+		}
+		return pageId;
+	}
 
-		if (node.isLeaf()) {
-			storageOut.writeByte((byte) -1);
-			byte[] encodedKeys = PrefixSharingHelper.encodeArray(node.getKeys(), node.getNumKeys(), node.getPrefix());
-			storageOut.noCheckWrite(encodedKeys);
-			writeValues(node.getValues(), node.getNumKeys(), storageOut);
+	/**
+	 * Encodes a node as it is written to its page, without the page header.
+	 * Throws a BufferOverflowException if the node does not fit into a page.
+	 */
+	private byte[] encodeNode(PagedBTreeNode node) {
+		if (!recordElementSizes) {
+			return encodeNodeData(node, pageImageSize());
+		}
+		byte[] data = encodeNodeData(node, pageImageSize() - ELEMENT_SIZES_HEADER_SIZE);
+		byte[] page = new byte[ELEMENT_SIZES_HEADER_SIZE + data.length];
+		page[0] = node.isLeaf() ? PAGE_LEAF_ELEMENT_SIZES : PAGE_INNER_ELEMENT_SIZES;
+		page[1] = (byte) nodeKeyElementSize;
+		page[2] = (byte) nodeValueElementSize;
+		System.arraycopy(data, 0, page, ELEMENT_SIZES_HEADER_SIZE, data.length);
+		return page;
+	}
+
+	private byte[] encodeNodeData(PagedBTreeNode node, int maxSize) {
+		PageCodec codec = leafPageCodec;
+		if (codec == null || !node.isLeaf()) {
+			return encodeNode(node, maxSize);
+		}
+		// a leaf may only fit into its page when it is compressed
+		byte[] page = encodeNode(node, Math.max(maxSize, node.computeSize()));
+		byte[] compressedPage = compressLeaf(page, codec);
+		if (compressedPage.length < page.length) {
+			page = compressedPage;
+		}
+		if (page.length > maxSize) {
+			throw new BufferOverflowException();
+		}
+		return page;
+	}
+
+	private byte[] encodeNode(PagedBTreeNode node, int maxSize) {
+		ByteBuffer page = ByteBuffer.allocate(maxSize);
+		if (node.hasPostingList()) {
+			page.put(PAGE_LEAF_POSTING_LIST);
+			page.put(PostingListHelper.encode(keysForStorage(node), node.getValues(), 
+					node.getNumKeys(), node.getPrefix()));
+		} else if (node.isLeaf()) {
+			boolean prefixSharedValues = node.hasPrefixSharedValues();
+			byte[] encodedKeys;
+			if (node.hasDenseKeys()) {
+				page.put(prefixSharedValues ? PAGE_LEAF_DENSE_KEYS_PREFIX_SHARED_VALUES : PAGE_LEAF_DENSE_KEYS);
+				encodedKeys = DenseKeyHelper.encode(keysForStorage(node), node.getNumKeys());
+			} else {
+				page.put(prefixSharedValues ? PAGE_LEAF_PREFIX_SHARED_VALUES : PAGE_LEAF);
+				encodedKeys = PrefixSharingHelper.encodeArray(keysForStorage(node), node.getNumKeys(), node.getPrefix());
+			}
+			page.put(encodedKeys);
+			if (prefixSharedValues) {
+				byte[] encodedValues = PrefixSharingHelper.encodeArray(
+						node.getValues(), node.getNumKeys(), node.getValuePrefix());
+				page.put(encodedValues);
+			} else {
+				writeValues(node.getValues(), node.getNumKeys(), page);
+			}
 
 		} else {
-			storageOut.writeByte((byte) 1);
-			byte[] encodedKeys = PrefixSharingHelper.encodeArray(node.getKeys(), node.getNumKeys(), node.getPrefix());
-			storageOut.noCheckWrite(encodedKeys);
+			page.put(PAGE_INNER);
+			byte[] encodedKeys = PrefixSharingHelper.encodeArray(keysForStorage(node), node.getNumKeys(), node.getPrefix());
+			page.put(encodedKeys);
             if (node.getValues() != null) {
-				writeValues(node.getValues(), node.getNumKeys(), storageOut);
+				writeValues(node.getValues(), node.getNumKeys(), page);
             }
-			storageOut.noCheckWrite(node.getChildrenPageIds(), node.getNumKeys()+1);
+			page.asIntBuffer().put(node.getChildrenPageIds(), 0, node.getNumKeys()+1);
+			page.position(page.position() + 4 * (node.getNumKeys()+1));
 		}
+		return Arrays.copyOf(page.array(), page.position());
+	}
 
-		storageOut.flush();
-		return pageId;
+	/**
+	 * Compressed leaf page:
+	 * 1 byte -4
+	 * 1 byte id of the codec, see {@link PageCodec#getId()}
+	 * 4 byte length of the encoded leaf
+	 * 4 byte length of the compressed leaf
+	 * the compressed leaf, starting with its own node type
+	 */
+	private byte[] compressLeaf(byte[] encodedLeaf, PageCodec codec) {
+		byte[] page = new byte[COMPRESSED_LEAF_HEADER_SIZE 
+		                       + codec.maxCompressedLength(encodedLeaf.length)];
+		int size = codec.compress(encodedLeaf, 0, encodedLeaf.length, 
+				page, COMPRESSED_LEAF_HEADER_SIZE);
+		ByteBuffer header = ByteBuffer.wrap(page);
+		header.put(PAGE_LEAF_COMPRESSED);
+		header.put(codec.getId());
+		header.putInt(encodedLeaf.length);
+		header.putInt(size);
+		return Arrays.copyOf(page, COMPRESSED_LEAF_HEADER_SIZE + size);
+	}
+	
+	private long[] keysForStorage(PagedBTreeNode node) {
+		if (nodeKeyElementSize == 8) {
+			return node.getKeys();
+		}
+		long[] keys = new long[node.getNumKeys()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = PrefixSharingHelper.encodeIntKey(node.getKey(i));
+		}
+		return keys;
 	}
 	
-	private void writeValues(long[] values, int numValues, StorageChannelOutput storageOut) {
+	private void writeValues(long[] values, int numValues, ByteBuffer page) {
 		if(nodeValueElementSize == 8) {
-			storageOut.noCheckWrite(values, numValues);
+			page.asLongBuffer().put(values, 0, numValues);
+			page.position(page.position() + 8 * numValues);
 		} else {
 			for(int i = 0; i < numValues; i++) {
+				assert fitsElementSize(values[i], nodeValueElementSize) : values[i];
 				if(nodeValueElementSize == 1) {
-					storageOut.writeByte((byte)values[i]);
+					page.put((byte)values[i]);
 				}
 				else if(nodeValueElementSize == 2) {
-					storageOut.writeShort((short)values[i]);
+					page.putShort((short)values[i]);
 				}
 				else if(nodeValueElementSize == 4) {
-					storageOut.writeInt((int)values[i]);
+					page.putInt((int)values[i]);
 				} else {
 					throw new UnsupportedOperationException();
 				}
@@ -319,14 +1012,14 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		 * nodes which only reside in memory have a negative
 		 * "page id".
 		 */
-		pageIdCounter--;
+		int pageId = pageIdCounter.decrementAndGet();
 		if(node.isDirty()) {
-            dirtyBuffer.put(pageIdCounter, node);
+            pageTable.put(pageId, node, PageState.DIRTY);
 		} else {
-            putInCleanBuffer(pageIdCounter, node);
+            putInCleanBuffer(pageId, node, false);
 		}
 
-		return pageIdCounter;
+		return pageId;
 	}
 
 	/**
@@ -336,47 +1029,121 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	@Override
 	public void remove(PagedBTreeNode node) {
 		int pageId = node.getPageId();
-		if(node.isDirty()) {
-			dirtyBuffer.remove(pageId);
-		} else {
-			cleanBuffer.remove(pageId);
-		}
+		pageTable.remove(pageId);
+		node.unswizzle();
 		if(pageId > 0) {
 			// page has been written to storage
-			this.storageFile.reportFreePage(pageId);
+			freePage(pageId);
 		}
 	}
 	
 	/**
-	 * Clears memory and recursively frees the pages of the 
-	 * nodes.
+	 * Removes a sub-tree from memory and frees its pages. Leaves that 
+	 * are not in memory are freed by their page id, without reading them.
+	 * 
+	 * @param pageId	The page id of the root of the sub-tree
+	 * @param height	The height of the sub-tree, 0 for a leaf
 	 */
 	@Override
-	public void clear(PagedBTreeNode root) {
-		clearHelper(root);
-		cleanBuffer.clear();
-		dirtyBuffer.clear();
+	public void removeSubtree(int pageId, int height) {
+		PagedBTreeNode node = readNodeFromMemory(pageId);
+		if (node == null) {
+			Future<PagedBTreeNode> future;
+			synchronized (prefetched) {
+				future = prefetched.remove(pageId);
+			}
+			if (future != null) {
+				future.cancel(false);
+			}
+			if (height == 0) {
+				if (pageId > 0) {
+					freePage(pageId);
+				}
+				return;
+			}
+			node = readNodeFromStorage(pageId);
+		}
+		removeSubtree(node, height);
 	}
 	
-	public void clearHelper(PagedBTreeNode node) {
-		if(!node.isLeaf()) {
-			for (int childPageId : node.getChildrenPageIdList()) {
-				PagedBTreeNode child = read(childPageId);
-				clearHelper(child);
+	private void freePage(int pageId) {
+		invalidatePage(pageId);
+		this.storageFile.reportFreePage(pageId);
+	}
+
+	// the page is freed or re-used, its cached images are stale
+	private void invalidatePage(int pageId) {
+		PageImageArena arena = pageImages;
+		if (arena != null) {
+			arena.remove(pageId);
+		}
+		CompressedPageCache cache = compressedPages;
+		if (cache != null) {
+			cache.remove(pageId);
+		}
+	}
+
+	private void removeSubtree(PagedBTreeNode node, int height) {
+		if (height > 0) {
+			int[] childrenPageIds = node.getChildrenPageIds();
+			for (int i = 0; i <= node.getNumKeys(); i++) {
+				removeSubtree(childrenPageIds[i], height - 1);
 			}
 		}
-		if(node.getPageId() > 0) {
-            // page has been written to storage
-			this.storageFile.reportFreePage(node.getPageId());
+		remove(node);
+	}
+	
+	/**
+	 * Clears memory and frees the pages of all nodes. Only inner nodes 
+	 * are read, leaf pages are freed by the page ids stored in their parents.
+	 */
+	@Override
+	public void clear(PagedBTreeNode root) {
+		removeSubtree(root, subtreeHeight(root));
+		synchronized (prefetched) {
+			cancelPrefetches();
+		}
+		closePrefetchReader();
+		if (pageImages != null) {
+			pageImages.clear();
 		}
+		if (compressedPages != null) {
+			compressedPages.clear();
+		}
+		pageTable.clear();
+	}
+	
+	/**
+	 * Computes the height of the sub-tree by following its leftmost path, 
+	 * the leaf at the end of the path is not read.
+	 */
+	private int subtreeHeight(PagedBTreeNode node) {
+		int height = 0;
+		while (!node.isLeaf()) {
+			height++;
+			int childPageId = node.getChildrenPageIds()[0];
+			PagedBTreeNode child = readNodeFromMemory(childPageId);
+			if (child == null) {
+				if (isLeafPage(childPageId)) {
+					break;
+				}
+				child = readNodeFromStorage(childPageId);
+			}
+			node = child;
+		}
+		return height;
+	}
+	
+	private boolean isLeafPage(int pageId) {
+		StorageChannelInput storageIn = storageFile.getInputChannel();
+		storageIn.seekPageForRead(dataType, pageId);
+		byte nodeType = storageIn.readByte();
+		storageFile.returnInputChannel(storageIn);
+		return nodeType < 0;
 	}
 	
 	public PrimLongMapZ<PagedBTreeNode> getMemoryBuffer() {
-		PrimLongMapZ<PagedBTreeNode> ret = new PrimLongMapZ<PagedBTreeNode>();
-        ret.putAll(cleanBuffer);
-        ret.putAll(dirtyBuffer);
-
-		return ret;
+		return pageTable.toMap();
 	}
 
 	/**
@@ -387,28 +1154,60 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 	public void updatePageStatus(PagedBTreeNode node) {
 		int pageId = node.getPageId();
 		if(node.isDirty()) {
-			cleanBuffer.remove(pageId);
-			dirtyBuffer.put(pageId, node);
+			pageTable.put(pageId, node, PageState.DIRTY);
 		} else {
-			dirtyBuffer.remove(pageId);
-			putInCleanBuffer(pageId, node);
+			putInCleanBuffer(pageId, node, false);
 		}
 	}
 	
-	public PrimLongMapZ<PagedBTreeNode> getDirtyBuffer() {
-		return dirtyBuffer;
+	public BTreePageTable.View getDirtyBuffer() {
+		return pageTable.view(PageState.DIRTY);
+	}
+
+	public BTreePageTable.View getCleanBuffer() {
+		return pageTable.view(PageState.CLEAN);
 	}
 
-	public PrimLongMapZ<PagedBTreeNode> getCleanBuffer() {
-		return cleanBuffer;
+	public BTreePageTable.View getPinnedBuffer() {
+		return pageTable.view(PageState.PINNED);
 	}
 	
     public int getStatNWrittenPages() {
-		return statNWrittenPages;
+		return statNWrittenPages.get();
 	}
 
 	public int getStatNReadPages() {
-		return statNReadPages;
+		return statNReadPages.get();
+	}
+
+	/**
+	 * returns the number of read pages that were read ahead
+	 */
+	public int getStatNPrefetchedPages() {
+		return statNPrefetchedPages.get();
+	}
+
+	/**
+	 * returns the number of nodes that were decoded from the page image 
+	 * arena instead of being read from storage
+	 */
+	public int getStatNPageImageReads() {
+		return statNPageImageReads.get();
+	}
+
+	/**
+	 * returns the number of nodes that were decoded from the compressed 
+	 * page cache instead of being read from storage
+	 */
+	public int getStatNCompressedPageReads() {
+		return statNCompressedPageReads.get();
+	}
+
+	/**
+	 * returns the number of bytes of the pages written to storage
+	 */
+	public long getStatNWrittenBytes() {
+		return statNWrittenBytes.get();
 	}
 	
 	/**
@@ -439,6 +1238,13 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		return this.pageSize;
 	}
 	
+	/**
+	 * @return The size of a page without its header
+	 */
+	private int pageImageSize() {
+		return pageSize - DiskIO.PAGE_HEADER_SIZE;
+	}
+
 	public static int pageHeaderSize() {
 		int nodeTypeIndicatorSize = 1;
 		
@@ -458,9 +1264,23 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		return size;
 	}
 
+	@Override
+	public int getCompressedLeafSizeInStorage(PagedBTreeNode node) {
+		PageCodec codec = leafPageCodec;
+		if (codec == null) {
+			return -1;
+		}
+		byte[] page = encodeNode(node, node.computeSize());
+		return DiskIO.PAGE_HEADER_SIZE + elementSizesHeaderSize() + compressLeaf(page, codec).length;
+	}
+
     @Override
     public int getNodeHeaderSizeInStorage(PagedBTreeNode node) {
-        return pageHeaderSize();
+        return pageHeaderSize() + elementSizesHeaderSize();
+    }
+
+    private int elementSizesHeaderSize() {
+        return recordElementSizes ? ELEMENT_SIZES_HEADER_SIZE : 0;
     }
 
 	@Override
@@ -472,10 +1292,251 @@ public class BTreeStorageBufferManager implements BTreeBufferManager {
 		nodeValueElementSize = sizeInByte;
 	}
 
+	@Override
+	public int getNodeKeyElementSize() {
+		return nodeKeyElementSize;
+	}
+	
+	public void setNodeKeyElementSize(int sizeInByte) {
+		if (sizeInByte != 4 && sizeInByte != 8) {
+			throw new IllegalArgumentException("Unsupported key size: " + sizeInByte);
+		}
+		nodeKeyElementSize = sizeInByte;
+	}
+	
+	/**
+	 * Sets the sizes of keys and values of a new tree. Unlike the setters 
+	 * of the single sizes, the sizes are recorded in every page, so that the 
+	 * tree can be loaded with loadElementSizes().
+	 * 
+	 * @param keySize      4 or 8 byte, see toSupportedKeyElementSize()
+	 * @param valueSize    1, 2, 4 or 8 byte, see toSupportedValueElementSize()
+	 */
+	public void setElementSizes(int keySize, int valueSize) {
+		if (valueSize != toSupportedValueElementSize(valueSize)) {
+			throw new IllegalArgumentException("Unsupported value size: " + valueSize);
+		}
+		setNodeKeyElementSize(keySize);
+		nodeValueElementSize = valueSize;
+		recordElementSizes = true;
+	}
+
+	/**
+	 * Adopts the sizes of keys and values that are recorded in the root 
+	 * page of a tree, see setElementSizes(). Trees whose pages do not 
+	 * record them keep the sizes of this buffer manager.
+	 * 
+	 * @param rootPageId
+	 */
+	public void loadElementSizes(int rootPageId) {
+		StorageChannelInput storageIn = storageFile.getInputChannel();
+		storageIn.seekPageForRead(dataType, rootPageId);
+		byte nodeType = storageIn.readByte();
+		if (nodeType == PAGE_LEAF_ELEMENT_SIZES || nodeType == PAGE_INNER_ELEMENT_SIZES) {
+			int keySize = storageIn.readByte();
+			int valueSize = storageIn.readByte();
+			setElementSizes(keySize, valueSize);
+		}
+		storageFile.returnInputChannel(storageIn);
+	}
+
+	/**
+	 * @param value
+	 * @param sizeInByte   1, 2, 4 or 8
+	 * @return true if the value can be stored with the given size
+	 */
+	static boolean fitsElementSize(long value, int sizeInByte) {
+		switch (sizeInByte) {
+		case 1: return value == (byte) value;
+		case 2: return value == (short) value;
+		case 4: return value == (int) value;
+		default: return true;
+		}
+	}
+
+	/**
+	 * Returns the smallest supported size for values (1, 2, 4 or 8 byte) 
+	 * that can hold values of the given size. 
+	 */
+	public static int toSupportedValueElementSize(int sizeInByte) {
+		if (sizeInByte <= 1) {
+			return 1;
+		} else if (sizeInByte <= 2) {
+			return 2;
+		} else if (sizeInByte <= 4) {
+			return 4;
+		}
+		return 8;
+	}
+
+	/**
+	 * Returns the supported size for keys (4 or 8 byte) that can hold 
+	 * keys of the given size. 
+	 */
+	public static int toSupportedKeyElementSize(int sizeInByte) {
+		return (sizeInByte > 0 && sizeInByte <= 4) ? 4 : 8;
+	}
+
+	@Override
+	public boolean isLeafValuePrefixSharing() {
+		return leafValuePrefixSharing;
+	}
+
+	/**
+	 * Enable or disable prefix sharing of leaf values. Each leaf page 
+	 * chooses the smaller of the fixed-width and the prefix shared encoding.
+	 * This only affects nodes that are created or read afterwards, 
+	 * so it should be set before the tree is created or loaded. 
+	 */
+	public void setLeafValuePrefixSharing(boolean leafValuePrefixSharing) {
+		this.leafValuePrefixSharing = leafValuePrefixSharing;
+	}
+
+	@Override
+	public boolean isLeafPostingLists() {
+		return leafPostingLists;
+	}
+
+	/**
+	 * Enable or disable posting lists for non-unique leaves. Each leaf page 
+	 * chooses the smallest of the available encodings, the posting lists store 
+	 * every distinct key only once, followed by its delta encoded values.
+	 * This only affects nodes that are created or read afterwards. 
+	 */
+	public void setLeafPostingLists(boolean leafPostingLists) {
+		this.leafPostingLists = leafPostingLists;
+	}
+
+	@Override
+	public boolean isLeafDenseKeys() {
+		return leafDenseKeys;
+	}
+
+	/**
+	 * Enable or disable the dense encoding of leaf keys. Each leaf page 
+	 * chooses the smaller of the prefix shared and the dense encoding, which 
+	 * stores runs of consecutive keys, see {@link DenseKeyHelper}.
+	 * This only affects nodes that are created or read afterwards, so it 
+	 * should be set before the tree is created or loaded. 
+	 */
+	public void setLeafDenseKeys(boolean leafDenseKeys) {
+		this.leafDenseKeys = leafDenseKeys;
+	}
+
+	@Override
+	public boolean isLeafPageCompression() {
+		return leafPageCodec != null;
+	}
+
+	/**
+	 * Compresses leaf pages with the given codec where this makes them 
+	 * smaller. Leaves are filled until they do not fit into a page even 
+	 * when compressed, so that fewer pages have to be read. Inner nodes 
+	 * are not compressed.
+	 * This only affects nodes that are created or read afterwards, so it 
+	 * should be set before the tree is created or loaded. Compressed pages 
+	 * record the id of their codec, pages of the built-in codecs can be read 
+	 * with any codec, pages of custom codecs only with the same codec.
+	 * 
+	 * @param codec  The codec, null disables the compression
+	 */
+	public void setLeafPageCodec(PageCodec codec) {
+		this.leafPageCodec = codec;
+	}
+
+	public PageCodec getLeafPageCodec() {
+		return leafPageCodec;
+	}
+
 	public void setMaxCleanBufferElements(int maxCleanBufferElements) {
 		this.maxCleanBufferElements = maxCleanBufferElements;
 	}
 
+	/**
+	 * Keeps the images of up to numPages pages that are read from storage in 
+	 * an off-heap arena. Nodes that are evicted from the clean buffer are 
+	 * decoded from their image instead of being read from storage again, 
+	 * so that a small clean buffer can be combined with a large arena 
+	 * that does not burden the garbage collector. Only the images are kept
+	 * off-heap, decoded nodes are regular heap nodes.
+	 * 
+	 * @param numPages  The number of pages in the arena, 0 disables the arena
+	 */
+	public void setPageImageArenaSize(int numPages) {
+		if (numPages < 0) {
+			throw new IllegalArgumentException("Invalid arena size: " + numPages);
+		}
+		pageImages = numPages == 0 ? null : new PageImageArena(pageImageSize(), numPages);
+	}
+
+	public PageImageArena getPageImageArena() {
+		return pageImages;
+	}
+
+	/**
+	 * Keeps the encoded pages of nodes that are evicted from the clean 
+	 * buffer in a compressed cache of up to maxBytes bytes. A node that is 
+	 * accessed again is decoded from the cache instead of being read from 
+	 * storage. As encoded pages are much smaller than decoded nodes, the 
+	 * cache holds many more nodes than the clean buffer for the same heap.
+	 * 
+	 * @param maxBytes  The size of the cache, 0 disables the cache
+	 */
+	public void setCompressedPageCacheSize(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+		}
+		compressedPages = maxBytes == 0 ? null : new CompressedPageCache(maxBytes);
+	}
+
+	public CompressedPageCache getCompressedPageCache() {
+		return compressedPages;
+	}
+
+	/**
+	 * Counts cache hits and misses, decoding, encoding and evictions of 
+	 * this buffer manager.
+	 * 
+	 * @param metrics   The metrics, or null to disable them
+	 */
+	public void setMetrics(BTreeMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public BTreeMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Keeps up to maxPinnedInnerNodes clean inner nodes strongly referenced 
+	 * and exempt from the flushing of the clean buffer, so that look-ups 
+	 * do not have to read and decode them again. 
+	 * 
+	 * Nodes are pinned in the order in which they are read or written. As 
+	 * every look-up reads the tree top-down, the pinned nodes are the upper 
+	 * levels of the tree. Dirty nodes are unpinned until they are written.
+	 * 
+	 * @param maxPinnedInnerNodes  The maximum number of pinned nodes, 0 
+	 *                             disables pinning
+	 */
+	public void setMaxPinnedInnerNodes(int maxPinnedInnerNodes) {
+		if (maxPinnedInnerNodes < 0) {
+			throw new IllegalArgumentException(
+					"Invalid number of pinned nodes: " + maxPinnedInnerNodes);
+		}
+		this.maxPinnedInnerNodes = maxPinnedInnerNodes;
+		// unpin nodes above the new budget, they stay in the clean buffer
+		if (pageTable.size(PageState.PINNED) > maxPinnedInnerNodes) {
+			for (PagedBTreeNode node : pageTable.removeAll(PageState.PINNED)) {
+				putInCleanBuffer(node.getPageId(), node, false);
+			}
+		}
+	}
+
+	public int getMaxPinnedInnerNodes() {
+		return maxPinnedInnerNodes;
+	}
+
 	@Override
 	public long getTxId() {
 		return this.storageFile.getTxId();
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.zoodb.internal.server.index.btree.prefix.LZCompressionHelper;
+
+/**
+ * Second tier of the buffer manager, with the encoded pages of nodes that
+ * have been evicted from the clean buffer.
+ *
+ * An encoded page is much smaller than its decoded node, and it is
+ * compressed with {@link LZCompressionHelper} if that makes it smaller.
+ * The cache is limited by the number of bytes of the stored pages, the
+ * least recently used pages are dropped first.
+ *
+ * Entries:
+ * 4 byte length of the encoded page
+ * the compressed page, or the encoded page if it does not compress
+ */
+public class CompressedPageCache {
+
+	private static final int ENTRY_HEADER_SIZE = 4;
+
+	private final long maxBytes;
+	private long numBytes = 0;
+	private final LinkedHashMap<Integer, byte[]> pages = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * @param maxBytes  The maximum size of all stored pages
+	 */
+	public CompressedPageCache(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param pageId
+	 * @param page      The encoded page, without page header
+	 */
+	public void put(int pageId, byte[] page) {
+		// compress outside of the lock
+		byte[] entry = new byte[ENTRY_HEADER_SIZE
+		                        + LZCompressionHelper.maxCompressedLength(page.length)];
+		int size = LZCompressionHelper.compress(page, 0, page.length, entry, ENTRY_HEADER_SIZE);
+		if (size >= page.length) {
+			System.arraycopy(page, 0, entry, ENTRY_HEADER_SIZE, page.length);
+			size = page.length;
+		}
+		entry = Arrays.copyOf(entry, ENTRY_HEADER_SIZE + size);
+		writeInt(entry, page.length);
+		if (entry.length > maxBytes) {
+			return;
+		}
+		synchronized (this) {
+			byte[] previous = pages.put(pageId, entry);
+			if (previous != null) {
+				numBytes -= previous.length;
+			}
+			numBytes += entry.length;
+			Iterator<Map.Entry<Integer, byte[]>> it = pages.entrySet().iterator();
+			while (numBytes > maxBytes) {
+				numBytes -= it.next().getValue().length;
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param pageId
+	 * @return The encoded page, or null if the page is not in the cache
+	 */
+	public byte[] get(int pageId) {
+		byte[] entry;
+		synchronized (this) {
+			entry = pages.get(pageId);
+		}
+		if (entry == null) {
+			return null;
+		}
+		byte[] page = new byte[readInt(entry)];
+		int size = entry.length - ENTRY_HEADER_SIZE;
+		if (size == page.length) {
+			System.arraycopy(entry, ENTRY_HEADER_SIZE, page, 0, size);
+		} else {
+			LZCompressionHelper.decompress(entry, ENTRY_HEADER_SIZE, size, page, 0);
+		}
+		return page;
+	}
+
+	public synchronized boolean contains(int pageId) {
+		return pages.containsKey(pageId);
+	}
+
+	public synchronized void remove(int pageId) {
+		byte[] entry = pages.remove(pageId);
+		if (entry != null) {
+			numBytes -= entry.length;
+		}
+	}
+
+	public synchronized void clear() {
+		pages.clear();
+		numBytes = 0;
+	}
+
+	public synchronized int size() {
+		return pages.size();
+	}
+
+	/**
+	 * @return The size of all stored pages
+	 */
+	public synchronized long getNumBytes() {
+		return numBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	private static void writeInt(byte[] b, int i) {
+		b[0] = (byte) (i >>> 24);
+		b[1] = (byte) (i >>> 16);
+		b[2] = (byte) (i >>> 8);
+		b[3] = (byte) i;
+	}
+
+	private static int readInt(byte[] b) {
+		return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+	}
+}
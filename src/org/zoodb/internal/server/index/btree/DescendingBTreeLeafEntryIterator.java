@@ -65,6 +65,52 @@ public class DescendingBTreeLeafEntryIterator extends BTreeLeafEntryIterator {
             curLeaf = null;
         }
     }
+    @Override
+    public void seek(long key) {
+        seekFloor(key, Long.MAX_VALUE);
+    }
+
+    /**
+     * Move the iterator forward (i.e. towards smaller keys) to the last entry
+     * that is not larger than key/value. The value is ignored for unique trees.
+     *
+     * Only the current leaf is searched if it contains the target, otherwise
+     * the ancestors are climbed only as far as needed.
+     *
+     * @param key
+     * @param value
+     */
+    public void seekFloor(long key, long value) {
+        checkValidity();
+        if (curLeaf == null || compareEntry(curLeaf, curPos, key, value) <= 0) {
+            return;
+        }
+        if (compareEntry(curLeaf, 0, key, value) > 0) {
+            seekLeaf(key, value, false);
+            curPos = curLeaf.getNumKeys() - 1;
+        }
+        int low = 0;
+        int high = curPos + 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareEntry(curLeaf, mid, key, value) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == 0) {
+            // the target is between this and the previous leaf
+            curPos = 0;
+            updatePosition();
+        } else {
+            curPos = low - 1;
+            if (curLeaf.getKey(curPos) < min) {
+                curLeaf = null;
+            }
+        }
+    }
+
     @Override
     void setFirstLeaf() {
         if (tree.isEmpty()) {
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Returns the values that are contained in all of several cursors.
+ *
+ * Uses a leapfrog join: the cursor with the smallest value seeks to the
+ * largest value of the other cursors, until all cursors agree on a value.
+ * Runs of values that are missing in one of the cursors are skipped by
+ * seeks instead of being iterated.
+ */
+public class IntersectionCursor implements ValueCursor {
+
+    private final ValueCursor[] cursors;
+    // the cursor with the smallest value, the others follow in ascending order
+    private int pos;
+    private boolean atEnd;
+
+    public IntersectionCursor(ValueCursor... cursors) {
+        if (cursors.length == 0) {
+            throw new IllegalArgumentException("No cursors to intersect.");
+        }
+        this.cursors = cursors.clone();
+        for (ValueCursor cursor : cursors) {
+            if (!cursor.hasNext()) {
+                atEnd = true;
+                return;
+            }
+        }
+        sortByValue(this.cursors);
+        pos = 0;
+        search();
+    }
+
+    private static void sortByValue(ValueCursor[] cursors) {
+        for (int i = 1; i < cursors.length; i++) {
+            ValueCursor cursor = cursors[i];
+            long value = cursor.peekValue();
+            int j = i - 1;
+            while (j >= 0 && cursors[j].peekValue() > value) {
+                cursors[j + 1] = cursors[j];
+                j--;
+            }
+            cursors[j + 1] = cursor;
+        }
+    }
+
+    // move the cursors forward until they all point to the same value
+    private void search() {
+        long max = cursors[(pos + cursors.length - 1) % cursors.length].peekValue();
+        while (true) {
+            ValueCursor cursor = cursors[pos];
+            if (cursor.peekValue() == max) {
+                return;
+            }
+            cursor.seek(max);
+            if (!cursor.hasNext()) {
+                atEnd = true;
+                return;
+            }
+            max = cursor.peekValue();
+            pos = (pos + 1) % cursors.length;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !atEnd;
+    }
+
+    @Override
+    public long peekValue() {
+        if (atEnd) {
+            throw new NoSuchElementException();
+        }
+        return cursors[pos].peekValue();
+    }
+
+    @Override
+    public long nextValue() {
+        long value = peekValue();
+        advance(cursors[pos]);
+        return value;
+    }
+
+    @Override
+    public void seek(long value) {
+        if (atEnd || cursors[pos].peekValue() >= value) {
+            return;
+        }
+        ValueCursor cursor = cursors[pos];
+        cursor.seek(value);
+        if (!cursor.hasNext()) {
+            atEnd = true;
+            return;
+        }
+        pos = (pos + 1) % cursors.length;
+        search();
+    }
+
+    // the current cursor becomes the one with the largest value
+    private void advance(ValueCursor cursor) {
+        cursor.nextValue();
+        if (!cursor.hasNext()) {
+            atEnd = true;
+            return;
+        }
+        pos = (pos + 1) % cursors.length;
+        search();
+    }
+
+    @Override
+    public void close() {
+        for (ValueCursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+}
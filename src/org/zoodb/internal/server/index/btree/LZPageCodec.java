@@ -0,0 +1,55 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import org.zoodb.internal.server.index.btree.prefix.LZCompressionHelper;
+
+/**
+ * Page codec that uses the LZ77 compression of {@link LZCompressionHelper}.
+ * It removes repeated byte sequences, such as runs of values with the 
+ * same high bytes.
+ */
+public class LZPageCodec implements PageCodec {
+
+	public static final byte ID = 1;
+	public static final LZPageCodec INSTANCE = new LZPageCodec();
+
+	@Override
+	public byte getId() {
+		return ID;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return LZCompressionHelper.maxCompressedLength(length);
+	}
+
+	@Override
+	public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		return LZCompressionHelper.compress(src, srcOff, srcLen, dst, dstOff);
+	}
+
+	@Override
+	public int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		return LZCompressionHelper.decompress(src, srcOff, srcLen, dst, dstOff);
+	}
+
+}
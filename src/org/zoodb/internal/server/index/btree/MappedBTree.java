@@ -0,0 +1,230 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.zoodb.internal.server.DiskIO;
+import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
+
+/**
+ * Read-only view of a unique B+ tree that has been written to a database
+ * file, for databases that are not modified anymore.
+ *
+ * The file is memory mapped and look-ups search the pages as they are
+ * stored, see {@link BTreeStorageBufferManager} for the page layout. No
+ * nodes are decoded or cached and a look-up does not allocate any objects.
+ *
+ * Only leaves with prefix shared keys are supported. Look-ups that reach a
+ * compressed leaf or a leaf with dense keys throw an IllegalStateException.
+ *
+ * The view must not be used while the database is written.
+ */
+public class MappedBTree {
+
+	private static final int MAX_CHUNK_SIZE = 1 << 30;
+
+	// keep in sync with BTreeStorageBufferManager
+	private static final byte PAGE_LEAF = -1;
+	private static final byte PAGE_LEAF_PREFIX_SHARED_VALUES = -2;
+	private static final byte PAGE_LEAF_ELEMENT_SIZES = -7;
+	private static final byte PAGE_INNER_ELEMENT_SIZES = 2;
+	private static final int ELEMENT_SIZES_HEADER_SIZE = 3;
+
+	private final ByteBuffer[] chunks;
+	private final int pagesPerChunk;
+	private final int pageSize;
+	private final int rootPageId;
+	private final int keyElementSize;
+	private final int valueElementSize;
+
+	/**
+	 * @param chunks            The pages of the file, every chunk holds
+	 *                          pagesPerChunk pages
+	 * @param pagesPerChunk
+	 * @param pageSize
+	 * @param rootPageId        The page of the root of the tree
+	 * @param keyElementSize    The size of the keys, see
+	 *                          {@link BTreeStorageBufferManager#setNodeKeyElementSize(int)}
+	 * @param valueElementSize  The size of the values, see
+	 *                          {@link BTreeStorageBufferManager#setNodeValueElementSize(int)}
+	 */
+	public MappedBTree(ByteBuffer[] chunks, int pagesPerChunk, int pageSize, int rootPageId,
+			int keyElementSize, int valueElementSize) {
+		this.chunks = chunks;
+		this.pagesPerChunk = pagesPerChunk;
+		this.pageSize = pageSize;
+		this.rootPageId = rootPageId;
+		this.keyElementSize = keyElementSize;
+		this.valueElementSize = valueElementSize;
+	}
+
+	/**
+	 * Maps a database file read-only.
+	 *
+	 * @param file      The database file
+	 * @see #MappedBTree(ByteBuffer[], int, int, int, int, int)
+	 */
+	public static MappedBTree map(FileChannel file, int pageSize, int rootPageId,
+			int keyElementSize, int valueElementSize) throws IOException {
+		int pagesPerChunk = MAX_CHUNK_SIZE / pageSize;
+		long chunkSize = (long) pagesPerChunk * pageSize;
+		long fileSize = file.size();
+		ByteBuffer[] chunks = new ByteBuffer[(int) ((fileSize + chunkSize - 1) / chunkSize)];
+		for (int i = 0; i < chunks.length; i++) {
+			long start = i * chunkSize;
+			chunks[i] = file.map(MapMode.READ_ONLY, start, Math.min(chunkSize, fileSize - start));
+		}
+		return new MappedBTree(chunks, pagesPerChunk, pageSize, rootPageId,
+				keyElementSize, valueElementSize);
+	}
+
+	/**
+	 * @param key
+	 * @param failValue    The value to return if the key is not found
+	 * @return the value of the key or failValue if the key is not found
+	 */
+	public long search(long key, long failValue) {
+		int pageId = findLeaf(key);
+		ByteBuffer chunk = chunk(pageId);
+		int start = nodeStart(chunk, pageId);
+		int position = findKey(chunk, start, key);
+		return position >= 0 ? readValue(chunk, start, position) : failValue;
+	}
+
+	/**
+	 * @param key
+	 * @return true if the tree contains the key
+	 */
+	public boolean containsKey(long key) {
+		int pageId = findLeaf(key);
+		ByteBuffer chunk = chunk(pageId);
+		return findKey(chunk, nodeStart(chunk, pageId), key) >= 0;
+	}
+
+	private int findLeaf(long key) {
+		int pageId = rootPageId;
+		ByteBuffer chunk = chunk(pageId);
+		int start = nodeStart(chunk, pageId);
+		while (chunk.get(start) > 0) {
+			// inner node: type, keys, children
+			int numKeys = chunk.getInt(start + 1);
+			int prefixLength = chunk.get(start + 5);
+			int keysStart = start + 1 + PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE;
+			long prefixBits = PrefixSharingHelper.readPrefixBits(chunk, keysStart, prefixLength);
+			// the child of a key is the number of keys that are <= key
+			int low = 0;
+			int high = numKeys;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (readKey(chunk, keysStart, prefixLength, prefixBits, mid) <= key) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			int childrenStart = keysStart
+					+ PrefixSharingHelper.encodedArraySizeWithoutMetadata(numKeys, prefixLength);
+			pageId = chunk.getInt(childrenStart + 4 * low);
+			chunk = chunk(pageId);
+			start = nodeStart(chunk, pageId);
+		}
+		return pageId;
+	}
+
+	// returns the position of the key in the leaf or -1
+	private int findKey(ByteBuffer chunk, int start, long key) {
+		byte nodeType = chunk.get(start);
+		if (nodeType != PAGE_LEAF && nodeType != PAGE_LEAF_PREFIX_SHARED_VALUES) {
+			throw new IllegalStateException("Unsupported node type: " + nodeType);
+		}
+		int numKeys = chunk.getInt(start + 1);
+		int prefixLength = chunk.get(start + 5);
+		int keysStart = start + 1 + PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE;
+		long prefixBits = PrefixSharingHelper.readPrefixBits(chunk, keysStart, prefixLength);
+		int low = 0;
+		int high = numKeys - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midKey = readKey(chunk, keysStart, prefixLength, prefixBits, mid);
+			if (midKey < key) {
+				low = mid + 1;
+			} else if (midKey > key) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private long readKey(ByteBuffer chunk, int keysStart, int prefixLength, long prefixBits, int index) {
+		long key = PrefixSharingHelper.readElement(chunk, keysStart, prefixLength, prefixBits, index);
+		return keyElementSize == 4 ? PrefixSharingHelper.decodeIntKey(key) : key;
+	}
+
+	private long readValue(ByteBuffer chunk, int start, int position) {
+		byte nodeType = chunk.get(start);
+		int numKeys = chunk.getInt(start + 1);
+		int prefixLength = chunk.get(start + 5);
+		int valuesStart = start + 1 + PrefixSharingHelper.encodedArraySize(numKeys, prefixLength);
+		if (nodeType == PAGE_LEAF_PREFIX_SHARED_VALUES) {
+			int valuePrefixLength = chunk.get(valuesStart + 4);
+			valuesStart += PrefixSharingHelper.PREFIX_SHARING_METADATA_SIZE;
+			long prefixBits = PrefixSharingHelper.readPrefixBits(chunk, valuesStart, valuePrefixLength);
+			return PrefixSharingHelper.readElement(chunk, valuesStart, valuePrefixLength,
+					prefixBits, position);
+		}
+		if (nodeType != PAGE_LEAF) {
+			throw new IllegalStateException("Unexpected node type: " + nodeType);
+		}
+		int pos = valuesStart + position * valueElementSize;
+		switch (valueElementSize) {
+		case 1: return chunk.get(pos);
+		case 2: return chunk.getShort(pos);
+		case 4: return chunk.getInt(pos);
+		case 8: return chunk.getLong(pos);
+		default: throw new UnsupportedOperationException();
+		}
+	}
+
+	private ByteBuffer chunk(int pageId) {
+		return chunks[pageId / pagesPerChunk];
+	}
+
+	// the position of the page in its chunk, after the page header
+	private int pageStart(int pageId) {
+		return (pageId % pagesPerChunk) * pageSize + DiskIO.PAGE_HEADER_SIZE;
+	}
+
+	// the position of the node in its chunk, after the recorded element sizes
+	private int nodeStart(ByteBuffer chunk, int pageId) {
+		int start = pageStart(pageId);
+		byte nodeType = chunk.get(start);
+		if (nodeType == PAGE_LEAF_ELEMENT_SIZES || nodeType == PAGE_INNER_ELEMENT_SIZES) {
+			return start + ELEMENT_SIZES_HEADER_SIZE;
+		}
+		return start;
+	}
+}
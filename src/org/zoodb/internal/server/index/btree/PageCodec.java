@@ -0,0 +1,64 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+/**
+ * Compression of encoded leaf pages, see 
+ * {@link BTreeStorageBufferManager#setLeafPageCodec(PageCodec)}.
+ * 
+ * Implementations must be stateless, the same codec has to be used to 
+ * read the pages that have been written with it.
+ */
+public interface PageCodec {
+
+	/**
+	 * @return the id that is stored in the pages compressed by this codec, 
+	 * custom codecs must not use the ids of the built-in codecs
+	 */
+	byte getId();
+
+	/**
+	 * @return the maximum size of the compressed data
+	 */
+	int maxCompressedLength(int length);
+
+	/**
+	 * Compresses src[srcOff, srcOff + srcLen) to dst at dstOff. 
+	 * 
+	 * @return the size of the compressed data
+	 */
+	int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff);
+
+	/**
+	 * Decompresses src[srcOff, srcOff + srcLen) to dst at dstOff.
+	 * 
+	 * @return the size of the decompressed data
+	 */
+	int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff);
+
+	/**
+	 * @return the built-in codec with the given id or null
+	 */
+	static PageCodec forId(byte id) {
+		return id == LZPageCodec.ID ? LZPageCodec.INSTANCE : null;
+	}
+
+}
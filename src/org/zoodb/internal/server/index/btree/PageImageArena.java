@@ -0,0 +1,247 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.nio.ByteBuffer;
+
+import org.zoodb.internal.util.PrimLongMapZ;
+
+/**
+ * Off-heap store of page images, as they are read from storage.
+ *
+ * The images are kept in fixed size slots of direct byte buffers, which are
+ * allocated up front and split into chunks of at most CHUNK_SIZE bytes, so
+ * that the arena can be larger than a single buffer. When the arena is full,
+ * the slot to re-use is chosen with the clock algorithm.
+ *
+ * Readers decode a page directly from its slot: pin() returns the slot of a
+ * page, image() a read-only view of it, and unpin() releases the slot again.
+ * Pinned slots are never re-used, so the view can not be overwritten while
+ * it is decoded. Note that the decoded node is still a heap node, the arena
+ * saves the storage read and the copy of the image, not the node itself.
+ *
+ * The arena is used by the reading thread and the read-ahead thread of a
+ * buffer manager, all methods except image() are synchronized.
+ */
+public class PageImageArena {
+
+	private static final int CHUNK_SIZE = 1 << 28;
+
+	private final int slotSize;
+	private final int numSlots;
+	private final int slotsPerChunk;
+	private final ByteBuffer[] chunks;
+	// page id of every slot, 0 for free slots
+	private final int[] slotPageIds;
+	// encoded length of the image in every slot
+	private final int[] lengths;
+	// number of readers of every slot, pinned slots are not re-used
+	private final int[] pins;
+	private final boolean[] referenced;
+	private final PrimLongMapZ<Integer> slots = new PrimLongMapZ<>();
+	private int clockHand = 0;
+	// free slots that are not pinned
+	private int numFree;
+
+	public PageImageArena(int slotSize, int numSlots) {
+		if (slotSize <= 0 || numSlots <= 0) {
+			throw new IllegalArgumentException("Invalid arena: " + numSlots + " * " + slotSize);
+		}
+		this.slotSize = slotSize;
+		this.numSlots = numSlots;
+		this.slotsPerChunk = Math.max(1, CHUNK_SIZE / slotSize);
+		int numChunks = (numSlots + slotsPerChunk - 1) / slotsPerChunk;
+		this.chunks = new ByteBuffer[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			int chunkSlots = Math.min(slotsPerChunk, numSlots - i * slotsPerChunk);
+			chunks[i] = ByteBuffer.allocateDirect(chunkSlots * slotSize);
+		}
+		this.slotPageIds = new int[numSlots];
+		this.lengths = new int[numSlots];
+		this.pins = new int[numSlots];
+		this.referenced = new boolean[numSlots];
+		this.numFree = numSlots;
+	}
+
+	/**
+	 * @param pageId
+	 * @return A copy of the image of the page, or null if the page is not 
+	 *         in the arena
+	 */
+	public synchronized byte[] get(int pageId) {
+		Integer slot = slots.get(pageId);
+		if (slot == null) {
+			return null;
+		}
+		referenced[slot] = true;
+		byte[] image = new byte[lengths[slot]];
+		slotBuffer(slot).get(image);
+		return image;
+	}
+
+	/**
+	 * Pins the slot of a page, the slot is not re-used until it is released
+	 * with unpin().
+	 * 
+	 * @param pageId
+	 * @return The slot of the page, or -1 if the page is not in the arena
+	 */
+	public synchronized int pin(int pageId) {
+		Integer slot = slots.get(pageId);
+		if (slot == null) {
+			return -1;
+		}
+		referenced[slot] = true;
+		pins[slot]++;
+		return slot;
+	}
+
+	/**
+	 * @param slot  A slot returned by pin()
+	 * @return A read-only view of the image in the slot, only valid until 
+	 *         the slot is unpinned
+	 */
+	public ByteBuffer image(int slot) {
+		return slotBuffer(slot).asReadOnlyBuffer();
+	}
+
+	public synchronized void unpin(int slot) {
+		if (pins[slot] <= 0) {
+			throw new IllegalStateException("Slot is not pinned: " + slot);
+		}
+		pins[slot]--;
+		if (pins[slot] == 0 && slotPageIds[slot] == 0) {
+			// the page was removed or moved while the slot was pinned
+			numFree++;
+		}
+	}
+
+	/**
+	 * Copies the image of a page into the arena, evicting another image if
+	 * the arena is full. The image is not stored if all slots are pinned.
+	 *
+	 * @param pageId
+	 * @param image     The image
+	 * @param length    The encoded length of the image, at most slotSize bytes
+	 */
+	public synchronized void put(int pageId, byte[] image, int length) {
+		if (length > slotSize) {
+			throw new IllegalArgumentException("Page image too large: " + length);
+		}
+		Integer slot = slots.get(pageId);
+		if (slot != null && pins[slot] > 0) {
+			// readers may still decode the old image
+			slots.remove(pageId);
+			slotPageIds[slot] = 0;
+			slot = null;
+		}
+		if (slot == null) {
+			slot = freeSlot();
+			if (slot < 0) {
+				return;
+			}
+			slots.put(pageId, slot);
+			slotPageIds[slot] = pageId;
+		}
+		referenced[slot] = true;
+		lengths[slot] = length;
+		ByteBuffer chunk = chunks[slot / slotsPerChunk].duplicate();
+		chunk.position((slot % slotsPerChunk) * slotSize);
+		chunk.put(image, 0, length);
+	}
+
+	/**
+	 * Removes the image of a page, this has to be called when the page is
+	 * freed or overwritten.
+	 */
+	public synchronized void remove(int pageId) {
+		Integer slot = slots.remove(pageId);
+		if (slot != null) {
+			slotPageIds[slot] = 0;
+			referenced[slot] = false;
+			if (pins[slot] == 0) {
+				numFree++;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		slots.clear();
+		numFree = 0;
+		for (int i = 0; i < numSlots; i++) {
+			slotPageIds[i] = 0;
+			referenced[i] = false;
+			if (pins[i] == 0) {
+				numFree++;
+			}
+		}
+		clockHand = 0;
+	}
+
+	public synchronized int size() {
+		return slots.size();
+	}
+
+	public int capacity() {
+		return numSlots;
+	}
+
+	private ByteBuffer slotBuffer(int slot) {
+		ByteBuffer chunk = chunks[slot / slotsPerChunk].duplicate();
+		int start = (slot % slotsPerChunk) * slotSize;
+		chunk.limit(start + lengths[slot]);
+		chunk.position(start);
+		return chunk.slice();
+	}
+
+	// returns -1 if all slots are pinned
+	private int freeSlot() {
+		if (numFree > 0) {
+			for (int i = 0; i < numSlots; i++) {
+				int slot = nextSlot();
+				if (slotPageIds[slot] == 0 && pins[slot] == 0) {
+					numFree--;
+					return slot;
+				}
+			}
+		}
+		// clock: evict the first slot that has not been referenced since the
+		// last pass of the hand, two passes clear all reference bits
+		for (int i = 0; i < 2 * numSlots; i++) {
+			int slot = nextSlot();
+			if (pins[slot] > 0 || slotPageIds[slot] == 0) {
+				continue;
+			}
+			if (referenced[slot]) {
+				referenced[slot] = false;
+			} else {
+				slots.remove(slotPageIds[slot]);
+				return slot;
+			}
+		}
+		return -1;
+	}
+	private int nextSlot() {
+		int slot = clockHand;
+		clockHand = (clockHand + 1) % numSlots;
+		return slot;
+	}
+}
@@ -43,6 +43,24 @@ public abstract class PagedBTree extends BTree {
         this.bufferManager = bufferManager;
 	}
 	
+    /**
+     * @throws IllegalArgumentException if the tree stores 4 byte keys and the
+     *         key is outside the range of int, or if the value does not fit
+     *         into the size of values
+     */
+    @Override
+    public boolean insert(long key, long value, boolean onlyIfNotSet) {
+        if (bufferManager.getNodeKeyElementSize() == 4 && key != (int) key) {
+            throw new IllegalArgumentException("Key does not fit into 4 bytes: " + key);
+        }
+        int valueSize = bufferManager.getNodeValueElementSize();
+        if (!BTreeStorageBufferManager.fitsElementSize(value, valueSize)) {
+            throw new IllegalArgumentException(
+                    "Value does not fit into " + valueSize + " bytes: " + value);
+        }
+        return super.insert(key, value, onlyIfNotSet);
+    }
+
     public BTreeBufferManager getBufferManager() {
         return bufferManager;
     }
@@ -20,9 +20,11 @@
  */
 package org.zoodb.internal.server.index.btree;
 
+import org.zoodb.internal.server.index.btree.prefix.DenseKeyHelper;
 import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 /**
  * Variant of B+ tree node that is aware of the buffer manager.
@@ -39,10 +41,23 @@ public abstract class PagedBTreeNode extends BTreeNode {
 	// isDirty: does the node in memory differ from the node in storage?
 	private int[] childrenPageIds;
     protected BTreeBufferManager bufferManager;
-    private WeakReference<PagedBTreeNode>[] children;
+    // a child is referenced directly (swizzled) while it is in the buffer 
+    // manager, and through a WeakReference after it has been evicted
+    private Object[] children;
+    // the node that references this node, see unswizzle()
+    private PagedBTreeNode swizzledParent;
+    // upper bound of the compressed size of a leaf, -1 if unknown, and the
+    // uncompressed size it was computed for, see recomputeSize()
+    private int compressedSizeBound = -1;
+    private int compressedSizeBoundRawSize;
+    // growth of the compressed size when a single entry changes: the entry
+    // itself and some overhead of the codec
+    private static final int SINGLE_ENTRY_SLACK = 32;
 
 	public PagedBTreeNode(BTreeBufferManager bufferManager, int pageSize, boolean isLeaf, boolean isRoot) {
-		super(pageSize, isLeaf, isRoot, bufferManager.getNodeValueElementSize());
+		super(pageSize, isLeaf, isRoot, bufferManager.getNodeValueElementSize(),
+				bufferManager.isLeafValuePrefixSharing(), bufferManager.isLeafPostingLists(),
+				bufferManager.isLeafPageCompression(), bufferManager.isLeafDenseKeys());
 		
         markDirty();
 		this.bufferManager = bufferManager;
@@ -54,8 +69,12 @@ public abstract class PagedBTreeNode extends BTreeNode {
 	 * Does not save the node in the buffer managers memory.
 	 */
     public PagedBTreeNode(BTreeBufferManager bufferManager, int pageSize, boolean isLeaf, boolean isRoot, int pageId) {
-		super(pageSize, isLeaf, isRoot, bufferManager.getNodeValueElementSize());
+		super(pageSize, isLeaf, isRoot, bufferManager.getNodeValueElementSize(),
+				bufferManager.isLeafValuePrefixSharing(), bufferManager.isLeafPostingLists(),
+				bufferManager.isLeafPageCompression(), bufferManager.isLeafDenseKeys());
 
+		// filling the node must not add it to the buffer manager, see markDecoded()
+		this.isDirty = true;
 		this.bufferManager = bufferManager;
 		this.setPageId(pageId);
     }
@@ -76,21 +95,85 @@ public abstract class PagedBTreeNode extends BTreeNode {
             //ToDo check if this is always needed
             newNumKeys += 1;
         }
+        if (newNumKeys >= getMaxNumKeys()) {
+            return false;
+        }
         //ToDo move to field
-        long prefix = PrefixSharingHelper.computePrefix(first, last);
+        long prefix = computeKeyPrefix(first, last);
         long keyArrayAfterInsertSizeInBytes = PrefixSharingHelper.encodedArraySize(newNumKeys, prefix);
-        int newPageSize = (int) (storageHeaderSize() + (keyArrayAfterInsertSizeInBytes + getNonKeyEntrySizeInBytes(newNumKeys)));
+        long nonKeyEntrySizeInBytes;
+        if (this.isLeaf() && isValuePrefixSharing()) {
+            long valuePrefix = Math.min(this.getValuePrefix(), neighbour.getValuePrefix());
+            valuePrefix = Math.min(valuePrefix,
+                    PrefixSharingHelper.computePrefix(this.getValue(0), neighbour.getValue(0)));
+            nonKeyEntrySizeInBytes = getLeafValueArraySizeInBytes(newNumKeys, valuePrefix);
+        } else {
+            nonKeyEntrySizeInBytes = getNonKeyEntrySizeInBytes(newNumKeys);
+        }
+        int newPageSize = (int) (storageHeaderSize() + (keyArrayAfterInsertSizeInBytes + nonKeyEntrySizeInBytes));
         boolean willNotOverflow = pageSize >= newPageSize;
         return willNotOverflow;
     }
 
     @Override
-    @SuppressWarnings("unchecked")
+    public void recomputePrefix() {
+        super.recomputePrefix();
+        if (getNumKeys() > 0) {
+            prefix = computeKeyPrefix(getSmallestKey(), getLargestKey());
+        }
+    }
+
+    /**
+     * Computes the prefix of the keys between first and last as they are stored.
+     */
+    protected long computeKeyPrefix(long first, long last) {
+        if (bufferManager.getNodeKeyElementSize() == 4) {
+            //32 bit keys are stored in their order preserving unsigned form
+            return PrefixSharingHelper.computePrefix(
+                    PrefixSharingHelper.encodeIntKey(first),
+                    PrefixSharingHelper.encodeIntKey(last));
+        }
+        return PrefixSharingHelper.computePrefix(first, last);
+    }
+
+    /**
+     * Returns true if the node is stored as posting lists.
+     */
+    public boolean hasPostingList() {
+        return false;
+    }
+
+    /**
+     * Returns true if the keys of the node are stored dense, see 
+     * {@link DenseKeyHelper}.
+     */
+    public boolean hasDenseKeys() {
+        if (!isLeaf() || !leafDenseKeys || getNumKeys() == 0) {
+            return false;
+        }
+        int denseSize = DenseKeyHelper.encodedSize(getKeys(), getNumKeys());
+        return denseSize >= 0 && denseSize < super.getKeyArraySizeInBytes();
+    }
+
+    @Override
+    public int getKeyArraySizeInBytes() {
+        int size = super.getKeyArraySizeInBytes();
+        if (isLeaf() && leafDenseKeys && getNumKeys() > 0) {
+            //32 bit keys keep their distances in the stored form
+            int denseSize = DenseKeyHelper.encodedSize(getKeys(), getNumKeys());
+            if (denseSize >= 0) {
+                size = Math.min(size, denseSize);
+            }
+        }
+        return size;
+    }
+
+    @Override
     protected void initChildren(int size) {
         //This is called by the BTreeNode constructor
         this.childrenPageIds = new int[size];
         this.childSizes = new int[size];
-        this.children = new WeakReference[size];
+        this.children = new Object[size];
     }
 
 	@Override
@@ -113,10 +196,12 @@ public abstract class PagedBTreeNode extends BTreeNode {
 	@Override
 	public void setChildren(BTreeNode[] children) {
 		childrenPageIds = new int[children.length];
+		this.children = new Object[children.length];
 
 		for (int i = 0; i < children.length; i++) {
 			if (children[i] != null) {
 				childrenPageIds[i] = toPagedNode(children[i]).getPageId();
+				swizzle(i, toPagedNode(children[i]));
 			}
 		}
 	}
@@ -158,15 +243,24 @@ public abstract class PagedBTreeNode extends BTreeNode {
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public BTreeNode getChild(int index) {
-        PagedBTreeNode child;
-        if (children[index] == null || children[index].get() == null)  {
-            child = bufferManager.read(childrenPageIds[index]);
-            children[index] = new WeakReference<>(child);
-            return child;
+        Object ref = children[index];
+        if (ref instanceof PagedBTreeNode) {
+            bufferManager.touch((PagedBTreeNode) ref);
+            return (PagedBTreeNode) ref;
         }
-
-		return children[index].get();
+        if (ref != null) {
+            // evicted, but may still be in use
+            PagedBTreeNode child = ((WeakReference<PagedBTreeNode>) ref).get();
+            if (child != null) {
+                bufferManager.touch(child);
+                return child;
+            }
+        }
+        PagedBTreeNode child = bufferManager.readChild(this, index);
+        swizzle(index, child);
+		return child;
 	}
 
 	@Override
@@ -174,10 +268,62 @@ public abstract class PagedBTreeNode extends BTreeNode {
 		markDirty();
         PagedBTreeNode pagedChild = toPagedNode(child);
 		childrenPageIds[index] = pagedChild.getPageId();
-        children[index] = new WeakReference<>(pagedChild);
+        swizzle(index, pagedChild);
         childSizes[index] = pagedChild.getCurrentSize();
 	}
 
+	@Override
+	public void setNumKeys(int newNumKeys) {
+		int oldNumKeys = getNumKeys();
+		super.setNumKeys(newNumKeys);
+		if (children != null && newNumKeys < oldNumKeys) {
+			//the vacated slots may still reference children that have been
+			//moved to another node, they would never be released
+			Arrays.fill(children, newNumKeys + 1, Math.min(oldNumKeys + 1, children.length), null);
+		}
+	}
+
+	private void swizzle(int index, PagedBTreeNode child) {
+		children[index] = child;
+		child.swizzledParent = this;
+	}
+
+	/**
+	 * Replaces the direct reference of the parent to this node, and the 
+	 * references of this node to its children, by weak references. This has 
+	 * to be called by the buffer manager when it evicts the node, so that 
+	 * the node and its children can be garbage collected.
+	 */
+	public void unswizzle() {
+		if (children != null) {
+			for (int i = 0; i < children.length; i++) {
+				if (!(children[i] instanceof PagedBTreeNode)) {
+					continue;
+				}
+				PagedBTreeNode child = (PagedBTreeNode) children[i];
+				if (child.swizzledParent == this) {
+					child.swizzledParent = null;
+				}
+				children[i] = i <= getNumKeys() ? new WeakReference<>(child) : null;
+			}
+		}
+		PagedBTreeNode parent = swizzledParent;
+		if (parent == null) {
+			return;
+		}
+		swizzledParent = null;
+		Object[] siblings = parent.children;
+		WeakReference<PagedBTreeNode> ref = null;
+		for (int i = 0; i < siblings.length; i++) {
+			if (siblings[i] == this) {
+				if (ref == null) {
+					ref = new WeakReference<>(this);
+				}
+				siblings[i] = ref;
+			}
+		}
+	}
+
     @Override
 	public boolean equalChildren(BTreeNode other) {
 		if(getNumKeys() > 0) {
@@ -196,6 +342,14 @@ public abstract class PagedBTreeNode extends BTreeNode {
         		pagedDest.getChildrenPageIds(), destIndex, size);
         System.arraycopy(pagedSource.getChildSizes(), sourceIndex, pagedDest.getChildSizes(), destIndex, size);
         System.arraycopy(pagedSource.getChildren(), sourceIndex, pagedDest.getChildren(), destIndex, size);
+        if (pagedSource != pagedDest) {
+            Object[] destChildren = pagedDest.getChildren();
+            for (int i = destIndex; i < destIndex + size; i++) {
+                if (destChildren[i] instanceof PagedBTreeNode) {
+                    ((PagedBTreeNode) destChildren[i]).swizzledParent = pagedDest;
+                }
+            }
+        }
 	}
 
 	public int[] getChildrenPageIds() {
@@ -232,6 +386,14 @@ public abstract class PagedBTreeNode extends BTreeNode {
 		isDirty = false;
 		notifyStatus();
 	}
+
+	/**
+	 * Marks a node that has been decoded from its page as clean, without 
+	 * notifying the buffer manager.
+	 */
+	void markDecoded() {
+		isDirty = false;
+	}
 	
 	private void notifyStatus() {
 		if (this.bufferManager != null) {
@@ -265,6 +427,12 @@ public abstract class PagedBTreeNode extends BTreeNode {
 		bufferManager.remove(this);
 	}
 
+	@Override
+	public void closeChildSubtree(int index, int childHeight) {
+		bufferManager.removeSubtree(childrenPageIds[index], childHeight);
+		children[index] = null;
+	}
+
     public BTreeBufferManager getBufferManager() {
         return bufferManager;
     }
@@ -274,16 +442,69 @@ public abstract class PagedBTreeNode extends BTreeNode {
         return bufferManager.getNodeSizeInStorage(this);
     }
 
+    @Override
+    public void recomputeSize() {
+        super.recomputeSize();
+        if (leafPageCompression && isLeaf() && currentSize > pageSize) {
+            //only compress leaves that do not fit otherwise, a leaf that fits
+            //compressed counts as full
+            int compressedSize = estimateCompressedSize(currentSize);
+            if (compressedSize > pageSize) {
+                compressedSize = bufferManager.getCompressedLeafSizeInStorage(this);
+            }
+            compressedSizeBound = compressedSize;
+            compressedSizeBoundRawSize = currentSize;
+            if (compressedSize >= 0) {
+                currentSize = compressedSize <= pageSize ? pageSize : compressedSize;
+            }
+        } else {
+            compressedSizeBound = -1;
+        }
+    }
+
+    /**
+     * Extends the bound of the compressed size by the change of a single
+     * entry since the last call, so that leaves are only compressed again
+     * when they may not fit anymore.
+     *
+     * @return the bound or Integer.MAX_VALUE if it is unknown
+     */
+    private int estimateCompressedSize(int rawSize) {
+        int rawDelta = rawSize - compressedSizeBoundRawSize;
+        if (compressedSizeBound < 0 || Math.abs(rawDelta) > SINGLE_ENTRY_SLACK) {
+            return Integer.MAX_VALUE;
+        }
+        return compressedSizeBound + Math.max(rawDelta, 0) + SINGLE_ENTRY_SLACK;
+    }
+
     @Override
     public int storageHeaderSize() {
         return bufferManager.getNodeHeaderSizeInStorage(this);
     }
 
-    public WeakReference<PagedBTreeNode>[] getChildren() {
+    public Object[] getChildren() {
         return children;
     }
 
     public static int computeMaxPossibleEntries(boolean isUnique, boolean isLeaf, int pageSize, int valueElementSize) {
+        return computeMaxPossibleEntries(isUnique, isLeaf, pageSize, valueElementSize, false);
+    }
+
+    public static int computeMaxPossibleEntries(boolean isUnique, boolean isLeaf, int pageSize,
+            int valueElementSize, boolean valuePrefixSharing) {
+        return computeMaxPossibleEntries(isUnique, isLeaf, pageSize, valueElementSize, 
+                valuePrefixSharing, false);
+    }
+
+    public static int computeMaxPossibleEntries(boolean isUnique, boolean isLeaf, int pageSize,
+            int valueElementSize, boolean valuePrefixSharing, boolean leafPostingLists) {
+        return computeMaxPossibleEntries(isUnique, isLeaf, pageSize, valueElementSize, 
+                valuePrefixSharing, leafPostingLists, false, false);
+    }
+
+    public static int computeMaxPossibleEntries(boolean isUnique, boolean isLeaf, int pageSize,
+            int valueElementSize, boolean valuePrefixSharing, boolean leafPostingLists,
+            boolean leafPageCompression, boolean leafDenseKeys) {
         //ToDo use this same method in the node, to compute the sizes on init
         int maxPossibleNumEntries;
         /*
@@ -294,6 +515,20 @@ public abstract class PagedBTreeNode extends BTreeNode {
         if (isLeaf) {
             //subtract the prefix and divide by 8 (the number of bytes in a long)
             maxPossibleNumEntries = ((pageSize - encodedKeyArraySize) / valueElementSize) + 1;
+            int uncompressedEntries = maxPossibleNumEntries;
+            if (!isUnique && leafPostingLists) {
+                //posting lists of dense values need about one byte per entry
+                maxPossibleNumEntries = 8 * maxPossibleNumEntries;
+            } else if (valuePrefixSharing) {
+                //prefix shared values can be arbitrarily small, allow for twice
+                //as many entries and let the node split when the arrays are full
+                maxPossibleNumEntries = 2 * maxPossibleNumEntries;
+            }
+            if (leafPageCompression || leafDenseKeys) {
+                //compressed pages of redundant entries and dense keys with prefix
+                //shared values can hold several times as many
+                maxPossibleNumEntries = Math.max(maxPossibleNumEntries, 4 * uncompressedEntries);
+            }
         } else {
             //inner nodes also contain children ids which are ints
             //need to divide by 4
@@ -67,9 +67,9 @@ public class PagedBTreeNodeFactory implements BTreeNodeFactory {
         boolean isLeaf = true;
         PagedBTreeNode node = createNode(bufferManager, isUnique, isRoot, isLeaf, pageSize, pageId);
 
-		node.setNumKeys(numKeys);
 		node.setKeys(keys);
 		node.setValues(values);
+		node.setNumKeys(numKeys);
 		node.recomputeSize();
 		return node;
 	}
@@ -86,11 +86,11 @@ public class PagedBTreeNodeFactory implements BTreeNodeFactory {
         boolean isLeaf = false;
 		PagedBTreeNode node = createNode(bufferManager, isUnique, isRoot, isLeaf, pageSize, pageId);
 
-		node.setNumKeys(numKeys);
 		node.setKeys(keys);
         if (values != null) {
             node.setValues(values);
         }
+		node.setNumKeys(numKeys);
 		node.setChildrenPageIds(childrenPageIds);
 		node.recomputeSize();
 		return node;
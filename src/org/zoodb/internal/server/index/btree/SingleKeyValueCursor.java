@@ -0,0 +1,61 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+/**
+ * Iterates the values of a single key of a non-unique B+ tree. They are
+ * sorted ascending, which is why the cursor can be merged with others.
+ */
+public class SingleKeyValueCursor implements ValueCursor {
+
+    private final long key;
+    private final AscendingBTreeLeafEntryIterator iterator;
+
+    public SingleKeyValueCursor(BTree tree, long key) {
+        this.key = key;
+        this.iterator = new AscendingBTreeLeafEntryIterator(tree, key, key);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public long peekValue() {
+        return iterator.peekValue();
+    }
+
+    @Override
+    public long nextValue() {
+        return iterator.nextValue();
+    }
+
+    @Override
+    public void seek(long value) {
+        iterator.seekCeiling(key, value);
+    }
+
+    @Override
+    public void close() {
+        iterator.close();
+    }
+}
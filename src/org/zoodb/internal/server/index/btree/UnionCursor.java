@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Returns the values that are contained in any of several cursors, in
+ * ascending order and without duplicates.
+ */
+public class UnionCursor implements ValueCursor {
+
+    private final ValueCursor[] cursors;
+
+    public UnionCursor(ValueCursor... cursors) {
+        this.cursors = cursors.clone();
+    }
+
+    @Override
+    public boolean hasNext() {
+        for (ValueCursor cursor : cursors) {
+            if (cursor.hasNext()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long peekValue() {
+        boolean found = false;
+        long min = Long.MAX_VALUE;
+        for (ValueCursor cursor : cursors) {
+            if (cursor.hasNext()) {
+                min = found ? Math.min(min, cursor.peekValue()) : cursor.peekValue();
+                found = true;
+            }
+        }
+        if (!found) {
+            throw new NoSuchElementException();
+        }
+        return min;
+    }
+
+    @Override
+    public long nextValue() {
+        long value = peekValue();
+        for (ValueCursor cursor : cursors) {
+            if (cursor.hasNext() && cursor.peekValue() == value) {
+                cursor.nextValue();
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void seek(long value) {
+        for (ValueCursor cursor : cursors) {
+            cursor.seek(value);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (ValueCursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree;
+
+/**
+ * A cursor over values in ascending order, for example the OIDs stored with
+ * one key of a non-unique index. Cursors can be combined with
+ * {@link IntersectionCursor} and {@link UnionCursor} without materializing
+ * the values.
+ */
+public interface ValueCursor {
+
+    boolean hasNext();
+
+    /**
+     * @return      The current value, without advancing the cursor
+     */
+    long peekValue();
+
+    /**
+     * @return      The current value, the cursor is advanced to the next one
+     */
+    long nextValue();
+
+    /**
+     * Advance the cursor to the first value that is not smaller than value.
+     * Seeking backwards does not move the cursor.
+     *
+     * @param value
+     */
+    void seek(long value);
+
+    void close();
+}
@@ -23,6 +23,7 @@ package org.zoodb.internal.server.index.btree.nonunique;
 import org.zoodb.internal.server.index.btree.BTreeBufferManager;
 import org.zoodb.internal.server.index.btree.BTreeNode;
 import org.zoodb.internal.server.index.btree.PagedBTreeNode;
+import org.zoodb.internal.server.index.btree.prefix.PostingListHelper;
 
 /**
  * Node class for key-value unique trees.
@@ -32,6 +33,13 @@ import org.zoodb.internal.server.index.btree.PagedBTreeNode;
  */
 public class NonUniquePagedBTreeNode extends PagedBTreeNode {
 
+    // size of the runs and number of distinct keys of the posting list 
+    // encoding as of the last computeSize(), runsSize is -1 if unknown
+    private int runsSize = -1;
+    private int numDistinctKeys;
+    // set if put() or delete() has updated runsSize for the next computeSize()
+    private boolean runsSizeUpdated;
+
     public NonUniquePagedBTreeNode(BTreeBufferManager bufferManager, int order, boolean isLeaf, boolean isRoot) {
         super(bufferManager, order, isLeaf, isRoot);
     }
@@ -42,7 +50,8 @@ public class NonUniquePagedBTreeNode extends PagedBTreeNode {
 
     @Override
     public void initializeEntries() {
-        int size = PagedBTreeNode.computeMaxPossibleEntries(false, isLeaf(), pageSize, valueElementSize);
+        int size = PagedBTreeNode.computeMaxPossibleEntries(false, isLeaf(), pageSize, valueElementSize,
+                valuePrefixSharing, leafPostingLists, leafPageCompression, leafDenseKeys);
         initKeys(size);
         initValues(size);
         if (!isLeaf()) {
@@ -52,7 +61,8 @@ public class NonUniquePagedBTreeNode extends PagedBTreeNode {
     
     //TZ: Pure testing method
     public int computeMaxPossibleEntries() {
-    	return PagedBTreeNode.computeMaxPossibleEntries(false, isLeaf(), pageSize, valueElementSize);
+    	return PagedBTreeNode.computeMaxPossibleEntries(false, isLeaf(), pageSize, valueElementSize,
+                valuePrefixSharing, leafPostingLists, leafPageCompression, leafDenseKeys);
     }
 
     @Override
@@ -74,6 +84,7 @@ public class NonUniquePagedBTreeNode extends PagedBTreeNode {
     @Override
     public void copyFromNodeToNode(int srcStartK, int srcStartC, BTreeNode destination, int destStartK, int destStartC, int keys, int children) {
         BTreeNode source = this;
+        destination.ensureCapacity(destStartK + keys);
         System.arraycopy(source.getKeys(), srcStartK, destination.getKeys(), destStartK, keys);
         System.arraycopy(source.getValues(), srcStartK, destination.getValues(), destStartK, keys);
         if (!destination.isLeaf()) {
@@ -131,13 +142,117 @@ public class NonUniquePagedBTreeNode extends PagedBTreeNode {
     @Override
     public long getNonKeyEntrySizeInBytes(int numKeys) {
         if (isLeaf()) {
-            return numKeys * getValueElementSize();
+            return getLeafValueArraySizeInBytes(numKeys, valuePrefix);
         } else {
             int numChildren = numKeys + 1;
             return numKeys * getValueElementSize() + (numChildren << 2);
         }
     }
 
+    @Override
+    public int computeSize() {
+        int size = super.computeSize();
+        if (isLeaf() && leafPostingLists) {
+            if (!runsSizeUpdated) {
+                //other modifications are not tracked
+                runsSize = -1;
+            }
+            runsSizeUpdated = false;
+            size = Math.min(size, storageHeaderSize() + postingListSize());
+        }
+        return size;
+    }
+
+    @Override
+    protected void beforeInsertEntry(int pos, long key, long value) {
+        if (!leafPostingLists || runsSize < 0 || runsSizeUpdated) {
+            runsSize = -1;
+            return;
+        }
+        runsSize += PostingListHelper.insertedRunsSizeDelta(getKeys(), getValues(), getNumKeys(),
+                pos, key, value);
+        if ((pos == 0 || getKey(pos - 1) != key) && (pos == getNumKeys() || getKey(pos) != key)) {
+            numDistinctKeys++;
+        }
+        runsSizeUpdated = true;
+    }
+
+    @Override
+    protected void beforeRemoveEntry(int pos) {
+        if (!leafPostingLists || runsSize < 0 || runsSizeUpdated) {
+            runsSize = -1;
+            return;
+        }
+        runsSize += PostingListHelper.removedRunsSizeDelta(getKeys(), getValues(), getNumKeys(), pos);
+        long key = getKey(pos);
+        if ((pos == 0 || getKey(pos - 1) != key) 
+                && (pos == getNumKeys() - 1 || getKey(pos + 1) != key)) {
+            numDistinctKeys--;
+        }
+        runsSizeUpdated = true;
+    }
+
+    @Override
+    public boolean hasPostingList() {
+        if (!isLeaf() || !leafPostingLists || getNumKeys() == 0) {
+            return false;
+        }
+        return storageHeaderSize() + postingListSize() < super.computeSize();
+    }
+
+    private int postingListSize() {
+        return PostingListHelper.encodedSize(numDistinctKeys, getPrefix(), runsSize());
+    }
+
+    private int runsSize() {
+        if (runsSize < 0) {
+            runsSize = PostingListHelper.encodedRunsSize(getKeys(), getValues(), getNumKeys());
+            numDistinctKeys = PostingListHelper.countDistinct(getKeys(), getNumKeys());
+        }
+        return runsSize;
+    }
+
+    @Override
+    public int computeIndexForSplit(boolean isUnique) {
+        if (hasPostingList()) {
+            return PostingListHelper.computeIndexForSplit(getKeys(), getValues(), getNumKeys(), 
+                    getPrefix());
+        }
+        return super.computeIndexForSplit(isUnique);
+    }
+
+    @Override
+    public boolean fitsIntoOneNodeWith(BTreeNode neighbour) {
+        if (super.fitsIntoOneNodeWith(neighbour)) {
+            return true;
+        }
+        if (!isLeaf() || !leafPostingLists || neighbour == null) {
+            return false;
+        }
+        int newNumKeys = getNumKeys() + neighbour.getNumKeys();
+        if (newNumKeys >= getMaxNumKeys()) {
+            return false;
+        }
+        NonUniquePagedBTreeNode left = (NonUniquePagedBTreeNode) neighbour;
+        NonUniquePagedBTreeNode right = this;
+        if (smallerThanKeyValue(getNumKeys() - 1, neighbour.getKey(0), neighbour.getValue(0))) {
+            left = this;
+            right = (NonUniquePagedBTreeNode) neighbour;
+        }
+        //the runs of both nodes are joined, except for a key that is in both
+        int joinedRunsSize = left.runsSize() + right.runsSize();
+        int numDistinct = left.numDistinctKeys + right.numDistinctKeys;
+        if (left.getLargestKey() == right.getSmallestKey()) {
+            joinedRunsSize += PostingListHelper.joinedRunsSizeDelta(
+                    left.getKeys(), left.getValues(), left.getNumKeys(), 
+                    right.getKeys(), right.getValues(), right.getNumKeys());
+            numDistinct--;
+        }
+        long prefix = computeKeyPrefix(left.getSmallestKey(), right.getLargestKey());
+        return storageHeaderSize() + PostingListHelper.encodedSize(numDistinct, prefix, joinedRunsSize)
+                <= pageSize;
+    }
+
     @Override
     public String toString() {
         String ret = (isLeaf() ? "leaf" : "inner") + "-node: k:";
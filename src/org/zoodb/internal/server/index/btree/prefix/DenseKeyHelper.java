@@ -0,0 +1,180 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree.prefix;
+
+/**
+ * Encodes the strictly ascending keys of a leaf that contain runs of 
+ * consecutive keys, such as the keys of OID indexes.
+ *
+ * The keys are stored relative to the first key, either as runs or as a 
+ * bitmap, whichever is smaller:
+ *  - runs: the gap to the previous run and the length of every run of 
+ *    consecutive keys, as variable length integers
+ *  - bitmap: one bit for every key between the first and the last key
+ *
+ * Layout:
+ *  4 byte number of keys
+ *  4 byte size of the encoding
+ *  8 byte first key
+ *  1 byte 0 for runs, 1 for a bitmap
+ *  runs or bitmap
+ */
+public class DenseKeyHelper {
+
+    // number of keys and size of the encoding
+    public static final int DENSE_KEYS_METADATA_SIZE = 8;
+    // first key and type of the encoding
+    private static final int ENCODING_HEADER_SIZE = 9;
+    private static final byte RUNS = 0;
+    private static final byte BITMAP = 1;
+    // largest distance of the first and last key of a bitmap
+    private static final long MAX_BITMAP_SPAN = 1L << 30;
+
+    /**
+     * Computes the size of the dense encoding of the keys.
+     *
+     * @param keys          The sorted keys
+     * @param numKeys       The number of keys
+     * @return              The size of the encoding in bytes, including the 
+     *                      metadata, or -1 if the keys are not strictly 
+     *                      ascending
+     */
+    public static int encodedSize(long[] keys, int numKeys) {
+        int runsSize = encodedRunsSize(keys, numKeys);
+        if (runsSize < 0) {
+            return -1;
+        }
+        return DENSE_KEYS_METADATA_SIZE + ENCODING_HEADER_SIZE 
+                + Math.min(runsSize, bitmapSize(keys, numKeys));
+    }
+
+    private static int encodedRunsSize(long[] keys, int numKeys) {
+        if (numKeys == 0) {
+            return -1;
+        }
+        int size = 0;
+        long previousEnd = keys[0] - 1;
+        int runStart = 0;
+        for (int i = 1; i <= numKeys; i++) {
+            if (i < numKeys && keys[i] <= keys[i - 1]) {
+                return -1;
+            }
+            if (i == numKeys || keys[i] != keys[i - 1] + 1) {
+                size += PostingListHelper.varLongSize(keys[runStart] - previousEnd - 1);
+                size += PostingListHelper.varLongSize(i - runStart);
+                previousEnd = keys[i - 1];
+                runStart = i;
+            }
+        }
+        return size;
+    }
+
+    private static int bitmapSize(long[] keys, int numKeys) {
+        long span = keys[numKeys - 1] - keys[0];
+        if (span < 0 || span >= MAX_BITMAP_SPAN) {
+            return Integer.MAX_VALUE;
+        }
+        return (int) (span >>> 3) + 1;
+    }
+
+    public static byte[] encode(long[] keys, int numKeys) {
+        int runsSize = encodedRunsSize(keys, numKeys);
+        if (runsSize < 0) {
+            throw new IllegalArgumentException("Keys are not strictly ascending.");
+        }
+        int bitmapSize = bitmapSize(keys, numKeys);
+        boolean bitmap = bitmapSize < runsSize;
+        int size = ENCODING_HEADER_SIZE + (bitmap ? bitmapSize : runsSize);
+
+        byte[] encoded = new byte[DENSE_KEYS_METADATA_SIZE + size];
+        writeInt(encoded, 0, numKeys);
+        writeInt(encoded, 4, size);
+        long first = keys[0];
+        for (int i = 0; i < 8; i++) {
+            encoded[8 + i] = (byte) (first >>> (56 - 8 * i));
+        }
+        int pos = DENSE_KEYS_METADATA_SIZE + ENCODING_HEADER_SIZE;
+        if (bitmap) {
+            encoded[16] = BITMAP;
+            for (int i = 0; i < numKeys; i++) {
+                int bit = (int) (keys[i] - first);
+                encoded[pos + (bit >>> 3)] |= 1 << (bit & 7);
+            }
+        } else {
+            encoded[16] = RUNS;
+            long previousEnd = first - 1;
+            int runStart = 0;
+            for (int i = 1; i <= numKeys; i++) {
+                if (i == numKeys || keys[i] != keys[i - 1] + 1) {
+                    pos = PostingListHelper.writeVarLong(encoded, pos, keys[runStart] - previousEnd - 1);
+                    pos = PostingListHelper.writeVarLong(encoded, pos, i - runStart);
+                    previousEnd = keys[i - 1];
+                    runStart = i;
+                }
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Decodes the keys.
+     *
+     * @param encoding      The encoding, without the metadata
+     * @param numKeys       The number of keys
+     * @param keys          The destination of the keys
+     */
+    public static void decode(byte[] encoding, int numKeys, long[] keys) {
+        long first = 0;
+        for (int i = 0; i < 8; i++) {
+            first = (first << 8) | (encoding[i] & 0xFF);
+        }
+        if (encoding[8] == BITMAP) {
+            int k = 0;
+            for (int pos = ENCODING_HEADER_SIZE; k < numKeys; pos++) {
+                int b = encoding[pos] & 0xFF;
+                while (b != 0) {
+                    int bit = Integer.numberOfTrailingZeros(b);
+                    keys[k++] = first + ((long) (pos - ENCODING_HEADER_SIZE) << 3) + bit;
+                    b &= b - 1;
+                }
+            }
+        } else {
+            int[] pos = new int[] {ENCODING_HEADER_SIZE};
+            long previousEnd = first - 1;
+            int k = 0;
+            while (k < numKeys) {
+                long key = previousEnd + 1 + PostingListHelper.readVarLong(encoding, pos);
+                long runLength = PostingListHelper.readVarLong(encoding, pos);
+                for (long i = 0; i < runLength; i++) {
+                    keys[k++] = key++;
+                }
+                previousEnd = key - 1;
+            }
+        }
+    }
+
+    private static void writeInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+    }
+}
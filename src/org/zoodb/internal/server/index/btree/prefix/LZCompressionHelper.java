@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree.prefix;
+
+/**
+ * A fast LZ77 compressor for encoded pages, similar to LZ4.
+ *
+ * The compressed data is a sequence of:
+ *  1 byte token: number of literals (upper 4 bits), match length - 4
+ *    (lower 4 bits), a value of 15 is continued in the following bytes
+ *  additional bytes of the number of literals, 255 means more follow
+ *  the literals
+ *  2 byte offset of the match
+ *  additional bytes of the match length, 255 means more follow
+ * The last sequence ends after the literals. The length of the
+ * uncompressed data is not stored.
+ */
+public class LZCompressionHelper {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 12;
+    private static final int RUN_MASK = 15;
+
+    /**
+     * @return the maximum size of the compressed data
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses src[srcOff, srcOff + srcLen) to dst at dstOff.
+     *
+     * @return the size of the compressed data
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        // positions + 1 of the last occurrence of a hashed 4 byte sequence
+        int[] table = new int[1 << HASH_LOG];
+        int end = srcOff + srcLen;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+        while (ip + MIN_MATCH <= end) {
+            int sequence = readInt(src, ip);
+            int h = (sequence * 0x9E3779B1) >>> (32 - HASH_LOG);
+            int ref = table[h] - 1 + srcOff;
+            table[h] = ip - srcOff + 1;
+            if (ref < srcOff || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < end && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+            ip += matchLength;
+            anchor = ip;
+        }
+        op = writeSequence(src, anchor, end - anchor, 0, 0, dst, op);
+        return op - dstOff;
+    }
+
+    private static int writeSequence(byte[] src, int literalsOff, int numLiterals,
+            int offset, int matchLength, byte[] dst, int op) {
+        int tokenPos = op++;
+        int token;
+        if (numLiterals >= RUN_MASK) {
+            token = RUN_MASK << 4;
+            op = writeLength(numLiterals - RUN_MASK, dst, op);
+        } else {
+            token = numLiterals << 4;
+        }
+        System.arraycopy(src, literalsOff, dst, op, numLiterals);
+        op += numLiterals;
+        if (matchLength > 0) {
+            dst[op++] = (byte) (offset >>> 8);
+            dst[op++] = (byte) offset;
+            int length = matchLength - MIN_MATCH;
+            if (length >= RUN_MASK) {
+                token |= RUN_MASK;
+                op = writeLength(length - RUN_MASK, dst, op);
+            } else {
+                token |= length;
+            }
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * Decompresses src[srcOff, srcOff + srcLen) to dst at dstOff.
+     *
+     * @return the size of the decompressed data
+     */
+    public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+        int end = srcOff + srcLen;
+        int ip = srcOff;
+        int op = dstOff;
+        while (ip < end) {
+            int token = src[ip++] & 0xFF;
+            int numLiterals = token >>> 4;
+            if (numLiterals == RUN_MASK) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    numLiterals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, ip, dst, op, numLiterals);
+            ip += numLiterals;
+            op += numLiterals;
+            if (ip >= end) {
+                break;
+            }
+            int offset = ((src[ip] & 0xFF) << 8) | (src[ip + 1] & 0xFF);
+            ip += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            // matches may overlap with their own output
+            int ref = op - offset;
+            for (int i = 0; i < matchLength; i++) {
+                dst[op++] = dst[ref++];
+            }
+        }
+        return op - dstOff;
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16
+                | (b[pos + 2] & 0xFF) << 8 | (b[pos + 3] & 0xFF);
+    }
+}
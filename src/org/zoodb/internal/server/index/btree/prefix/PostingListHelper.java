@@ -0,0 +1,304 @@
+/*
+ * Copyright 2009-2014 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of ZooDB.
+ *
+ * ZooDB is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ZooDB is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with ZooDB.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * See the README and COPYING files for further information.
+ */
+package org.zoodb.internal.server.index.btree.prefix;
+
+/**
+ * Encodes the sorted (key, value) entries of a non-unique leaf as posting lists.
+ *
+ * Every distinct key is stored once, prefix-shared, followed by a run per key:
+ *  - the number of values of the key
+ *  - the first value (zig-zag encoded)
+ *  - the deltas between the following, ascending values
+ * All numbers of a run are stored as variable length integers.
+ *
+ * Layout:
+ *  4 byte number of entries
+ *  prefixShareEncoding(distinct keys)
+ *  4 byte size of the runs
+ *  runs
+ */
+public class PostingListHelper {
+
+    // number of entries and size of the runs
+    public static final int POSTING_LIST_METADATA_SIZE = 8;
+
+    public static int countDistinct(long[] keys, int numEntries) {
+        if (numEntries == 0) {
+            return 0;
+        }
+        int distinct = 1;
+        for (int i = 1; i < numEntries; i++) {
+            if (keys[i] != keys[i - 1]) {
+                distinct++;
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Computes the size of the posting list encoding of the entries.
+     *
+     * @param keys          The sorted keys
+     * @param values        The values, ascending for equal keys
+     * @param numEntries    The number of entries
+     * @param keyPrefix     The bit prefix shared by all keys
+     * @return              The size of the encoding in bytes
+     */
+    public static int encodedSize(long[] keys, long[] values, int numEntries, long keyPrefix) {
+        return encodedSize(countDistinct(keys, numEntries), keyPrefix,
+                encodedRunsSize(keys, values, numEntries));
+    }
+
+    /**
+     * Computes the size of the posting list encoding from the number of
+     * distinct keys and the size of the runs.
+     */
+    public static int encodedSize(int numDistinct, long keyPrefix, int runsSize) {
+        return POSTING_LIST_METADATA_SIZE
+                + PrefixSharingHelper.encodedArraySize(numDistinct, keyPrefix)
+                + runsSize;
+    }
+
+    public static int encodedRunsSize(long[] keys, long[] values, int numEntries) {
+        int size = 0;
+        int runStart = 0;
+        for (int i = 0; i < numEntries; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                if (i > 0) {
+                    size += varLongSize(i - runStart);
+                }
+                runStart = i;
+            }
+            size += entrySize(keys, values, i);
+        }
+        if (numEntries > 0) {
+            size += varLongSize(numEntries - runStart);
+        }
+        return size;
+    }
+
+    /**
+     * Computes the change of the size of the runs when (key, value) is 
+     * inserted at pos, before the entries are shifted.
+     */
+    public static int insertedRunsSizeDelta(long[] keys, long[] values, int numEntries, 
+            int pos, long key, long value) {
+        int delta = pos == 0 || keys[pos - 1] != key 
+                ? varLongSize(zigZag(value)) 
+                : varLongSize(value - values[pos - 1]);
+        if (pos < numEntries) {
+            delta -= entrySize(keys, values, pos);
+            delta += keys[pos] != key 
+                    ? varLongSize(zigZag(values[pos])) 
+                    : varLongSize(values[pos] - value);
+        }
+        int runLength = runLength(keys, numEntries, key);
+        return delta + varLongSize(runLength + 1) - (runLength == 0 ? 0 : varLongSize(runLength));
+    }
+
+    /**
+     * Computes the change of the size of the runs when the entry at pos 
+     * is removed, before the entries are shifted.
+     */
+    public static int removedRunsSizeDelta(long[] keys, long[] values, int numEntries, int pos) {
+        int delta = -entrySize(keys, values, pos);
+        if (pos + 1 < numEntries) {
+            delta -= entrySize(keys, values, pos + 1);
+            delta += pos == 0 || keys[pos - 1] != keys[pos + 1] 
+                    ? varLongSize(zigZag(values[pos + 1])) 
+                    : varLongSize(values[pos + 1] - values[pos - 1]);
+        }
+        int runLength = runLength(keys, numEntries, keys[pos]);
+        return delta - varLongSize(runLength) + (runLength == 1 ? 0 : varLongSize(runLength - 1));
+    }
+
+    /**
+     * Computes the change of the size of the runs when the entries of right 
+     * are appended to the entries of left, if the largest key of left is the 
+     * smallest key of right.
+     */
+    public static int joinedRunsSizeDelta(long[] leftKeys, long[] leftValues, int numLeft,
+            long[] rightKeys, long[] rightValues, int numRight) {
+        int leftRun = runLength(leftKeys, numLeft, leftKeys[numLeft - 1]);
+        int rightRun = runLength(rightKeys, numRight, rightKeys[0]);
+        return varLongSize(rightValues[0] - leftValues[numLeft - 1]) 
+                - varLongSize(zigZag(rightValues[0]))
+                + varLongSize(leftRun + rightRun) - varLongSize(leftRun) - varLongSize(rightRun);
+    }
+
+    // the size of the first value of a run or of the delta to the previous value
+    private static int entrySize(long[] keys, long[] values, int i) {
+        return i == 0 || keys[i] != keys[i - 1] 
+                ? varLongSize(zigZag(values[i])) 
+                : varLongSize(values[i] - values[i - 1]);
+    }
+
+    // the number of entries with the key, the keys are sorted
+    private static int runLength(long[] keys, int numEntries, long key) {
+        return countKeysBelow(keys, numEntries, key, true) 
+                - countKeysBelow(keys, numEntries, key, false);
+    }
+
+    // the number of keys that are smaller than key, or not larger if inclusive
+    private static int countKeysBelow(long[] keys, int numEntries, long key, boolean inclusive) {
+        int low = 0;
+        int high = numEntries;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key || (inclusive && keys[mid] == key)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public static byte[] encode(long[] keys, long[] values, int numEntries, long keyPrefix) {
+        int numDistinct = countDistinct(keys, numEntries);
+        long[] distinctKeys = new long[numDistinct];
+        int runsSize = encodedRunsSize(keys, values, numEntries);
+        byte[] runs = new byte[runsSize];
+        int pos = 0;
+        int k = 0;
+        for (int runStart = 0; runStart < numEntries; ) {
+            int runEnd = runStart + 1;
+            while (runEnd < numEntries && keys[runEnd] == keys[runStart]) {
+                runEnd++;
+            }
+            distinctKeys[k++] = keys[runStart];
+            pos = writeVarLong(runs, pos, runEnd - runStart);
+            pos = writeVarLong(runs, pos, zigZag(values[runStart]));
+            for (int i = runStart + 1; i < runEnd; i++) {
+                pos = writeVarLong(runs, pos, values[i] - values[i - 1]);
+            }
+            runStart = runEnd;
+        }
+        byte[] encodedKeys = PrefixSharingHelper.encodeArray(distinctKeys, numDistinct, keyPrefix);
+
+        byte[] encoded = new byte[POSTING_LIST_METADATA_SIZE + encodedKeys.length + runsSize];
+        writeInt(encoded, 0, numEntries);
+        System.arraycopy(encodedKeys, 0, encoded, 4, encodedKeys.length);
+        writeInt(encoded, 4 + encodedKeys.length, runsSize);
+        System.arraycopy(runs, 0, encoded, POSTING_LIST_METADATA_SIZE + encodedKeys.length, runsSize);
+        return encoded;
+    }
+
+    /**
+     * Expands the runs into the key and value arrays.
+     *
+     * @param runs          The encoded runs
+     * @param distinctKeys  The distinct keys, one per run
+     * @param numDistinct   The number of runs
+     * @param keys          The destination of the keys
+     * @param values        The destination of the values
+     */
+    public static void decodeRuns(byte[] runs, long[] distinctKeys, int numDistinct,
+            long[] keys, long[] values) {
+        int[] pos = new int[1];
+        int entry = 0;
+        for (int k = 0; k < numDistinct; k++) {
+            int runLength = (int) readVarLong(runs, pos);
+            long value = unZigZag(readVarLong(runs, pos));
+            keys[entry] = distinctKeys[k];
+            values[entry++] = value;
+            for (int i = 1; i < runLength; i++) {
+                value += readVarLong(runs, pos);
+                keys[entry] = distinctKeys[k];
+                values[entry++] = value;
+            }
+        }
+    }
+
+    /**
+     * Computes the number of entries that should stay in the left node when
+     * splitting a posting list encoded node into two nodes of similar size.
+     *
+     * @param keys          The sorted keys
+     * @param values        The values, ascending for equal keys
+     * @param numEntries    The number of entries, at least 2
+     * @param keyPrefix     The bit prefix shared by all keys
+     * @return              The number of entries in the left node
+     */
+    public static int computeIndexForSplit(long[] keys, long[] values, int numEntries, long keyPrefix) {
+        // a run costs its key, its length and its first value
+        int keySize = (int) ((64 - keyPrefix + 7) >>> 3);
+        long[] cost = new long[numEntries];
+        long total = 0;
+        for (int i = 0; i < numEntries; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                cost[i] = keySize + 1 + varLongSize(zigZag(values[i]));
+            } else {
+                cost[i] = varLongSize(values[i] - values[i - 1]);
+            }
+            total += cost[i];
+        }
+        long left = 0;
+        for (int i = 0; i < numEntries - 1; i++) {
+            left += cost[i];
+            if (left * 2 >= total) {
+                return i + 1;
+            }
+        }
+        return numEntries - 1;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varLongSize(long value) {
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        return bits == 0 ? 1 : (bits + 6) / 7;
+    }
+
+    static int writeVarLong(byte[] buf, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+
+    static long readVarLong(byte[] buf, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static void writeInt(byte[] buf, int pos, int value) {
+        buf[pos] = (byte) (value >>> 24);
+        buf[pos + 1] = (byte) (value >>> 16);
+        buf[pos + 2] = (byte) (value >>> 8);
+        buf[pos + 3] = (byte) value;
+    }
+}
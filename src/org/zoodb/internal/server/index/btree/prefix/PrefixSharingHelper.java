@@ -20,6 +20,7 @@
  */
 package org.zoodb.internal.server.index.btree.prefix;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -73,6 +74,50 @@ public class PrefixSharingHelper {
         return prefix;
     }
 
+    /**
+     * Computes the bit prefix shared by all elements of an array that is not
+     * necessarily sorted, such as the values of a leaf node.
+     *
+     * @param arr           The array received as argument.
+     * @param arrayLength   The number of elements to take into account
+     * @return              The bit prefix
+     */
+    public static long computePrefixUnsorted(long[] arr, int arrayLength) {
+        if (arrayLength == 0) {
+            return 64;
+        }
+        long first = arr[0];
+        long diff = 0;
+        for (int i = 1; i < arrayLength; i++) {
+            diff |= first ^ arr[i];
+        }
+        return Long.numberOfLeadingZeros(diff);
+    }
+
+    /**
+     * Maps a 32 bit key onto a non-negative long while preserving the order.
+     * The upper word of mapped keys is always zero and thus part of the shared
+     * prefix, even if the keys have different signs.
+     *
+     * @param key       A key in the range of int
+     * @return          The mapped key
+     */
+    public static long encodeIntKey(long key) {
+        // larger keys would be truncated, trees with 4 byte keys reject them
+        assert key == (int) key : key;
+        return (key ^ 0x80000000L) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Reverts {@link #encodeIntKey(long)}.
+     *
+     * @param encodedKey    A key mapped by encodeIntKey
+     * @return              The original key
+     */
+    public static long decodeIntKey(long encodedKey) {
+        return (int) (encodedKey ^ 0x80000000L);
+    }
+
     public static int computeIndexForSplitAfterInsert(long[] arr, int arrayLength) {
         return computeIndexForSplitAfterInsert(arr, arrayLength, 0, 0, 0, Long.MAX_VALUE);
     }
@@ -440,6 +485,46 @@ public class PrefixSharingHelper {
         return decodedArray;
     }
     
+    /**
+     * Reads the prefix of an encoded array in place.
+     *
+     * @param buf               The buffer containing the encoded array
+     * @param start             The position of the array after its metadata
+     * @param prefixLength      The size of the prefix
+     * @return                  The prefix bits, shifted to their position in the elements
+     */
+    public static long readPrefixBits(ByteBuffer buf, int start, int prefixLength) {
+        long prefixBits = readBits(buf, start, 0, prefixLength);
+        return prefixLength == 0 ? 0 : prefixBits << (64 - prefixLength);
+    }
+
+    /**
+     * Reads a single element of an encoded array in place, without decoding
+     * the other elements.
+     *
+     * @param buf               The buffer containing the encoded array
+     * @param start             The position of the array after its metadata
+     * @param prefixLength      The size of the prefix
+     * @param prefixBits        The prefix as returned by readPrefixBits()
+     * @param index             The index of the element
+     * @return                  The element
+     */
+    public static long readElement(ByteBuffer buf, int start, int prefixLength, long prefixBits, int index) {
+        int suffixLength = 64 - prefixLength;
+        long firstBit = prefixLength + (long) index * suffixLength;
+        return prefixBits | readBits(buf, start, firstBit, suffixLength);
+    }
+
+    // reads numBits bits, the first bit read is the most significant one
+    private static long readBits(ByteBuffer buf, int start, long firstBit, int numBits) {
+        long bits = 0;
+        for (long b = firstBit; b < firstBit + numBits; b++) {
+            int bitValue = (buf.get(start + (int) (b >>> 3)) >>> (b & 7)) & 1;
+            bits = (bits << 1) | bitValue;
+        }
+        return bits;
+    }
+
     public static int byteArrayToInt(byte[] array, int indexInArray) {
         return 	( array[indexInArray] << 24 )  |
                 ( (array[indexInArray+1] & 0xFF) << 16 )  |
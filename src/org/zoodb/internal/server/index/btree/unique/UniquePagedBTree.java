@@ -20,6 +20,7 @@
  */
 package org.zoodb.internal.server.index.btree.unique;
 
+import org.zoodb.internal.server.index.btree.BTree.RangeEmptyCheck;
 import org.zoodb.internal.server.index.btree.BTreeBufferManager;
 import org.zoodb.internal.server.index.btree.BTreeNode;
 import org.zoodb.internal.server.index.btree.PagedBTree;
@@ -56,13 +57,32 @@ public class UniquePagedBTree extends PagedBTree {
 		if (isEmpty()) {
 			return null;
 		}
-		BTreeNode current = root;
+        return findValue(findLeaf(key), key);
+	}
 
-		while (!current.isLeaf()) {
-			current = current.findChild(key, NO_VALUE);
+	/**
+	 * Retrieve the value corresponding to the key from the B+ tree without
+	 * boxing the result.
+	 * 
+	 * @param key
+	 * @param failValue    The value to return if the key is not found
+	 * @return corresponding value or failValue if key not found
+	 */
+	public long search(long key, long failValue) {
+		if (isEmpty()) {
+			return failValue;
 		}
+		BTreeNode leaf = findLeaf(key);
+		int position = leaf.binarySearch(key, NO_VALUE);
+		return position >= 0 ? leaf.getValue(position) : failValue;
+	}
 
-        return findValue(current, key);
+	/**
+	 * @param key
+	 * @return true if the tree contains the key
+	 */
+	public boolean containsKey(long key) {
+		return !isEmpty() && findLeaf(key).containsKeyValue(key, NO_VALUE);
 	}
 
 	/**
@@ -84,6 +104,40 @@ public class UniquePagedBTree extends PagedBTree {
 		return deleteEntry(key, NO_VALUE);
 	}
 
+	/**
+	 * Delete the value corresponding to the key from the tree, if the key
+	 * exists. Unlike delete(long), a missing key is not reported by throwing
+	 * an exception, and the tree is not modified in that case.
+	 * 
+	 * @param key          The key to be deleted.
+	 * @param failValue    The value to return if the key is not found
+	 * @return the deleted value or failValue if key not found
+	 */
+	public long deleteNoFail(long key, long failValue) {
+		return deleteEntryNoFail(key, NO_VALUE, failValue);
+	}
+
+	/**
+	 * Delete the value corresponding to the key from the tree and check, in
+	 * the same descent, if any other key in the range of rangeCheck remains.
+	 * 
+	 * @param key          The key to be deleted, it must be in the range 
+	 *                     of rangeCheck
+	 * @param rangeCheck   The range to check
+	 * @return the deleted value
+	 */
+	public long delete(long key, RangeEmptyCheck rangeCheck) {
+		return deleteEntry(key, NO_VALUE, rangeCheck);
+	}
+
+	private BTreeNode findLeaf(long key) {
+		BTreeNode current = root;
+		while (!current.isLeaf()) {
+			current = current.findChild(key, NO_VALUE);
+		}
+		return current;
+	}
+
     /**
      * Finds the long value corresponding to a key in a node.
      * @param node          A leaf node
@@ -39,7 +39,8 @@ public class UniquePagedBTreeNode extends PagedBTreeNode {
 
     @Override
     public void initializeEntries() {
-        int size = computeMaxPossibleEntries(true, isLeaf(), pageSize, valueElementSize);
+        int size = computeMaxPossibleEntries(true, isLeaf(), pageSize, valueElementSize,
+                valuePrefixSharing, false, leafPageCompression, leafDenseKeys);
         initKeys(size);
         if (!isLeaf()) {
             initChildren(size + 1);
@@ -50,7 +51,8 @@ public class UniquePagedBTreeNode extends PagedBTreeNode {
     
     //TZ: Pure testing method
     public int computeMaxPossibleEntries() {
-    	return PagedBTreeNode.computeMaxPossibleEntries(true, isLeaf(), pageSize, valueElementSize);
+    	return PagedBTreeNode.computeMaxPossibleEntries(true, isLeaf(), pageSize, valueElementSize,
+                valuePrefixSharing, false, leafPageCompression, leafDenseKeys);
     }
 
     @Override
@@ -69,6 +71,7 @@ public class UniquePagedBTreeNode extends PagedBTreeNode {
     @Override
     public void copyFromNodeToNode(int srcStartK, int srcStartC, BTreeNode destination, int destStartK, int destStartC, int keys, int children) {
         BTreeNode source = this;
+        destination.ensureCapacity(destStartK + keys);
         System.arraycopy(source.getKeys(), srcStartK, destination.getKeys(), destStartK, keys);
         if (destination.isLeaf()) {
             System.arraycopy(source.getValues(), srcStartK, destination.getValues(), destStartK, keys);
@@ -163,7 +166,7 @@ public class UniquePagedBTreeNode extends PagedBTreeNode {
     @Override
     public long getNonKeyEntrySizeInBytes(int numKeys) {
         if (isLeaf()) {
-            return numKeys * getValueElementSize();
+            return getLeafValueArraySizeInBytes(numKeys, valuePrefix);
         } else {
             return (numKeys + 1) << 2;
         }
@@ -32,8 +32,9 @@ public class BTreePluginInitializer {
 		IndexFactory.CREATE_UNIQUE_INDEX = BTreeIndexUnique::new;
 		IndexFactory.LOAD_UNIQUE_INDEX = BTreeIndexUnique::new;
 
-		IndexFactory.CREATE_UNIQUE_INDEX_SIZED = (pt, io, keySize, valSize) -> (new BTreeIndexUnique(pt,  io));
+		IndexFactory.CREATE_UNIQUE_INDEX_SIZED = 
+				(pt, io, keySize, valSize) -> (new BTreeIndexUnique(pt, io, keySize, valSize));
 		IndexFactory.LOAD_UNIQUE_INDEX_SIZED = 
-				(pt, io, pageId, keySize, valSize) -> (new BTreeIndexUnique(pt,  io, pageId));
+				(pt, io, pageId, keySize, valSize) -> (new BTreeIndexUnique(pt, io, pageId, keySize, valSize));
 	}
 }
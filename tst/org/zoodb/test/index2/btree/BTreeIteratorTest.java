@@ -22,10 +22,17 @@ package org.zoodb.test.index2.btree;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.TreeSet;
 
 import org.junit.Test;
 import org.zoodb.internal.server.index.LongLongIndex;
@@ -33,6 +40,7 @@ import org.zoodb.internal.server.index.btree.AscendingBTreeLeafEntryIterator;
 import org.zoodb.internal.server.index.btree.BTree;
 import org.zoodb.internal.server.index.btree.BTreeLeafEntryIterator;
 import org.zoodb.internal.server.index.btree.BTreeMemoryBufferManager;
+import org.zoodb.internal.server.index.btree.BTreeSpliterator;
 import org.zoodb.internal.server.index.btree.DescendingBTreeLeafEntryIterator;
 import org.zoodb.internal.server.index.btree.PagedBTree;
 import org.zoodb.internal.server.index.btree.nonunique.NonUniquePagedBTree;
@@ -309,6 +317,131 @@ public class BTreeIteratorTest {
         assertFalse(it.hasNext());
     }
 
+	@Test
+	public void testSeekUnique() {
+		UniquePagedBTree tree = new UniquePagedBTree(128,
+				new BTreeMemoryBufferManager());
+		checkSeek(tree, 20000, 1);
+	}
+
+	@Test
+	public void testSeekNonUnique() {
+		NonUniquePagedBTree tree = new NonUniquePagedBTree(128,
+				new BTreeMemoryBufferManager());
+		checkSeek(tree, 20000, 20);
+	}
+
+	private void checkSeek(BTree tree, int n, int valuesPerKey) {
+		Random rnd = new Random(11);
+		TreeSet<LongLongIndex.LLEntry> entries = new TreeSet<>(ENTRY_ORDER);
+		while (entries.size() < n) {
+			LongLongIndex.LLEntry e = new LongLongIndex.LLEntry(
+					rnd.nextInt(n * 4 / valuesPerKey), rnd.nextInt(100));
+			if (tree.insert(e.getKey(), e.getValue(), true)) {
+				entries.add(e);
+			}
+		}
+		long maxKey = n * 4 / valuesPerKey;
+		for (int round = 0; round < 20; round++) {
+			long min = rnd.nextInt(10) == 0 ? Long.MIN_VALUE : rnd.nextInt((int) maxKey / 2);
+			long max = rnd.nextInt(10) == 0 ? Long.MAX_VALUE : min + rnd.nextInt((int) maxKey);
+			ArrayList<LongLongIndex.LLEntry> asc = new ArrayList<>();
+			for (LongLongIndex.LLEntry e : entries) {
+				if (e.getKey() >= min && e.getKey() <= max) {
+					asc.add(e);
+				}
+			}
+			ArrayList<LongLongIndex.LLEntry> desc = new ArrayList<>(asc);
+			Collections.reverse(desc);
+
+			AscendingBTreeLeafEntryIterator ascIt = new AscendingBTreeLeafEntryIterator(tree, min, max);
+			DescendingBTreeLeafEntryIterator descIt = new DescendingBTreeLeafEntryIterator(tree, min, max);
+			int ascPos = 0;
+			int descPos = 0;
+			long target = min == Long.MIN_VALUE ? 0 : min;
+			long descTarget = max == Long.MAX_VALUE ? maxKey : max;
+			while (ascPos < asc.size() || descPos < desc.size()) {
+				int step = rnd.nextInt(valuesPerKey * 40);
+				target += step;
+				descTarget -= step;
+				long value = rnd.nextInt(100);
+				if (rnd.nextBoolean() || tree.isUnique()) {
+					ascIt.seek(target);
+					value = Long.MIN_VALUE;
+				} else {
+					ascIt.seekCeiling(target, value);
+				}
+				LongLongIndex.LLEntry probe = new LongLongIndex.LLEntry(target, value);
+				while (ascPos < asc.size() && ENTRY_ORDER.compare(asc.get(ascPos), probe) < 0) {
+					ascPos++;
+				}
+				descIt.seek(descTarget);
+				while (descPos < desc.size() && desc.get(descPos).getKey() > descTarget) {
+					descPos++;
+				}
+
+				assertEquals(ascPos < asc.size(), ascIt.hasNext());
+				if (ascIt.hasNext()) {
+					assertEntryEquals(asc.get(ascPos++), ascIt.next());
+				}
+				assertEquals(descPos < desc.size(), descIt.hasNext());
+				if (descIt.hasNext()) {
+					assertEntryEquals(desc.get(descPos++), descIt.next());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSpliterator() {
+		NonUniquePagedBTree tree = new NonUniquePagedBTree(128,
+				new BTreeMemoryBufferManager());
+		Random rnd = new Random(17);
+		for (int i = 0; i < 50000; i++) {
+			tree.insert(rnd.nextInt(20000), i);
+		}
+		long min = 1234;
+		long max = 17000;
+		ArrayList<Long> expected = new ArrayList<>();
+		BTreeLeafEntryIterator it = new AscendingBTreeLeafEntryIterator(tree, min, max);
+		while (it.hasNext()) {
+			expected.add(it.next().getKey());
+		}
+
+		//split recursively, the parts must be consecutive
+		ArrayList<Spliterator.OfLong> parts = new ArrayList<>();
+		parts.add(new BTreeSpliterator.OfKeys(tree, min, max));
+		for (int round = 0; round < 6; round++) {
+			ArrayList<Spliterator.OfLong> next = new ArrayList<>();
+			for (Spliterator.OfLong part : parts) {
+				Spliterator.OfLong prefix = part.trySplit();
+				if (prefix != null) {
+					next.add(prefix);
+				}
+				next.add(part);
+			}
+			parts = next;
+		}
+		assertTrue(parts.size() > 16);
+		ArrayList<Long> actual = new ArrayList<>();
+		for (Spliterator.OfLong part : parts) {
+			part.forEachRemaining((long key) -> actual.add(key));
+			//no split after the traversal started
+			assertNull(part.trySplit());
+		}
+		assertEquals(expected, actual);
+	}
+
+	private static final Comparator<LongLongIndex.LLEntry> ENTRY_ORDER = (e1, e2) -> {
+		int c = Long.compare(e1.getKey(), e2.getKey());
+		return c != 0 ? c : Long.compare(e1.getValue(), e2.getValue());
+	};
+
+	private static void assertEntryEquals(LongLongIndex.LLEntry expected, LongLongIndex.LLEntry actual) {
+		assertEquals(expected.getKey(), actual.getKey());
+		assertEquals(expected.getValue(), actual.getValue());
+	}
+
 	public ArrayList<Long> valueListFromIterator(BTreeLeafEntryIterator it) {
 		ArrayList<Long> values = new ArrayList<>();
 		while (it.hasNext()) {
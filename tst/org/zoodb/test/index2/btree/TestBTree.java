@@ -30,6 +30,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 
 import org.junit.Test;
 import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
@@ -38,8 +39,12 @@ import org.zoodb.internal.server.StorageRootInMemory;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.PagedLongLong;
 import org.zoodb.internal.server.index.PagedUniqueLongLong;
+import org.zoodb.internal.server.index.btree.AscendingBTreeLeafEntryIterator;
+import org.zoodb.internal.server.index.btree.BTree;
 import org.zoodb.internal.server.index.btree.BTreeBufferManager;
 import org.zoodb.internal.server.index.btree.BTreeIterator;
+import org.zoodb.internal.server.index.btree.BTreeLeafEntryIterator;
+import org.zoodb.internal.server.index.btree.BTreeNode;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
 import org.zoodb.internal.server.index.btree.PagedBTree;
 import org.zoodb.internal.server.index.btree.nonunique.NonUniquePagedBTree;
@@ -267,6 +272,85 @@ public class TestBTree {
 		
 	}
 	
+	@Test
+	public void testRemoveRange() {
+		int pageSize = 128;
+		UniquePagedBTree tree = new UniquePagedBTree(pageSize, newBufferManager(pageSize));
+		TreeMap<Long, Long> expected = new TreeMap<>();
+		Random rnd = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			long key = rnd.nextInt(1000000);
+			tree.insert(key, i);
+			expected.put(key, (long) i);
+		}
+
+		for (int i = 0; i < 50; i++) {
+			long min = rnd.nextInt(1000000);
+			long max = min + rnd.nextInt(i % 2 == 0 ? 1000 : 100000);
+			tree.removeRange(min, max);
+			expected.subMap(min, true, max, true).clear();
+			checkRangeRemoved(tree, expected, pageSize);
+			assertEquals((long) expected.lastKey(), tree.getMaxKey());
+		}
+
+		tree.removeRange(Long.MIN_VALUE, Long.MAX_VALUE);
+		assertEquals(0, tree.getRoot().getNumKeys());
+		assertTrue(tree.getRoot().isLeaf());
+		tree.insert(5, 6);
+		assertEquals(Long.valueOf(6), tree.search(5));
+	}
+
+	@Test
+	public void testRemoveRangeNonUnique() {
+		int pageSize = 256;
+		IOResourceProvider storage = new StorageRootInMemory(pageSize).createChannel();
+		NonUniquePagedBTree tree = new NonUniquePagedBTree(pageSize, 
+				new BTreeStorageBufferManager(storage, false));
+		TreeMap<Long, Long> expected = new TreeMap<>();
+		for (int i = 0; i < 30000; i++) {
+			long key = i % 300;
+			tree.insert(key, i);
+			expected.put(key * 100000 + i, (long) i);
+		}
+
+		Random rnd = new Random(42);
+		for (int i = 0; i < 20; i++) {
+			long min = rnd.nextInt(300);
+			long max = min + rnd.nextInt(20);
+			tree.removeRange(min, max);
+			expected.subMap(min * 100000, true, max * 100000 + 99999, true).clear();
+
+			BTreeLeafEntryIterator it = new AscendingBTreeLeafEntryIterator(tree);
+			for (Map.Entry<Long, Long> e : expected.entrySet()) {
+				LLEntry entry = it.next();
+				assertEquals(e.getKey() / 100000, entry.getKey());
+				assertEquals((long) e.getValue(), entry.getValue());
+			}
+			assertFalse(it.hasNext());
+			it.close();
+		}
+	}
+
+	private static void checkRangeRemoved(BTree tree, TreeMap<Long, Long> expected, int pageSize) {
+		BTreeLeafEntryIterator it = new AscendingBTreeLeafEntryIterator(tree);
+		for (Map.Entry<Long, Long> e : expected.entrySet()) {
+			LLEntry entry = it.next();
+			assertEquals((long) e.getKey(), entry.getKey());
+			assertEquals((long) e.getValue(), entry.getValue());
+		}
+		assertFalse(it.hasNext());
+		it.close();
+
+		BTreeIterator nodes = new BTreeIterator(tree);
+		assertTrue(nodes.next().isRoot());
+		while (nodes.hasNext()) {
+			BTreeNode node = nodes.next();
+			assertFalse(node.isRoot());
+			assertTrue(node.getNumKeys() > 0 || !node.isLeaf());
+			assertTrue(node.computeSize() <= pageSize);
+		}
+	}
+
 	@Test
 	public void testInsertLongIfNotSet() {
 		int pageSize = 128;
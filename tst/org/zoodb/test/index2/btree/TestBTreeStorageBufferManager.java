@@ -23,13 +23,23 @@ package org.zoodb.test.index2.btree;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.lang.ref.WeakReference;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -40,7 +50,14 @@ import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.btree.BTree;
 import org.zoodb.internal.server.index.btree.BTreeBufferManager;
 import org.zoodb.internal.server.index.btree.BTreeIterator;
+import org.zoodb.internal.server.index.btree.BTreeNode;
+import org.zoodb.internal.server.index.btree.BTreePageTable;
+import org.zoodb.internal.server.index.btree.BTreePageTable.PageState;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
+import org.zoodb.internal.server.index.btree.CompressedPageCache;
+import org.zoodb.internal.server.index.btree.LZPageCodec;
+import org.zoodb.internal.server.index.btree.PageImageArena;
+import org.zoodb.internal.server.index.btree.PageCodec;
 import org.zoodb.internal.server.index.btree.PagedBTree;
 import org.zoodb.internal.server.index.btree.PagedBTreeNode;
 import org.zoodb.internal.server.index.btree.PagedBTreeNodeFactory;
@@ -119,11 +136,13 @@ public class TestBTreeStorageBufferManager {
         pageSize = 243;
         node = testComputeSizeHelper(pageSize);
         assertTrue("We want to test here if it does not fit into the page", node.computeSize() == pageSize+1);
+        int pageCount = storage.statsGetPageCount();
         try {
 	        node.getBufferManager().write((PagedBTreeNode) node, io.createWriter(false));
 	        fail("Putting too many elements in node should result in exception.");
         } catch(BufferOverflowException e) {
-        	// empty
+        	// no page is allocated for the node
+        	assertEquals(pageCount, storage.statsGetPageCount());
         }
     }
 
@@ -661,7 +680,529 @@ public class TestBTreeStorageBufferManager {
 			assertTrue(storage.debugIsPageIdInFreeList(pageId));
 		}
 	}
-	
+
+	@Test
+	public void testPinnedInnerNodes() {
+		int numEntries = 10000;
+		// small pages for a tree with several inner levels
+		StorageRootInMemory smallStorage = new StorageRootInMemory(512);
+		BTreeStorageBufferManager bufferManager1 = new BTreeStorageBufferManager(
+				smallStorage.createChannel(), true);
+		BTreeFactory factory = new BTreeFactory(bufferManager1, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		IOResourceProvider smallIo = smallStorage.createChannel();
+		tree.write(smallIo.createWriter(false));
+		int rootPageId = tree.getRoot().getPageId();
+
+		BTreeStorageBufferManager bufferManager2 = new BTreeStorageBufferManager(
+				smallStorage.createChannel(), true);
+		bufferManager2.setMaxCleanBufferElements(10);
+		bufferManager2.setMaxPinnedInnerNodes(1000);
+		UniquePagedBTreeNode root = (UniquePagedBTreeNode) bufferManager2.read(rootPageId);
+		root.setIsRoot(true);
+		UniquePagedBTree tree2 = new UniquePagedBTree(root, 512, bufferManager2);
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree2.search(entry.getKey()));
+		}
+
+		// after the first pass, only leaves have to be read
+		int nReads = bufferManager2.getStatNReadPages();
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree2.search(entry.getKey()));
+		}
+		assertTrue(bufferManager2.getStatNReadPages() - nReads <= numEntries);
+
+		int nInner = 0;
+		BTreeIterator it = new BTreeIterator(tree2);
+		while (it.hasNext()) {
+			PagedBTreeNode node = (PagedBTreeNode) it.next();
+			if (!node.isLeaf()) {
+				nInner++;
+				assertTrue(bufferManager2.getPinnedBuffer().containsKey(node.getPageId()));
+			}
+		}
+		assertTrue(nInner > 1);
+		assertEquals(nInner, bufferManager2.getPinnedBuffer().size());
+
+		// dirty nodes are unpinned until they are written
+		LLEntry first = entries.get(0);
+		tree2.delete(first.getKey());
+		assertFalse(bufferManager2.getPinnedBuffer().containsKey(root.getPageId()));
+		tree2.write(smallIo.createWriter(false));
+		assertTrue(bufferManager2.getPinnedBuffer().containsKey(root.getPageId()));
+
+		bufferManager2.setMaxPinnedInnerNodes(0);
+		assertEquals(0, bufferManager2.getPinnedBuffer().size());
+		for (LLEntry entry : entries.subList(1, numEntries)) {
+			assertEquals(Long.valueOf(entry.getValue()), tree2.search(entry.getKey()));
+		}
+		assertEquals(0, bufferManager2.getPinnedBuffer().size());
+	}
+
+	@Test
+	public void testPageTable() {
+		BTreePageTable table = new BTreePageTable(4);
+		Map<Integer, PagedBTreeNode> expectedNodes = new HashMap<>();
+		Map<Integer, PageState> expectedStates = new HashMap<>();
+		PageState[] states = PageState.values();
+		Random random = new Random(42);
+		for (int i = 0; i < 20000; i++) {
+			int pageId = random.nextInt(2000) - 1000;
+			PageState state = states[random.nextInt(states.length)];
+			switch (random.nextInt(4)) {
+			case 0:
+				PagedBTreeNode node = new UniquePagedBTreeNode(bufferManager, pageSize, true, false, pageId);
+				table.put(pageId, node, state);
+				expectedNodes.put(pageId, node);
+				expectedStates.put(pageId, state);
+				break;
+			case 1:
+				if (expectedNodes.containsKey(pageId)) {
+					// change of the state
+					table.put(pageId, expectedNodes.get(pageId), state);
+					expectedStates.put(pageId, state);
+				}
+				break;
+			case 2:
+				assertSame(expectedNodes.remove(pageId), table.remove(pageId));
+				expectedStates.remove(pageId);
+				break;
+			default:
+				assertSame(expectedNodes.get(pageId), table.get(pageId));
+				assertEquals(expectedStates.get(pageId) == state, table.contains(pageId, state));
+			}
+		}
+		for (PageState state : states) {
+			List<PagedBTreeNode> values = table.values(state);
+			assertEquals(Collections.frequency(expectedStates.values(), state), values.size());
+			assertEquals(values.size(), table.size(state));
+			for (PagedBTreeNode node : values) {
+				assertEquals(state, expectedStates.get(node.getPageId()));
+			}
+		}
+
+		AtomicInteger sharedCleanSize = new AtomicInteger(5);
+		table.setSharedCleanSize(sharedCleanSize);
+		assertEquals(5 + table.size(PageState.CLEAN), sharedCleanSize.get());
+		List<PagedBTreeNode> some = table.removeSome(PageState.CLEAN, 10);
+		assertEquals(10, some.size());
+		for (PagedBTreeNode node : some) {
+			assertEquals(PageState.CLEAN, expectedStates.remove(node.getPageId()));
+			expectedNodes.remove(node.getPageId());
+			assertNull(table.get(node.getPageId()));
+		}
+		assertEquals(5 + table.size(PageState.CLEAN), sharedCleanSize.get());
+
+		List<PagedBTreeNode> clean = table.removeAll(PageState.CLEAN);
+		assertEquals(5, sharedCleanSize.get());
+		table.setSharedCleanSize(null);
+		for (PagedBTreeNode node : clean) {
+			assertEquals(PageState.CLEAN, expectedStates.remove(node.getPageId()));
+			expectedNodes.remove(node.getPageId());
+		}
+		assertEquals(0, table.size(PageState.CLEAN));
+		for (Map.Entry<Integer, PagedBTreeNode> e : expectedNodes.entrySet()) {
+			assertSame(e.getValue(), table.get(e.getKey()));
+		}
+		table.clear();
+		assertEquals(0, table.size(PageState.DIRTY));
+		assertEquals(0, table.toMap().size());
+	}
+
+	@Test
+	public void testConcurrentReads() throws InterruptedException {
+		int numEntries = 10000;
+		int numThreads = 4;
+		StorageRootInMemory smallStorage = new StorageRootInMemory(512);
+		BTreeStorageBufferManager bufferManager1 = new BTreeStorageBufferManager(
+				smallStorage.createChannel(), true);
+		UniquePagedBTree tree = (UniquePagedBTree) new BTreeFactory(bufferManager1, true).getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries, 42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(smallStorage.createChannel().createWriter(false));
+		int rootPageId = tree.getRoot().getPageId();
+
+		// a small buffer, so that nodes are evicted while they are read
+		BTreeStorageBufferManager bufferManager2 = new BTreeStorageBufferManager(
+				smallStorage.createChannel(), true);
+		bufferManager2.setMaxCleanBufferElements(20);
+		UniquePagedBTreeNode root = (UniquePagedBTreeNode) bufferManager2.read(rootPageId);
+		root.setIsRoot(true);
+		UniquePagedBTree tree2 = new UniquePagedBTree(root, 512, bufferManager2);
+
+		List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			List<LLEntry> shuffled = new ArrayList<>(entries);
+			Collections.shuffle(shuffled, new Random(t));
+			threads[t] = new Thread(() -> {
+				try {
+					for (LLEntry entry : shuffled) {
+						assertEquals(entry.getValue(), tree2.search(entry.getKey(), -1));
+					}
+				} catch (Throwable e) {
+					failures.add(e);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(Collections.emptyList(), failures);
+		assertTrue(bufferManager2.getCleanBuffer().size() <= 20 + numThreads);
+
+		// temporary page ids are unique
+		for (int t = 0; t < numThreads; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 1000; i++) {
+					new UniquePagedBTreeNode(bufferManager2, 512, true, false);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(numThreads * 1000, bufferManager2.getDirtyBuffer().size());
+		for (int pageId = -1; pageId >= -numThreads * 1000; pageId--) {
+			assertTrue(bufferManager2.getDirtyBuffer().containsKey(pageId));
+		}
+	}
+
+	@Test
+	public void testSwizzledChildren() {
+		BTree tree = getTestTreeWithThreeLayers(bufferManager);
+		int pageId = bufferManager.write((PagedBTreeNode) tree.getRoot(), out);
+
+		BTreeStorageBufferManager bufferManager2 = new BTreeStorageBufferManager(
+				storage.createChannel(), true);
+		PagedBTreeNode root = bufferManager2.read(pageId);
+		PagedBTreeNode child = (PagedBTreeNode) root.getChild(0);
+		assertSame(child, root.getChildren()[0]);
+		assertSame(child, root.getChild(0));
+
+		// evicting the child replaces the direct reference
+		bufferManager2.setMaxCleanBufferElements(bufferManager2.getCleanBuffer().size());
+		root.getChild(1);
+		assertFalse(bufferManager2.getCleanBuffer().containsKey(child.getPageId()));
+		assertTrue(root.getChildren()[0] instanceof WeakReference);
+		assertSame(root.getChild(1), root.getChildren()[1]);
+
+		// the evicted child is not read again while it is in use
+		int nReads = bufferManager2.getStatNReadPages();
+		assertSame(child, root.getChild(0));
+		assertEquals(nReads, bufferManager2.getStatNReadPages());
+	}
+
+	@Test
+	public void testEvictedNodesAreReleased() {
+		int numEntries = 10000;
+		// small pages for a tree with several inner levels
+		StorageRootInMemory smallStorage = new StorageRootInMemory(512);
+		IOResourceProvider smallIo = smallStorage.createChannel();
+		BTreeStorageBufferManager bufferManager1 = new BTreeStorageBufferManager(smallIo, true);
+		bufferManager1.setMaxPinnedInnerNodes(1000);
+		UniquePagedBTree tree = (UniquePagedBTree) new BTreeFactory(bufferManager1, true).getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries, 42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		for (LLEntry entry : entries.subList(0, numEntries / 2)) {
+			tree.delete(entry.getKey());
+		}
+		tree.write(smallIo.createWriter(false));
+
+		List<WeakReference<BTreeNode>> leaves = weakLeaves(tree);
+		assertTrue(leaves.size() > 10);
+
+		// writing another node evicts all clean leaves, the inner nodes stay pinned
+		bufferManager1.setMaxCleanBufferElements(bufferManager1.getCleanBuffer().size());
+		UniquePagedBTree tree2 = (UniquePagedBTree) new BTreeFactory(bufferManager1, true).getTree();
+		tree2.insert(1, 1);
+		tree2.write(smallIo.createWriter(false));
+		assertEquals(1, bufferManager1.getCleanBuffer().size());
+
+		int numReachable = leaves.size();
+		for (int i = 0; i < 20 && numReachable > 0; i++) {
+			System.gc();
+			numReachable = 0;
+			for (WeakReference<BTreeNode> ref : leaves) {
+				if (ref.get() != null) {
+					numReachable++;
+				}
+			}
+		}
+		assertEquals(0, numReachable);
+		for (LLEntry entry : entries.subList(numEntries / 2, numEntries)) {
+			assertEquals(Long.valueOf(entry.getValue()), tree.search(entry.getKey()));
+		}
+	}
+
+	private static List<WeakReference<BTreeNode>> weakLeaves(BTree tree) {
+		List<WeakReference<BTreeNode>> leaves = new ArrayList<>();
+		BTreeIterator it = new BTreeIterator(tree);
+		while (it.hasNext()) {
+			BTreeNode node = it.next();
+			if (node.isLeaf()) {
+				leaves.add(new WeakReference<>(node));
+			}
+		}
+		return leaves;
+	}
+
+	@Test
+	public void testPageImageArena() {
+		int numEntries = 10000;
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		int rootPageId = tree.getRoot().getPageId();
+
+		BTreeStorageBufferManager bufferManager2 = new BTreeStorageBufferManager(
+				storage.createChannel(), true);
+		bufferManager2.setMaxCleanBufferElements(10);
+		bufferManager2.setPageImageArenaSize(1000);
+		UniquePagedBTreeNode root = (UniquePagedBTreeNode) bufferManager2.read(rootPageId);
+		root.setIsRoot(true);
+		UniquePagedBTree tree2 = new UniquePagedBTree(root, pageSize, bufferManager2);
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree2.search(entry.getKey()));
+		}
+		List<Integer> pageIds = getPageIds(tree2);
+		assertEquals(pageIds.size(), bufferManager2.getPageImageArena().size());
+
+		// evicted nodes are decoded from the arena
+		int nReads = bufferManager2.getStatNReadPages();
+		int nImageReads = bufferManager2.getStatNPageImageReads();
+		for (int pageId : pageIds) {
+			assertEquals(bufferManager.read(pageId), bufferManager2.readNodeFromStorage(pageId));
+		}
+		assertEquals(nReads, bufferManager2.getStatNReadPages());
+		assertTrue(bufferManager2.getStatNPageImageReads() >= nImageReads + pageIds.size());
+
+		// written pages replace their images
+		for (LLEntry entry : entries.subList(0, numEntries / 2)) {
+			tree2.delete(entry.getKey());
+		}
+		tree2.write(io.createWriter(false));
+		for (LLEntry entry : entries.subList(0, numEntries / 2)) {
+			assertEquals(null, tree2.search(entry.getKey()));
+		}
+		for (LLEntry entry : entries.subList(numEntries / 2, numEntries)) {
+			assertEquals(Long.valueOf(entry.getValue()), tree2.search(entry.getKey()));
+		}
+
+		// a full arena replaces old images
+		bufferManager2.setPageImageArenaSize(3);
+		for (int i = 0; i < 2; i++) {
+			BTreeIterator it = new BTreeIterator(tree2);
+			while (it.hasNext()) {
+				PagedBTreeNode node = (PagedBTreeNode) it.next();
+				assertEquals(node, bufferManager2.readNodeFromStorage(node.getPageId()));
+			}
+		}
+		assertEquals(3, bufferManager2.getPageImageArena().size());
+
+		// pinned slots keep their image and are not re-used
+		PageImageArena arena = new PageImageArena(8, 2);
+		arena.put(1, new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, 3);
+		assertEquals(3, arena.get(1).length);
+		int slot = arena.pin(1);
+		arena.put(1, new byte[] {9, 9}, 2);
+		arena.put(2, new byte[] {2}, 1);
+		arena.put(3, new byte[] {3}, 1);
+		assertEquals(1, arena.size());
+		assertNull(arena.get(1));
+		ByteBuffer image = arena.image(slot);
+		assertEquals(3, image.remaining());
+		assertEquals(1, image.get(0));
+		assertTrue(image.isReadOnly());
+		arena.unpin(slot);
+		assertEquals(-1, arena.pin(4));
+		arena.put(4, new byte[] {4}, 1);
+		assertEquals(2, arena.size());
+		assertNotNull(arena.get(4));
+	}
+
+	@Test
+	public void testCompressedPageCache() {
+		int numEntries = 10000;
+		BTreeFactory factory = new BTreeFactory(bufferManager, true);
+		UniquePagedBTree tree = (UniquePagedBTree) factory.getTree();
+		List<LLEntry> entries = BTreeTestUtils.randomUniqueEntries(numEntries,
+				42);
+		for (LLEntry entry : entries) {
+			tree.insert(entry.getKey(), entry.getValue());
+		}
+		tree.write(out);
+		int rootPageId = tree.getRoot().getPageId();
+
+		BTreeStorageBufferManager bufferManager2 = new BTreeStorageBufferManager(
+				storage.createChannel(), true);
+		bufferManager2.setMaxCleanBufferElements(10);
+		bufferManager2.setCompressedPageCacheSize(1 << 20);
+		UniquePagedBTreeNode root = (UniquePagedBTreeNode) bufferManager2.read(rootPageId);
+		root.setIsRoot(true);
+		UniquePagedBTree tree2 = new UniquePagedBTree(root, pageSize, bufferManager2);
+		for (LLEntry entry : entries) {
+			assertEquals(Long.valueOf(entry.getValue()), tree2.search(entry.getKey()));
+		}
+		CompressedPageCache cache = bufferManager2.getCompressedPageCache();
+		assertTrue(cache.size() > 0);
+		assertTrue(cache.getNumBytes() < (long) cache.size() * pageSize);
+
+		// evicted nodes are decoded from the cache
+		List<Integer> cachedPageIds = new ArrayList<>();
+		for (int pageId : getPageIds(tree2)) {
+			if (cache.contains(pageId)) {
+				cachedPageIds.add(pageId);
+			}
+		}
+		assertTrue(cachedPageIds.size() > 0);
+		int nCacheReads = bufferManager2.getStatNCompressedPageReads();
+		for (int pageId : cachedPageIds) {
+			assertEquals(bufferManager.read(pageId), bufferManager2.readNodeFromStorage(pageId));
+		}
+		assertTrue(bufferManager2.getStatNCompressedPageReads() >= nCacheReads + cachedPageIds.size());
+
+		// written pages are removed from the cache
+		for (LLEntry entry : entries.subList(0, numEntries / 2)) {
+			tree2.delete(entry.getKey());
+		}
+		tree2.write(io.createWriter(false));
+		for (LLEntry entry : entries.subList(0, numEntries / 2)) {
+			assertEquals(null, tree2.search(entry.getKey()));
+		}
+		for (LLEntry entry : entries.subList(numEntries / 2, numEntries)) {
+			assertEquals(Long.valueOf(entry.getValue()), tree2.search(entry.getKey()));
+		}
+
+		// a full cache drops the least recently used pages
+		bufferManager2.setCompressedPageCacheSize(2 * pageSize);
+		for (int pageId : getPageIds(tree2)) {
+			bufferManager2.readNodeFromStorage(pageId);
+		}
+		cache = bufferManager2.getCompressedPageCache();
+		assertTrue(cache.size() > 0);
+		assertTrue(cache.getNumBytes() <= 2 * pageSize);
+	}
+
+	@Test
+	public void testLeafPageCompression() {
+		int numEntries = 20000;
+		BTreeStorageBufferManager bufferManager2 = new BTreeStorageBufferManager(
+				storage.createChannel(), true);
+		bufferManager2.setLeafPageCodec(LZPageCodec.INSTANCE);
+		UniquePagedBTree tree = new UniquePagedBTree(pageSize, bufferManager);
+		UniquePagedBTree tree2 = new UniquePagedBTree(pageSize, bufferManager2);
+		// dense keys with values that share their high bytes
+		List<Long> keys = new ArrayList<>();
+		for (int i = 0; i < numEntries; i++) {
+			keys.add(i * 3L);
+		}
+		Random random = new Random(42);
+		Collections.shuffle(keys, random);
+		Map<Long, Long> entries = new HashMap<>();
+		for (long key : keys) {
+			long value = 0x7A3B000000000000L | random.nextInt(16);
+			tree.insert(key, value);
+			tree2.insert(key, value);
+			entries.put(key, value);
+		}
+		tree.write(out);
+		tree2.write(io.createWriter(false));
+
+		// compressed leaves are fuller
+		assertTrue(getPageIds(tree2).size() * 3 < getPageIds(tree).size() * 2);
+
+		BTreeStorageBufferManager bufferManager3 = new BTreeStorageBufferManager(
+				storage.createChannel(), true);
+		bufferManager3.setLeafPageCodec(LZPageCodec.INSTANCE);
+		UniquePagedBTreeNode root = (UniquePagedBTreeNode) bufferManager3.read(
+				tree2.getRoot().getPageId());
+		root.setIsRoot(true);
+		UniquePagedBTree tree3 = new UniquePagedBTree(root, pageSize, bufferManager3);
+		for (Map.Entry<Long, Long> entry : entries.entrySet()) {
+			assertEquals(entry.getValue(), tree3.search(entry.getKey()));
+		}
+		for (int pageId : getPageIds(tree2)) {
+			assertEquals(bufferManager2.read(pageId), bufferManager3.read(pageId));
+		}
+
+		// compressed leaves are written again after deletes
+		for (long key = 0; key < numEntries * 3; key += 6) {
+			tree3.delete(key);
+			entries.remove(key);
+		}
+		tree3.write(io.createWriter(false));
+		for (long key = 0; key < numEntries * 3; key += 3) {
+			assertEquals(entries.get(key), tree3.search(key));
+		}
+
+		// the pages record their codec
+		BTreeStorageBufferManager bufferManager4 = new BTreeStorageBufferManager(
+				storage.createChannel(), true);
+		for (int pageId : getPageIds(tree3)) {
+			assertEquals(bufferManager3.read(pageId), bufferManager4.read(pageId));
+		}
+	}
+
+	@Test
+	public void testLeafPageCompressionCustomCodec() {
+		PageCodec codec = new PageCodec() {
+			@Override
+			public byte getId() {
+				return 42;
+			}
+			@Override
+			public int maxCompressedLength(int length) {
+				return LZPageCodec.INSTANCE.maxCompressedLength(length);
+			}
+			@Override
+			public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+				return LZPageCodec.INSTANCE.compress(src, srcOff, srcLen, dst, dstOff);
+			}
+			@Override
+			public int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+				return LZPageCodec.INSTANCE.decompress(src, srcOff, srcLen, dst, dstOff);
+			}
+		};
+		BTreeStorageBufferManager bufferManager2 = new BTreeStorageBufferManager(
+				storage.createChannel(), true);
+		bufferManager2.setLeafPageCodec(codec);
+		UniquePagedBTree tree = new UniquePagedBTree(pageSize, bufferManager2);
+		for (int i = 0; i < 5000; i++) {
+			tree.insert(i, 0x7A3B000000000000L | (i % 16));
+		}
+		tree.write(io.createWriter(false));
+		int leafPageId = getPageIds(tree).get(1);
+
+		// pages of custom codecs can not be read without the codec
+		BTreeStorageBufferManager bufferManager3 = new BTreeStorageBufferManager(
+				storage.createChannel(), true);
+		try {
+			bufferManager3.read(leafPageId);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		bufferManager3.setLeafPageCodec(codec);
+		assertEquals(bufferManager2.read(leafPageId), bufferManager3.read(leafPageId));
+	}
+
     private PagedBTreeNode getTestEmptyLeaf(BTreeStorageBufferManager bufferManager) {
 		PagedBTreeNode leaf = new UniquePagedBTreeNode(bufferManager,
 				bufferManager.getPageSize(), true, true);
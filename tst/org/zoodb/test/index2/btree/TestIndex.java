@@ -23,13 +23,23 @@ package org.zoodb.test.index2.btree;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Test;
 import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
@@ -44,13 +54,22 @@ import org.zoodb.internal.server.index.LongLongIndex;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.LongLongIndex.LongLongIterator;
 import org.zoodb.internal.server.index.LongLongIndex.LongLongUIndex;
+import org.zoodb.internal.server.index.btree.BTreeBufferPool;
+import org.zoodb.internal.server.index.btree.BTreeEvents;
 import org.zoodb.internal.server.index.btree.BTreeIterator;
+import org.zoodb.internal.server.index.btree.BTreeMetrics;
+import org.zoodb.internal.server.index.btree.BTreeNode;
+import org.zoodb.internal.server.index.btree.BTreeShape;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
 import org.zoodb.internal.server.index.btree.PagedBTreeNode;
 import org.zoodb.internal.util.DBLogger;
 import org.zoodb.test.index2.performance.PerformanceTest;
 import org.zoodb.tools.ZooConfig;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 public class TestIndex {
 
 	private IOResourceProvider createPageAccessFile() {
@@ -121,6 +140,564 @@ public class TestIndex {
 		findAll(ind3, entries);
 	}
 	
+	@Test
+	public void testWriteReadIntKeys() {
+		IOResourceProvider file = createPageAccessFile();
+		int keySize = 4;
+		int valSize = 2;
+		LongLongUIndex ind1 = 
+				IndexFactory.createUniqueIndex(PAGE_TYPE.GENERIC_INDEX, file, keySize, valSize);
+
+		Random rnd = new Random(42);
+		ArrayList<LLEntry> entries = new ArrayList<>();
+		for (int i = -5000; i < 5000; i++) {
+			entries.add(new LLEntry(i * 1000 + rnd.nextInt(1000), (short) rnd.nextInt()));
+		}
+		entries.add(new LLEntry(Integer.MIN_VALUE, 1));
+		entries.add(new LLEntry(Integer.MAX_VALUE, 2));
+		PerformanceTest.insertList(ind1, entries);
+		int rootPageId = file.writeIndex(ind1::write);
+		
+		//the root spans negative and positive keys, their upper word is not stored
+		LongLongUIndex ind2 = IndexFactory.loadUniqueIndex(
+				PAGE_TYPE.GENERIC_INDEX, file, rootPageId, keySize, valSize);
+		PagedBTreeNode root = ((BTreeIndexUnique) ind2).getTree().getRoot();
+		assertTrue(root.getPrefix() >= 32);
+		findAll(ind2, entries);
+		
+		List<LLEntry> deleteEntries = entries.subList(0, entries.size() / 2);
+		PerformanceTest.removeList(ind2, deleteEntries);
+		rootPageId = file.writeIndex(ind2::write);
+		LongLongUIndex ind3 = IndexFactory.loadUniqueIndex(
+				PAGE_TYPE.GENERIC_INDEX, file, rootPageId, keySize, valSize);
+		findAll(ind3, entries.subList(entries.size() / 2, entries.size()));
+	}
+	
+	@Test
+	public void testIntKeysOutOfRange() {
+		IOResourceProvider file = createPageAccessFile();
+		LongLongUIndex ind1 = 
+				IndexFactory.createUniqueIndex(PAGE_TYPE.GENERIC_INDEX, file, 4, 8);
+		ind1.insertLong(Integer.MAX_VALUE, 1);
+		for (long key : new long[] {Integer.MAX_VALUE + 1L, Integer.MIN_VALUE - 1L}) {
+			try {
+				ind1.insertLong(key, 2);
+				fail();
+			} catch (IllegalArgumentException e) {
+				//good, the key would be truncated when written
+			}
+			try {
+				ind1.insertLongIfNotSet(key, 2);
+				fail();
+			} catch (IllegalArgumentException e) {
+				//good
+			}
+		}
+		assertEquals(1, ind1.size());
+		
+		int rootPageId = file.writeIndex(ind1::write);
+		LongLongUIndex ind2 = IndexFactory.loadUniqueIndex(
+				PAGE_TYPE.GENERIC_INDEX, file, rootPageId, 4, 8);
+		assertEquals(1, ind2.findValue(Integer.MAX_VALUE).getValue());
+		assertEquals(null, ind2.findValue(Integer.MAX_VALUE + 1L));
+	}
+	
+	@Test
+	public void testLoadSizedIndexWithoutRecordedSizes() {
+		//indexes that were created without sizes store 8 byte keys and values
+		IOResourceProvider file = createPageAccessFile();
+		LongLongUIndex ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ArrayList<LLEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 20000; i++) {
+			entries.add(new LLEntry(i * 3L, (1L << 40) + i));
+		}
+		PerformanceTest.insertList(ind1, entries);
+		int rootPageId = file.writeIndex(ind1::write);
+		
+		LongLongUIndex ind2 = IndexFactory.loadUniqueIndex(
+				PAGE_TYPE.GENERIC_INDEX, file, rootPageId, 4, 2);
+		findAll(ind2, entries);
+		//values that need 8 bytes can still be inserted
+		ind2.insertLong(-1, Long.MAX_VALUE);
+		rootPageId = file.writeIndex(ind2::write);
+		LongLongUIndex ind3 = IndexFactory.loadUniqueIndex(
+				PAGE_TYPE.GENERIC_INDEX, file, rootPageId, 4, 2);
+		findAll(ind3, entries);
+		assertEquals(Long.MAX_VALUE, ind3.findValue(-1).getValue());
+	}
+	
+	@Test
+	public void testValuesOutOfRange() {
+		IOResourceProvider file = createPageAccessFile();
+		LongLongUIndex ind1 = 
+				IndexFactory.createUniqueIndex(PAGE_TYPE.GENERIC_INDEX, file, 8, 2);
+		ind1.insertLong(1, Short.MIN_VALUE);
+		ind1.insertLong(2, Short.MAX_VALUE);
+		for (long value : new long[] {Short.MAX_VALUE + 1L, Short.MIN_VALUE - 1L}) {
+			try {
+				ind1.insertLong(3, value);
+				fail();
+			} catch (IllegalArgumentException e) {
+				//good, the value would be truncated when written
+			}
+		}
+		assertEquals(null, ind1.findValue(3));
+		
+		int rootPageId = file.writeIndex(ind1::write);
+		LongLongUIndex ind2 = IndexFactory.loadUniqueIndex(
+				PAGE_TYPE.GENERIC_INDEX, file, rootPageId, 8, 8);
+		assertEquals(Short.MIN_VALUE, ind2.findValue(1).getValue());
+		assertEquals(Short.MAX_VALUE, ind2.findValue(2).getValue());
+		try {
+			ind2.insertLong(3, Integer.MAX_VALUE);
+			fail();
+		} catch (IllegalArgumentException e) {
+			//good, the recorded size is used
+		}
+	}
+	
+	@Test
+	public void testWriteReadValuePrefixSharing() {
+		final int MAX = 100000;
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexUnique ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		BTreeIndexUnique ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ind2.setLeafValuePrefixSharing(true);
+
+		ArrayList<LLEntry> entries = new ArrayList<>();
+		for (int i = 0; i < MAX; i++) {
+			entries.add(new LLEntry(i, (1L << 40) + 3*i));
+		}
+		PerformanceTest.insertList(ind1, entries);
+		PerformanceTest.insertList(ind2, entries);
+		assertTrue(ind2.statsGetLeavesN() < ind1.statsGetLeavesN());
+		
+		int rootPageId = file.writeIndex(ind2::write);
+		BTreeIndexUnique ind3 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		ind3.setLeafValuePrefixSharing(true);
+		findAll(ind3, entries);
+		
+		//pages with prefix shared values can also be read without value prefix sharing
+		BTreeIndexUnique ind4 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		findAll(ind4, entries);
+		
+		List<LLEntry> deleteEntries = entries.subList(0, MAX/2);
+		PerformanceTest.removeList(ind3, deleteEntries);
+		rootPageId = file.writeIndex(ind3::write);
+		BTreeIndexUnique ind5 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		findAll(ind5, entries.subList(MAX/2, MAX));
+	}
+	
+	@Test
+	public void testWriteReadDenseKeys() {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexUnique ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		BTreeIndexUnique ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ind1.setLeafValuePrefixSharing(true);
+		ind2.setLeafValuePrefixSharing(true);
+		ind2.setLeafDenseKeys(true);
+
+		//runs of consecutive OIDs with a few gaps
+		Random rnd = new Random(42);
+		ArrayList<LLEntry> entries = new ArrayList<>();
+		long oid = 1000;
+		for (int i = 0; i < 100000; i++) {
+			oid += rnd.nextInt(100) == 0 ? 1 + rnd.nextInt(50) : 1;
+			entries.add(new LLEntry(oid, 1000 + i / 20));
+		}
+		Collections.shuffle(entries, rnd);
+		PerformanceTest.insertList(ind1, entries);
+		PerformanceTest.insertList(ind2, entries);
+		assertTrue(3 * ind2.statsGetLeavesN() < 2 * ind1.statsGetLeavesN());
+
+		int rootPageId = file.writeIndex(ind2::write);
+		BTreeIndexUnique ind3 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		ind3.setLeafValuePrefixSharing(true);
+		ind3.setLeafDenseKeys(true);
+		findAll(ind3, entries);
+		assertEquals(entries.size(), countEntries(ind3));
+
+		List<LLEntry> deleteEntries = entries.subList(0, entries.size() / 2);
+		PerformanceTest.removeList(ind3, deleteEntries);
+		rootPageId = file.writeIndex(ind3::write);
+
+		//dense keys can also be read without the setting
+		BTreeIndexUnique ind4 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		List<LLEntry> remaining = entries.subList(entries.size() / 2, entries.size());
+		findAll(ind4, remaining);
+		assertEquals(remaining.size(), countEntries(ind4));
+	}
+	
+	@Test
+	public void testMetrics() {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeMetrics metrics = new BTreeMetrics();
+		BTreeIndexUnique ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ind1.setMetrics(metrics);
+
+		ArrayList<LLEntry> entries = PerformanceTest.randomEntriesUnique(20000, new Random(42));
+		PerformanceTest.insertList(ind1, entries);
+		assertEquals(entries.size(), metrics.getInsertCount());
+		assertTrue(metrics.getSplits() > 0);
+		assertTrue(metrics.getRootSplits() > 0);
+		assertTrue(metrics.getInsertP99Nanos() >= metrics.getInsertP50Nanos());
+
+		int rootPageId = file.writeIndex(ind1::write);
+		assertEquals(1, metrics.getCommits());
+		assertTrue(metrics.getLastCommitBytes() > 0);
+		assertEquals(ind1.statsGetWrittenPagesN(), metrics.getEncodedPages());
+
+		BTreeIndexUnique ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		ind2.setMetrics(metrics);
+		ind2.getBufferManager().setMaxCleanBufferElements(10);
+		for (LLEntry e : entries) {
+			assertEquals(e.getValue(), ind2.findValueNoFail(e.getKey(), -1));
+		}
+		assertEquals(entries.size(), metrics.getLookupCount());
+		assertTrue(metrics.getLeafMisses() > 0);
+		assertTrue(metrics.getLeafHits() > 0);
+		assertTrue(metrics.getDecodedPages() > 0);
+		assertTrue(metrics.getEvictions() > 0);
+
+		PerformanceTest.removeList(ind2, entries.subList(0, entries.size() / 2));
+		assertEquals(entries.size() / 2, metrics.getDeleteCount());
+		assertTrue(metrics.getMerges() + metrics.getRedistributions() > 0);
+
+		metrics.register("TestIndex.testMetrics");
+		try {
+			assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(
+					metrics.getObjectName()));
+		} finally {
+			metrics.unregister();
+		}
+		metrics.reset();
+		assertEquals(0, metrics.getSplits());
+		assertEquals(0, metrics.getLookupCount());
+	}
+	
+	@Test
+	public void testFlightRecorderEvents() throws IOException {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexUnique ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ArrayList<LLEntry> entries = PerformanceTest.randomEntriesUnique(20000, new Random(42));
+
+		long threshold = BTreeEvents.getSlowOperationThreshold();
+		Path dump = Files.createTempFile("zoodb-btree", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("org.zoodb.btree.Structure");
+			recording.enable("org.zoodb.btree.PageRead");
+			recording.enable("org.zoodb.btree.PageWrite");
+			recording.enable("org.zoodb.btree.PageEvict");
+			recording.enable("org.zoodb.btree.SlowOperation");
+			BTreeEvents.setSlowOperationThreshold(0);
+			recording.start();
+
+			PerformanceTest.insertList(ind1, entries);
+			int rootPageId = file.writeIndex(ind1::write);
+			BTreeIndexUnique ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+			ind2.getBufferManager().setMaxCleanBufferElements(10);
+			findAll(ind2, entries.subList(0, 1000));
+			PerformanceTest.removeList(ind2, entries.subList(0, entries.size() / 2));
+
+			recording.stop();
+			recording.dump(dump);
+
+			Map<String, Integer> counts = new HashMap<>();
+			for (RecordedEvent e : RecordingFile.readAllEvents(dump)) {
+				counts.merge(e.getEventType().getName(), 1, Integer::sum);
+				if (e.getEventType().getName().equals("org.zoodb.btree.Structure")) {
+					counts.merge(e.getString("operation"), 1, Integer::sum);
+				}
+			}
+			assertTrue(counts.containsKey("org.zoodb.btree.PageRead"));
+			assertTrue(counts.containsKey("org.zoodb.btree.PageEvict"));
+			assertEquals(ind1.statsGetWrittenPagesN(), 
+					(int) counts.get("org.zoodb.btree.PageWrite"));
+			assertEquals(1000, (int) counts.get("org.zoodb.btree.SlowOperation"));
+			assertTrue(counts.containsKey(BTreeEvents.SPLIT));
+			assertTrue(counts.containsKey(BTreeEvents.ROOT_SPLIT));
+			assertTrue(counts.containsKey(BTreeEvents.MERGE));
+		} finally {
+			BTreeEvents.setSlowOperationThreshold(threshold);
+			Files.delete(dump);
+		}
+	}
+	
+	@Test
+	public void testAnalyzeShape() {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexUnique ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ArrayList<LLEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 100000; i++) {
+			entries.add(new LLEntry(1000 + i, 2 * i));
+		}
+		Collections.shuffle(entries, new Random(42));
+		PerformanceTest.insertList(ind1, entries);
+		int rootPageId = file.writeIndex(ind1::write);
+
+		BTreeIndexUnique ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		BTreeShape shape = ind2.analyzeShape();
+		assertTrue(shape.getHeight() >= 2);
+		assertEquals(1, shape.getLevels().get(0).getNumNodes());
+		assertEquals(ind1.statsGetInnerN(), shape.getLevels().stream()
+				.filter(l -> !l.isLeafLevel()).mapToInt(l -> l.getNumNodes()).sum());
+
+		BTreeShape.Level leaves = shape.getLeafLevel();
+		assertEquals(ind1.statsGetLeavesN(), leaves.getNumNodes());
+		assertEquals(entries.size(), leaves.getNumKeys());
+		assertEquals(leaves.getNumNodes(), Arrays.stream(leaves.getFillHistogram()).sum());
+		assertEquals(leaves.getNumNodes(), Arrays.stream(leaves.getPrefixHistogram()).sum());
+		assertTrue(leaves.getAverageFill() > 0.5 && leaves.getAverageFill() <= 1);
+		assertTrue(leaves.getUnderfullFraction() < 0.5);
+		//consecutive keys share most of their bits
+		assertTrue(leaves.getAverageBitsPerKey() < 16);
+		assertEquals(leaves.getNumNodes() - 1, leaves.getNumNeighbours());
+		assertTrue(leaves.getSequentialFraction() >= 0 && leaves.getSequentialFraction() <= 1);
+		assertTrue(leaves.getAveragePageDistance() >= 1);
+
+		//nodes that have not been written have no page locality
+		BTreeIndexUnique ind3 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		PerformanceTest.insertList(ind3, entries);
+		assertEquals(0, ind3.analyzeShape().getLeafLevel().getNumNeighbours());
+	}
+	
+	@Test
+	public void testWriteReadValuePrefixSharingNonUnique() {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexNonUnique ind1 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ind1.setLeafValuePrefixSharing(true);
+
+		ArrayList<LLEntry> entries = 
+				PerformanceTest.randomEntriesNonUnique(10000, 10, new Random(42));
+		PerformanceTest.insertList(ind1, entries);
+		int rootPageId = file.writeIndex(ind1::write);
+
+		BTreeIndexNonUnique ind2 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX,
+				file, rootPageId);
+		ind2.setLeafValuePrefixSharing(true);
+		findAll(ind2, entries);
+	}
+	
+	@Test
+	public void testWriteReadPostingLists() {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexNonUnique ind1 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		BTreeIndexNonUnique ind2 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ind2.setLeafPostingLists(true);
+
+		//few distinct keys with many OIDs each
+		Random rnd = new Random(42);
+		ArrayList<LLEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 100000; i++) {
+			entries.add(new LLEntry(rnd.nextInt(5), 1000000 + 2 * i));
+		}
+		Collections.shuffle(entries, rnd);
+		PerformanceTest.insertList(ind1, entries);
+		PerformanceTest.insertList(ind2, entries);
+		assertTrue(3 * ind2.statsGetLeavesN() < ind1.statsGetLeavesN());
+		//the sizes that inserts update incrementally match a full computation
+		assertSizesUpToDate(ind2.getTree().getRoot());
+
+		int rootPageId = file.writeIndex(ind2::write);
+		BTreeIndexNonUnique ind3 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX,
+				file, rootPageId);
+		ind3.setLeafPostingLists(true);
+		findAll(ind3, entries);
+		assertEquals(entries.size(), countEntries(ind3));
+
+		List<LLEntry> deleteEntries = entries.subList(0, entries.size() / 2);
+		PerformanceTest.removeList(ind3, deleteEntries);
+		assertSizesUpToDate(ind3.getTree().getRoot());
+		rootPageId = file.writeIndex(ind3::write);
+		
+		//posting lists can also be read without the setting
+		BTreeIndexNonUnique ind4 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX,
+				file, rootPageId);
+		List<LLEntry> remaining = entries.subList(entries.size() / 2, entries.size());
+		findAll(ind4, remaining);
+		assertEquals(remaining.size(), countEntries(ind4));
+	}
+	
+	private static void assertSizesUpToDate(BTreeNode node) {
+		int size = node.getCurrentSize();
+		node.recomputeSize();
+		assertEquals(node.getCurrentSize(), size);
+		if (!node.isLeaf()) {
+			for (int i = 0; i <= node.getNumKeys(); i++) {
+				assertSizesUpToDate(node.getChild(i));
+			}
+		}
+	}
+	
+	private static int countEntries(LongLongIndex index) {
+		int n = 0;
+		Iterator<LLEntry> it = index.iterator();
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		return n;
+	}
+	
+	@Test
+	public void testRemoveRange() {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexUnique ind1 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ArrayList<LLEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 100000; i++) {
+			entries.add(new LLEntry(i, 2 * i));
+		}
+		PerformanceTest.insertList(ind1, entries);
+		int rootPageId = file.writeIndex(ind1::write);
+
+		BTreeIndexUnique ind2 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		int leaves = ind1.statsGetLeavesN();
+		ind2.removeRange(1000, 89999);
+		//covered leaves are freed without reading them
+		assertTrue(ind2.getBufferManager().getStatNReadPages() < leaves / 10);
+		
+		rootPageId = file.writeIndex(ind2::write);
+		BTreeIndexUnique ind3 = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageId);
+		List<LLEntry> remaining = new ArrayList<>(entries.subList(0, 1000));
+		remaining.addAll(entries.subList(90000, entries.size()));
+		findAll(ind3, remaining);
+		assertEquals(remaining.size(), countEntries(ind3));
+	}
+	
+	@Test
+	public void testClearWithoutReadingLeaves() {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexNonUnique ind1 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ArrayList<LLEntry> entries = 
+				PerformanceTest.randomEntriesNonUnique(50000, 10, new Random(42));
+		PerformanceTest.insertList(ind1, entries);
+		int rootPageId = file.writeIndex(ind1::write);
+		int leaves = ind1.statsGetLeavesN();
+
+		BTreeIndexNonUnique ind2 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX,
+				file, rootPageId);
+		ind2.clear();
+		assertTrue(ind2.getBufferManager().getStatNReadPages() < leaves / 10);
+		//only the new root remains in memory
+		assertEquals(1, ind2.getBufferManager().getMemoryBuffer().size());
+		
+		ind2.insertLong(1, 2);
+		rootPageId = file.writeIndex(ind2::write);
+		BTreeIndexNonUnique ind3 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX,
+				file, rootPageId);
+		assertEquals(1, countEntries(ind3));
+	}
+	
+	@Test
+	public void testPrefetchDuringScan() {
+		IOResourceProvider file = createPageAccessFile();
+		BTreeIndexNonUnique ind1 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, file);
+		ArrayList<LLEntry> entries = 
+				PerformanceTest.randomEntriesNonUnique(50000, 10, new Random(43));
+		PerformanceTest.insertList(ind1, entries);
+		int rootPageId = file.writeIndex(ind1::write);
+		int leaves = ind1.statsGetLeavesN();
+
+		BTreeIndexNonUnique ind2 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX,
+				file, rootPageId);
+		ind2.getBufferManager().setPrefetchDepth(8);
+		List<LLEntry> sorted = new ArrayList<>(entries);
+		sorted.sort((e1, e2) -> e1.getKey() != e2.getKey() 
+				? Long.compare(e1.getKey(), e2.getKey()) : Long.compare(e1.getValue(), e2.getValue()));
+		LongLongIterator<LLEntry> it = ind2.iterator();
+		for (LLEntry e : sorted) {
+			LLEntry e2 = it.next();
+			assertEquals(e.getKey(), e2.getKey());
+			assertEquals(e.getValue(), e2.getValue());
+		}
+		assertFalse(it.hasNext());
+		assertTrue(ind2.getBufferManager().getStatNPrefetchedPages() > leaves / 2);
+		//the index can still be used after close()
+		ind2.getBufferManager().close();
+		assertEquals(entries.size(), countEntries(ind2));
+		ind2.getBufferManager().close();
+
+		//descending scans read ahead as well, here with a shared executor
+		BTreeIndexNonUnique ind3 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX,
+				file, rootPageId);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		ind3.getBufferManager().setPrefetchExecutor(executor);
+		ind3.getBufferManager().setPrefetchDepth(8);
+		it = ind3.descendingIterator();
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		assertEquals(entries.size(), n);
+		assertTrue(ind3.getBufferManager().getStatNPrefetchedPages() > leaves / 2);
+		ind3.getBufferManager().setPrefetchExecutor(null);
+		executor.shutdown();
+
+		//modifications after a read-ahead
+		ind3.insertLong(-1, -1);
+		ind3.removeRange(0, 1000);
+		rootPageId = file.writeIndex(ind3::write);
+		BTreeIndexNonUnique ind4 = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX,
+				file, rootPageId);
+		ind4.getBufferManager().setPrefetchDepth(4);
+		long expected = 1;
+		for (LLEntry e : entries) {
+			if (e.getKey() < 0 || e.getKey() > 1000) {
+				expected++;
+			}
+		}
+		assertEquals(expected, countEntries(ind4));
+	}
+
+	@Test
+	public void testSharedBufferPool() {
+		IOResourceProvider file = createPageAccessFile();
+		int[] rootPageIds = new int[3];
+		List<List<LLEntry>> entries = new ArrayList<>();
+		for (int i = 0; i < rootPageIds.length; i++) {
+			BTreeIndexUnique ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file);
+			entries.add(PerformanceTest.randomEntriesUnique(20000, new Random(i)));
+			PerformanceTest.insertList(ind, entries.get(i));
+			rootPageIds[i] = file.writeIndex(ind::write);
+		}
+
+		BTreeBufferPool pool = new BTreeBufferPool(50);
+		List<BTreeIndexUnique> indexes = new ArrayList<>();
+		for (int i = 0; i < rootPageIds.length; i++) {
+			BTreeIndexUnique ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, file, rootPageIds[i]);
+			ind.setBufferPool(pool);
+			indexes.add(ind);
+		}
+		// other buffer managers evict their nodes when they are used next
+		int maxCleanNodes = pool.getMaxCleanNodes() 
+				+ (indexes.size() - 1) * pool.getEvictionBatchSize();
+		// index 0 is hot, the others are read once
+		for (int i = 0; i < rootPageIds.length; i++) {
+			for (LLEntry e : entries.get(i)) {
+				assertEquals(e.getValue(), indexes.get(i).findValue(e.getKey()).getValue());
+				assertTrue(pool.getNumCleanNodes() <= maxCleanNodes);
+				for (int j = 0; i > 0 && j < 4; j++) {
+					LLEntry hot = entries.get(0).get((int) ((e.getKey() + j) & 0xF));
+					assertEquals(hot.getValue(), indexes.get(0).findValue(hot.getKey()).getValue());
+				}
+			}
+		}
+		assertTrue(pool.getStatNEvictions() > 0);
+		assertFalse(indexes.get(0).getBufferManager().getCleanBuffer().isEmpty());
+		// index 1 evicts the requested nodes when it is used again
+		int clean1 = indexes.get(1).getBufferManager().getCleanBuffer().size();
+		LLEntry e1 = entries.get(1).get(0);
+		assertEquals(e1.getValue(), indexes.get(1).findValue(e1.getKey()).getValue());
+		assertTrue(pool.getNumCleanNodes() <= maxCleanNodes);
+		assertTrue(indexes.get(1).getBufferManager().getCleanBuffer().size() <= clean1 + 1);
+
+		indexes.get(1).setBufferPool(null);
+		assertEquals(pool.getNumCleanNodes(),
+				indexes.get(0).getBufferManager().getCleanBuffer().size()
+				+ indexes.get(2).getBufferManager().getCleanBuffer().size());
+	}
+
 	@Test
 	public void testWriteReadEmptyUnique() {
 		/* Unique */
@@ -26,12 +26,17 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 import javax.jdo.JDOUserException;
 
@@ -45,6 +50,9 @@ import org.zoodb.internal.server.StorageRootInMemory;
 import org.zoodb.internal.server.index.BTreeIndexNonUnique;
 import org.zoodb.internal.server.index.LongLongIndex;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
+import org.zoodb.internal.server.index.btree.IntersectionCursor;
+import org.zoodb.internal.server.index.btree.UnionCursor;
+import org.zoodb.internal.server.index.btree.ValueCursor;
 import org.zoodb.internal.util.CloseableIterator;
 import org.zoodb.tools.ZooConfig;
 
@@ -87,6 +95,204 @@ public class TestLongLongNonUniqueIndex {
     	return ind; 
     }
     
+    @Test
+    public void testIntersectAndUnion() {
+        final int OIDS = 30000;
+        final int KEYS = 5;
+        Random rnd = new Random(13);
+        BTreeIndexNonUnique[] indexes = new BTreeIndexNonUnique[3];
+        List<List<TreeSet<Long>>> expected = new ArrayList<>();
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = (BTreeIndexNonUnique) createIndex();
+            List<TreeSet<Long>> oidsPerKey = new ArrayList<>();
+            for (int k = 0; k < KEYS; k++) {
+                oidsPerKey.add(new TreeSet<>());
+            }
+            for (long oid = 1; oid <= OIDS; oid++) {
+                int key = rnd.nextInt(KEYS);
+                indexes[i].insertLong(key, oid);
+                oidsPerKey.get(key).add(oid);
+            }
+            expected.add(oidsPerKey);
+        }
+
+        //a=0 AND b=1 AND c=2
+        TreeSet<Long> and = new TreeSet<>(expected.get(0).get(0));
+        and.retainAll(expected.get(1).get(1));
+        and.retainAll(expected.get(2).get(2));
+        ValueCursor c = new IntersectionCursor(indexes[0].valueCursor(0), 
+                indexes[1].valueCursor(1), indexes[2].valueCursor(2));
+        assertCursorEquals(and, c);
+
+        //a=3 AND (b=1 OR b=4)
+        TreeSet<Long> or = new TreeSet<>(expected.get(1).get(1));
+        or.addAll(expected.get(1).get(4));
+        TreeSet<Long> nested = new TreeSet<>(or);
+        nested.retainAll(expected.get(0).get(3));
+        assertCursorEquals(or, new UnionCursor(indexes[1].valueCursor(1), indexes[1].valueCursor(4)));
+        c = new IntersectionCursor(indexes[0].valueCursor(3), 
+                new UnionCursor(indexes[1].valueCursor(1), indexes[1].valueCursor(4)));
+        assertCursorEquals(nested, c);
+
+        //seek
+        c = new IntersectionCursor(indexes[0].valueCursor(0), indexes[2].valueCursor(1));
+        TreeSet<Long> expectedSeek = new TreeSet<>(expected.get(0).get(0));
+        expectedSeek.retainAll(expected.get(2).get(1));
+        for (long oid = 1; oid < OIDS; oid += rnd.nextInt(500)) {
+            c.seek(oid);
+            Long next = expectedSeek.ceiling(oid);
+            assertEquals(next != null, c.hasNext());
+            if (next == null) {
+                break;
+            }
+            assertEquals((long) next, c.peekValue());
+        }
+
+        //missing key
+        assertFalse(new IntersectionCursor(indexes[0].valueCursor(0), 
+                indexes[1].valueCursor(KEYS)).hasNext());
+    }
+
+    @Test
+    public void testValueCursorConcurrentModification() {
+        BTreeIndexNonUnique ind = (BTreeIndexNonUnique) createIndex();
+        for (long oid = 1; oid <= 1000; oid++) {
+            ind.insertLong(7, oid);
+        }
+        ValueCursor c = ind.valueCursor(7);
+        assertEquals(1, c.nextValue());
+        ind.insertLong(7, 1001);
+        try {
+            c.nextValue();
+            fail();
+        } catch (ConcurrentModificationException e) {
+            //good!
+        }
+        try {
+            c.peekValue();
+            fail();
+        } catch (ConcurrentModificationException e) {
+            //good!
+        }
+    }
+
+    private static void assertCursorEquals(TreeSet<Long> expected, ValueCursor cursor) {
+        for (long oid : expected) {
+            assertTrue(cursor.hasNext());
+            assertEquals(oid, cursor.nextValue());
+        }
+        assertFalse(cursor.hasNext());
+        cursor.close();
+    }
+
+    @Test
+    public void testParallelStreams() {
+        final int MAX = 30000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexNonUnique ind = (BTreeIndexNonUnique) createIndex(paf);
+        Random rnd = new Random(19);
+        for (int i = 0; i < MAX; i++) {
+            ind.insertLong(rnd.nextInt(MAX / 3), i);
+        }
+        //read the nodes from storage during the parallel traversal
+        int rootPageId = paf.writeIndex(ind::write);
+        ind = new BTreeIndexNonUnique(PAGE_TYPE.GENERIC_INDEX, paf, rootPageId);
+
+        List<LLEntry> expected = new ArrayList<>();
+        Iterator<LLEntry> it = ind.iterator(100, 8000);
+        while (it.hasNext()) {
+            expected.add(it.next());
+        }
+
+        List<LLEntry> actual = ind.entryStream(100, 8000).parallel().collect(Collectors.toList());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+        }
+        long keySum = 0;
+        for (LLEntry e : expected) {
+            keySum += e.getKey();
+        }
+        assertEquals(keySum, ind.keyStream(100, 8000).parallel().sum());
+        assertEquals(MAX, ind.keyStream(Long.MIN_VALUE, Long.MAX_VALUE).parallel().count());
+    }
+
+    @Test
+    public void testStreamConcurrentModification() {
+        BTreeIndexNonUnique ind = (BTreeIndexNonUnique) createIndex();
+        for (int i = 0; i < 1000; i++) {
+            ind.insertLong(i, 32);
+        }
+        PrimitiveIterator.OfLong keys = ind.keyStream(0, 1000).iterator();
+        assertEquals(0, keys.nextLong());
+        ind.insertLong(5000, 32);
+        try {
+            keys.nextLong();
+            fail();
+        } catch (ConcurrentModificationException e) {
+            //good!
+        }
+
+        Iterator<LLEntry> entries = ind.entryStream(0, 1000).iterator();
+        assertEquals(0, entries.next().getKey());
+        ind.removeLong(500, 32);
+        try {
+            entries.next();
+            fail();
+        } catch (ConcurrentModificationException e) {
+            //good!
+        }
+    }
+
+    @Test
+    public void testFindValues() {
+        final int MAX = 2000;
+        BTreeIndexNonUnique ind = (BTreeIndexNonUnique) createIndex();
+        Map<Long, Long> minValues = new TreeMap<>();
+        Random rnd = new Random(7);
+        for (int i = 0; i < MAX * 5; i++) {
+            //few keys with many values, so that keys span several leaves
+            long key = rnd.nextInt(MAX) * 3;
+            long value = rnd.nextInt(100000) - 50000;
+            ind.insertLong(key, value);
+            Long min = minValues.get(key);
+            if (min == null || value < min) {
+                minValues.put(key, value);
+            }
+        }
+
+        long[] keys = new long[MAX * 4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rnd.nextInt(MAX * 3 + 10) - 5;
+        }
+        long[] values = new long[keys.length];
+        ind.findValues(keys, values, Long.MAX_VALUE);
+        for (int i = 0; i < keys.length; i++) {
+            Long min = minValues.get(keys[i]);
+            assertEquals("key=" + keys[i], min == null ? Long.MAX_VALUE : min, values[i]);
+        }
+
+        //sorted input is used directly
+        long[] sorted = new long[minValues.size()];
+        int n = 0;
+        for (long key : minValues.keySet()) {
+            sorted[n++] = key;
+        }
+        values = new long[n];
+        ind.findValues(sorted, values, Long.MAX_VALUE);
+        for (int i = 0; i < n; i++) {
+            assertEquals((long) minValues.get(sorted[i]), values[i]);
+        }
+
+        //only the first value per key is returned, the cursor has the others
+        ValueCursor cursor = ind.valueCursor(sorted[0]);
+        assertEquals(values[0], cursor.nextValue());
+        while (cursor.hasNext()) {
+            assertTrue(cursor.nextValue() >= values[0]);
+        }
+    }
+
     @Test
     public void testAddWithMockStrongCheck() {
         final int MAX = 5000;
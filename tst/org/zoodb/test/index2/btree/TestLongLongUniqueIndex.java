@@ -27,26 +27,41 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.jdo.JDOUserException;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.zoodb.internal.server.DiskIO;
 import org.zoodb.internal.server.DiskIO.PAGE_TYPE;
 import org.zoodb.internal.server.IOResourceProvider;
+import org.zoodb.internal.server.StorageChannelInput;
 import org.zoodb.internal.server.StorageRootInMemory;
 import org.zoodb.internal.server.index.BTreeIndexUnique;
 import org.zoodb.internal.server.index.IndexFactory;
 import org.zoodb.internal.server.index.LongLongIndex;
 import org.zoodb.internal.server.index.LongLongIndex.LLEntry;
 import org.zoodb.internal.server.index.LongLongIndex.LongLongUIndex;
+import org.zoodb.internal.server.index.btree.BTree.RangeEmptyCheck;
+import org.zoodb.internal.server.index.btree.LZPageCodec;
+import org.zoodb.internal.server.index.btree.MappedBTree;
 import org.zoodb.internal.util.CloseableIterator;
 import org.zoodb.tools.ZooConfig;
 
@@ -380,6 +395,209 @@ public class TestLongLongUniqueIndex {
         assertNull( ind.findValue(1000 + MAX) );
     }
 
+    @Test
+    public void testFindValues() {
+        final int MAX = 20000;
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        for (int i = 0; i < MAX; i += 3) {
+            ind.insertLong(i, 32+i);
+        }
+
+        Random rnd = new Random(3);
+        long[] keys = new long[MAX / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = rnd.nextInt(MAX + 10) - 5;
+        }
+        long[] values = new long[keys.length];
+        ind.findValues(keys, values, -1);
+        for (int i = 0; i < keys.length; i++) {
+            long key = keys[i];
+            boolean exists = key >= 0 && key < MAX && key % 3 == 0;
+            assertEquals("key=" + key, exists ? 32+key : -1, values[i]);
+        }
+
+        Arrays.sort(keys);
+        ind.findValues(keys, values, -1);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(ind.findValueNoFail(keys[i], -1), values[i]);
+        }
+    }
+
+    @Test
+    public void testFindValuesEmptyBatch() {
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        for (int i = 0; i < 20000; i++) {
+            ind.insertLong(i, 32+i);
+        }
+        assertTrue(ind.statsGetInnerN() > 0);
+        ind.findValues(new long[0], new long[0], -1);
+        ind.getTree().searchSorted(new long[] {1, 2}, new long[2], 0, -1);
+
+        try {
+            ind.getTree().searchSorted(new long[] {1, 2}, new long[1], 2, -1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //good
+        }
+        try {
+            ind.findValues(new long[] {1, 2}, new long[1], -1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //good
+        }
+    }
+
+    @Test
+    public void testDeleteAndCheckRangeEmpty() {
+        final int MAX = 50000;
+        final int RANGE = 16;
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex();
+        TreeSet<Long> keys = new TreeSet<>();
+        Random rnd = new Random(42);
+        while (keys.size() < MAX) {
+            long key = rnd.nextInt(MAX * 4);
+            keys.add(key);
+            ind.insertLong(key, key + 1);
+        }
+
+        List<Long> toDelete = new ArrayList<>(keys);
+        Collections.shuffle(toDelete, rnd);
+        for (long key : toDelete) {
+            long min = key - key % RANGE;
+            long max = min + RANGE - 1;
+            keys.remove(key);
+            boolean expected = keys.subSet(min, true, max, true).isEmpty();
+
+            RangeEmptyCheck check = new RangeEmptyCheck(min, max);
+            assertEquals(key + 1, ind.getTree().delete(key, check));
+            assertEquals("key=" + key, expected, check.isRangeEmpty());
+        }
+        assertFalse(ind.iterator().hasNext());
+    }
+
+    @Test
+    public void testNoFailLookupAndDelete() {
+        final int MAX = 10000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = (BTreeIndexUnique) createIndex(paf);
+        for (int i = 0; i < MAX; i += 2) {
+            ind.insertLong(i, 32+i);
+        }
+        ind.insertLong(MAX, Long.MIN_VALUE);
+
+        for (int i = 0; i < MAX; i += 2) {
+            assertEquals(32+i, ind.findValueNoFail(i, -1));
+            assertEquals(-1, ind.findValueNoFail(i+1, -1));
+        }
+        assertEquals(Long.MIN_VALUE, ind.findValue(MAX).getValue());
+        assertNull(ind.findValue(MAX+1));
+
+        //missing keys must neither remove a neighbour nor modify the tree
+        paf.writeIndex(ind::write);
+        int modcount = ind.getTree().getModcount();
+        for (int i = 1; i < MAX; i += 2) {
+            assertEquals(-1, ind.removeLongNoFail(i, -1));
+        }
+        assertEquals(modcount, ind.getTree().getModcount());
+        assertEquals(0, ind.getBufferManager().getDirtyBuffer().size());
+        try {
+            ind.removeLong(MAX+1);
+            fail();
+        } catch (NoSuchElementException e) {
+            //good
+        }
+        for (int i = 0; i < MAX; i += 2) {
+            assertEquals(32+i, ind.removeLongNoFail(i, -1));
+            assertEquals(-1, ind.removeLongNoFail(i, -1));
+        }
+        assertEquals(Long.MIN_VALUE, ind.removeLongNoFail(MAX, -1));
+        assertFalse(ind.iterator().hasNext());
+    }
+
+    @Test
+    public void testMapReadOnly() throws IOException {
+        checkMapReadOnly(8, false);
+        checkMapReadOnly(4, false);
+        checkMapReadOnly(8, true);
+    }
+
+    private void checkMapReadOnly(int keySize, boolean valuePrefixSharing) throws IOException {
+        final int MAX = 20000;
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique ind = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, keySize, 8);
+        ind.setLeafValuePrefixSharing(valuePrefixSharing);
+        for (int i = -MAX; i < MAX; i += 3) {
+            ind.insertLong(i, 1000L * i);
+        }
+        paf.writeIndex(ind::write);
+
+        try (FileChannel file = copyToFile(paf, ind)) {
+            MappedBTree mapped = ind.mapReadOnly(file);
+            for (int i = -MAX - 5; i < MAX + 5; i++) {
+                boolean exists = i >= -MAX && i < MAX && (i + MAX) % 3 == 0;
+                assertEquals("key=" + i, exists ? 1000L * i : -1, mapped.search(i, -1));
+                assertEquals(exists, mapped.containsKey(i));
+            }
+        }
+    }
+
+    @Test
+    public void testMapReadOnlyUnsupportedPages() throws IOException {
+        IOResourceProvider paf = createPageAccessFile();
+        BTreeIndexUnique compressed = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf);
+        compressed.setLeafPageCodec(new LZPageCodec());
+        BTreeIndexUnique dense = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf);
+        dense.setLeafDenseKeys(true);
+        for (int i = 0; i < 20000; i++) {
+            compressed.insertLong(i, 5);
+            dense.insertLong(i, 5);
+        }
+        paf.writeIndex(compressed::write);
+        int rootPageId = paf.writeIndex(dense::write);
+
+        try (FileChannel file = copyToFile(paf, compressed)) {
+            compressed.mapReadOnly(file);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //good
+        }
+        try (FileChannel file = copyToFile(paf, dense)) {
+            try {
+                dense.mapReadOnly(file);
+                fail();
+            } catch (UnsupportedOperationException e) {
+                //good
+            }
+            //the pages of the index are not read as prefix shared leaves
+            BTreeIndexUnique loaded = new BTreeIndexUnique(PAGE_TYPE.GENERIC_INDEX, paf, rootPageId);
+            MappedBTree mapped = loaded.mapReadOnly(file);
+            try {
+                mapped.search(100, -1);
+                fail();
+            } catch (IllegalStateException e) {
+                //good
+            }
+        }
+    }
+
+    // copies the pages of an index into a database file
+    private static FileChannel copyToFile(IOResourceProvider paf, BTreeIndexUnique ind) 
+            throws IOException {
+        File dbFile = File.createTempFile("zoodbMapped", ".zdb");
+        dbFile.deleteOnExit();
+        FileChannel file = FileChannel.open(dbFile.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        StorageChannelInput in = paf.getInputChannel();
+        for (int pageId : ind.debugPageIds()) {
+            in.seekPageForRead(PAGE_TYPE.GENERIC_INDEX, pageId);
+            byte[] image = new byte[PAGE_SIZE - DiskIO.PAGE_HEADER_SIZE];
+            in.noCheckRead(image);
+            file.write(ByteBuffer.wrap(image), (long) pageId * PAGE_SIZE + DiskIO.PAGE_HEADER_SIZE);
+        }
+        paf.returnInputChannel(in);
+        return file;
+    }
+
     @Test
     public void testConcurrentModificationExceptionDescending() {
         LongLongIndex ind = createIndex();
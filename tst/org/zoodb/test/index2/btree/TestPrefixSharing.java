@@ -41,6 +41,9 @@ import org.zoodb.internal.server.index.btree.BTreeNode;
 import org.zoodb.internal.server.index.btree.BTreeStorageBufferManager;
 import org.zoodb.internal.server.index.btree.nonunique.NonUniquePagedBTree;
 import org.zoodb.internal.server.index.btree.prefix.BitOperationsHelper;
+import org.zoodb.internal.server.index.btree.prefix.DenseKeyHelper;
+import org.zoodb.internal.server.index.btree.prefix.LZCompressionHelper;
+import org.zoodb.internal.server.index.btree.prefix.PostingListHelper;
 import org.zoodb.internal.server.index.btree.prefix.PrefixSharingHelper;
 import org.zoodb.internal.server.index.btree.unique.UniquePagedBTree;
 
@@ -67,6 +70,159 @@ public class TestPrefixSharing {
         System.out.println(prefix);
     }
 
+    @Test
+    public void testComputePrefixUnsorted() {
+        long[] arr = { 1800, 1500, 1700, -1};
+        assertEquals(PrefixSharingHelper.computePrefix(1500, 1800), 
+        		PrefixSharingHelper.computePrefixUnsorted(arr, 3));
+        assertEquals(0, PrefixSharingHelper.computePrefixUnsorted(arr, 4));
+        assertEquals(64, PrefixSharingHelper.computePrefixUnsorted(arr, 1));
+        
+        long prefix = PrefixSharingHelper.computePrefixUnsorted(arr, 3);
+        byte[] encoded = PrefixSharingHelper.encodeArray(arr, 3, prefix);
+        assertArrayEquals(Arrays.copyOf(arr, 3), PrefixSharingHelper.decodeArray(encoded));
+    }
+
+    @Test
+    public void testEncodeIntKey() {
+        long[] keys = { Integer.MIN_VALUE, -5, -1, 0, 1, 5, Integer.MAX_VALUE };
+        for (int i = 0; i < keys.length; i++) {
+            long encoded = PrefixSharingHelper.encodeIntKey(keys[i]);
+            assertTrue(encoded >= 0 && encoded <= 0xFFFFFFFFL);
+            assertEquals(keys[i], PrefixSharingHelper.decodeIntKey(encoded));
+            if (i > 0) {
+                assertTrue(PrefixSharingHelper.encodeIntKey(keys[i - 1]) < encoded);
+            }
+        }
+        //keys of different signs still share the upper word
+        assertTrue(PrefixSharingHelper.computePrefix(
+                PrefixSharingHelper.encodeIntKey(-1), PrefixSharingHelper.encodeIntKey(1)) >= 32);
+    }
+
+    @Test
+    public void testPostingList() {
+        long[] keys = { -3, -3, 7, 7, 7, 8, 1L << 40 };
+        long[] values = { -10, 5, 100, 101, 2000000, Long.MIN_VALUE, Long.MAX_VALUE };
+        long prefix = PrefixSharingHelper.computePrefix(keys[0], keys[keys.length - 1]);
+        byte[] encoded = PostingListHelper.encode(keys, values, keys.length, prefix);
+        assertEquals(PostingListHelper.encodedSize(keys, values, keys.length, prefix), encoded.length);
+        assertEquals(4, PostingListHelper.countDistinct(keys, keys.length));
+
+        //skip the number of entries and the key metadata
+        int numDistinct = PrefixSharingHelper.byteArrayToInt(encoded, 4);
+        byte[] encodedKeys = Arrays.copyOfRange(encoded, 9,
+                9 + PrefixSharingHelper.encodedArraySizeWithoutMetadata(numDistinct, prefix));
+        long[] distinctKeys = PrefixSharingHelper.decodeArray(encodedKeys, numDistinct, (byte) prefix);
+        int runsStart = 9 + encodedKeys.length + 4;
+        byte[] runs = Arrays.copyOfRange(encoded, runsStart, encoded.length);
+
+        long[] decodedKeys = new long[keys.length];
+        long[] decodedValues = new long[keys.length];
+        PostingListHelper.decodeRuns(runs, distinctKeys, numDistinct, decodedKeys, decodedValues);
+        assertArrayEquals(keys, decodedKeys);
+        assertArrayEquals(values, decodedValues);
+
+        int split = PostingListHelper.computeIndexForSplit(keys, values, keys.length, prefix);
+        assertTrue(split > 0 && split < keys.length);
+    }
+
+    @Test
+    public void testPostingListSizeDeltas() {
+        Random random = new Random(42);
+        long[] keys = new long[300];
+        long[] values = new long[300];
+        int n = 0;
+        for (int i = 0; i < 5000; i++) {
+            int runsSize = PostingListHelper.encodedRunsSize(keys, values, n);
+            if (n < keys.length - 1 && (n == 0 || random.nextInt(3) > 0)) {
+                long key = random.nextInt(20) - 10;
+                long value = random.nextInt(1000) - 500;
+                if (random.nextInt(10) == 0) {
+                    key = random.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE;
+                    value = random.nextLong();
+                }
+                int pos = 0;
+                while (pos < n && (keys[pos] < key || (keys[pos] == key && values[pos] < value))) {
+                    pos++;
+                }
+                int delta = PostingListHelper.insertedRunsSizeDelta(keys, values, n, pos, key, value);
+                System.arraycopy(keys, pos, keys, pos + 1, n - pos);
+                System.arraycopy(values, pos, values, pos + 1, n - pos);
+                keys[pos] = key;
+                values[pos] = value;
+                n++;
+                assertEquals(PostingListHelper.encodedRunsSize(keys, values, n), runsSize + delta);
+            } else {
+                int pos = random.nextInt(n);
+                int delta = PostingListHelper.removedRunsSizeDelta(keys, values, n, pos);
+                System.arraycopy(keys, pos + 1, keys, pos, n - pos - 1);
+                System.arraycopy(values, pos + 1, values, pos, n - pos - 1);
+                n--;
+                assertEquals(PostingListHelper.encodedRunsSize(keys, values, n), runsSize + delta);
+            }
+
+            //join the entries split at a random position of a run
+            if (n > 1 && keys[0] != keys[n - 1]) {
+                int split = 1 + random.nextInt(n - 1);
+                if (keys[split - 1] == keys[split]) {
+                    long[] rightKeys = Arrays.copyOfRange(keys, split, n);
+                    long[] rightValues = Arrays.copyOfRange(values, split, n);
+                    int joined = PostingListHelper.encodedRunsSize(keys, values, split)
+                            + PostingListHelper.encodedRunsSize(rightKeys, rightValues, n - split)
+                            + PostingListHelper.joinedRunsSizeDelta(keys, values, split, 
+                                    rightKeys, rightValues, n - split);
+                    assertEquals(PostingListHelper.encodedRunsSize(keys, values, n), joined);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDenseKeys() {
+        long[] runs = { -2, -1, 0, 1, 2, 10, 11, 12, 1L << 40, (1L << 40) + 1 };
+        long[] bitmap = new long[200];
+        for (int i = 0; i < bitmap.length; i++) {
+            bitmap[i] = 5000 + i + i / 3;
+        }
+        for (long[] keys : new long[][] { runs, bitmap, { Long.MIN_VALUE, Long.MAX_VALUE } }) {
+            byte[] encoded = DenseKeyHelper.encode(keys, keys.length);
+            assertEquals(DenseKeyHelper.encodedSize(keys, keys.length), encoded.length);
+            assertEquals(keys.length, PrefixSharingHelper.byteArrayToInt(encoded, 0));
+            assertEquals(encoded.length - DenseKeyHelper.DENSE_KEYS_METADATA_SIZE,
+                    PrefixSharingHelper.byteArrayToInt(encoded, 4));
+            long[] decoded = new long[keys.length];
+            DenseKeyHelper.decode(Arrays.copyOfRange(encoded, 
+                    DenseKeyHelper.DENSE_KEYS_METADATA_SIZE, encoded.length), keys.length, decoded);
+            assertArrayEquals(keys, decoded);
+        }
+        //a bitmap needs less than a byte per key
+        assertTrue(DenseKeyHelper.encodedSize(bitmap, bitmap.length) < bitmap.length / 2);
+        //only strictly ascending keys can be stored dense
+        assertEquals(-1, DenseKeyHelper.encodedSize(new long[] { 1, 1, 2 }, 3));
+        assertEquals(-1, DenseKeyHelper.encodedSize(new long[0], 0));
+    }
+
+    @Test
+    public void testLZCompression() {
+        Random random = new Random(1);
+        byte[] noise = new byte[1000];
+        random.nextBytes(noise);
+        byte[] runs = new byte[5000];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = (byte) (i / 300 + (i % 7 == 0 ? 1 : 0));
+        }
+        for (byte[] src : new byte[][] { new byte[0], new byte[] { 1, 2, 3 }, noise, runs }) {
+            byte[] compressed = new byte[2 + LZCompressionHelper.maxCompressedLength(src.length)];
+            int size = LZCompressionHelper.compress(src, 0, src.length, compressed, 2);
+            assertTrue(size <= LZCompressionHelper.maxCompressedLength(src.length));
+            byte[] decompressed = new byte[src.length];
+            assertEquals(src.length, LZCompressionHelper.decompress(compressed, 2, size, decompressed, 0));
+            assertArrayEquals(src, decompressed);
+        }
+        byte[] compressed = new byte[LZCompressionHelper.maxCompressedLength(runs.length)];
+        assertTrue(LZCompressionHelper.compress(runs, 0, runs.length, compressed, 0) < runs.length / 10);
+    }
+
     @Test
     public void testSplitEqual() {
         long[] arr = {5, 5, 5, 5, 5, 5};
@@ -244,5 +244,6 @@ public class PageUsageStats {
 				+ String.valueOf(oldStorage.statsGetReadCount())
 				+ "), (New Index, "
 				+ String.valueOf(newStorage.statsGetReadCount() + ")"));
+		System.out.println("Shape (New Index) " + newIndex.analyzeShape());
 	}
 }